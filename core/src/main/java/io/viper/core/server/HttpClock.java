@@ -0,0 +1,79 @@
+package io.viper.core.server;
+
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.util.CharsetUtil;
+
+
+/**
+ * A date header whose value is formatted at most once per second and shared by every response sent
+ * during that second.
+ */
+public class HttpClock
+{
+  public static final HttpClock DATE = new HttpClock(HttpHeaders.Names.DATE, 0);
+
+  private final String _name;
+  private final long _offsetMillis;
+  private volatile Tick _tick = new Tick(-1, null, null);
+
+  private static class Tick
+  {
+    final long second;
+    final String value;
+    final ChannelBuffer line;
+
+    Tick(long second, String value, ChannelBuffer line)
+    {
+      this.second = second;
+      this.value = value;
+      this.line = line;
+    }
+  }
+
+  /**
+   * @param name the header name
+   * @param offsetMillis the offset from the current time, e.g. the max age for an Expires header
+   */
+  public HttpClock(String name, long offsetMillis)
+  {
+    _name = name;
+    _offsetMillis = offsetMillis;
+  }
+
+  /**
+   * @return the header value for the current second
+   */
+  public String getValue()
+  {
+    return tick().value;
+  }
+
+  /**
+   * @return the encoded header line, "name: value\r\n", for the current second
+   */
+  public ChannelBuffer getHeaderLine()
+  {
+    return tick().line.duplicate();
+  }
+
+  private Tick tick()
+  {
+    long now = System.currentTimeMillis();
+    long second = now / 1000;
+
+    Tick tick = _tick;
+    if (tick.second != second)
+    {
+      // racing threads format the same value, and any of them may win
+      String value = Util.formatHttpDate(second * 1000 + _offsetMillis);
+      ChannelBuffer line = ChannelBuffers.unmodifiableBuffer(
+        ChannelBuffers.wrappedBuffer((_name + ": " + value + "\r\n").getBytes(CharsetUtil.US_ASCII)));
+      tick = new Tick(second, value, line);
+      _tick = tick;
+    }
+    return tick;
+  }
+}
@@ -18,7 +18,13 @@ import javax.activation.MimetypesFileTypeMap;
 import java.io.*;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.jboss.netty.buffer.ChannelBuffers.wrappedBuffer;
 
@@ -27,6 +33,20 @@ public class Util
 {
   static private MimetypesFileTypeMap _fileTypeMap = new MimetypesFileTypeMap();
 
+  static private final int MAX_CONTENT_TYPES = 1024;
+  static private final ConcurrentHashMap<String, String> _contentTypes = createContentTypes();
+
+  static private final ThreadLocal<SimpleDateFormat> _httpDateFormat = new ThreadLocal<SimpleDateFormat>()
+  {
+    @Override
+    protected SimpleDateFormat initialValue()
+    {
+      SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      return format;
+    }
+  };
+
   public static byte[] copyStream(InputStream is) throws IOException
   {
     ByteArrayOutputStream buffer = new ByteArrayOutputStream();
@@ -41,6 +61,10 @@ public class Util
     return buffer.toByteArray();
   }
 
+  /**
+   * Returns the content type for a file name, looked up by extension.  Extensions missing from the
+   * built-in table are resolved once through the JAF file type map and remembered.
+   */
   public static String getContentType(String filename)
   {
     if (filename == null || filename.length() == 0)
@@ -48,29 +72,87 @@ public class Util
       return "application/octet-stream";
     }
 
-    String contentType;
-
-    if (filename.endsWith(".html") || filename.endsWith(".htm")) {
-      contentType = "text/html";
+    int dot = filename.lastIndexOf('.');
+    if (dot < 0 || dot < filename.lastIndexOf('/'))
+    {
+      return _fileTypeMap.getContentType(filename);
     }
-    else if (filename.endsWith(".js"))
+
+    String extension = filename.substring(dot + 1).toLowerCase(Locale.US);
+
+    String contentType = _contentTypes.get(extension);
+    if (contentType == null)
     {
-      contentType = "text/javascript";
+      contentType = _fileTypeMap.getContentType(filename);
+      if (_contentTypes.size() < MAX_CONTENT_TYPES)
+      {
+        _contentTypes.putIfAbsent(extension, contentType);
+      }
     }
-    else if (filename.endsWith(".css"))
+
+    return contentType;
+  }
+
+  private static ConcurrentHashMap<String, String> createContentTypes()
+  {
+    String[][] types = {
+      {"html", "text/html"},
+      {"htm", "text/html"},
+      {"js", "text/javascript"},
+      {"mjs", "text/javascript"},
+      {"css", "text/css"},
+      {"txt", "text/plain"},
+      {"csv", "text/csv"},
+      {"xml", "text/xml"},
+      {"json", "application/json"},
+      {"map", "application/json"},
+      {"pdf", "application/pdf"},
+      {"zip", "application/zip"},
+      {"wasm", "application/wasm"},
+      {"png", "image/png"},
+      {"jpg", "image/jpeg"},
+      {"jpeg", "image/jpeg"},
+      {"gif", "image/gif"},
+      {"svg", "image/svg+xml"},
+      {"ico", "image/x-icon"},
+      {"webp", "image/webp"},
+      {"woff", "font/woff"},
+      {"woff2", "font/woff2"},
+      {"ttf", "font/ttf"},
+      {"otf", "font/otf"},
+      {"mp3", "audio/mpeg"},
+      {"mp4", "video/mp4"},
+      {"webm", "video/webm"}
+    };
+
+    ConcurrentHashMap<String, String> contentTypes = new ConcurrentHashMap<String, String>();
+    for (String[] type : types)
     {
-      contentType = "text/css";
+      contentTypes.put(type[0], type[1]);
     }
-    else if (filename.endsWith(".png"))
+    return contentTypes;
+  }
+
+  public static String formatHttpDate(long millis)
+  {
+    return _httpDateFormat.get().format(new Date(millis));
+  }
+
+  /**
+   * @return the date in milliseconds, or -1 if it could not be parsed
+   */
+  public static long parseHttpDate(String date)
+  {
+    if (date == null) return -1;
+
+    try
     {
-      contentType = "image/png";
+      return _httpDateFormat.get().parse(date.trim()).getTime();
     }
-    else
+    catch (ParseException e)
     {
-      contentType = _fileTypeMap.getContentType(filename);
+      return -1;
     }
-
-    return contentType;
   }
 
   public static String base64Encode(UUID uuid)
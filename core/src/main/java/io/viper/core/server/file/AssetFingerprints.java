@@ -0,0 +1,520 @@
+package io.viper.core.server.file;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+
+
+/**
+ * Serves every asset under a content-fingerprinted alias as well as its own name, e.g. js/app.js also as
+ * js/app.3f9a1c0b2d.js, where the fingerprint is a digest of the asset's content.  An alias only
+ * resolves while it matches the current content, so it can be cached by clients forever; see
+ * StaticFileServerHandler, which serves aliases with IMMUTABLE_CACHE_CONTROL.
+ *
+ * HTML pages served through this cache have their src and href references to assets rewritten to the
+ * aliases.  Rewritten pages are kept until any path is invalidated, since a page depends on the
+ * fingerprints of everything it references.  rewrite() is available for HTML rendered elsewhere, e.g.
+ * for an HtmlResponse.
+ */
+public class AssetFingerprints implements FileContentInfoCache
+{
+  public static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+  public static final int IMMUTABLE_MAX_AGE = 31536000;
+
+  private static final int FINGERPRINT_LENGTH = 10;
+  private static final int MAX_PAGES = 1024;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final Pattern REFERENCE = Pattern.compile(
+    "(\\b(?:src|href)\\s*=\\s*)([\"'])([^\"']+)\\2", Pattern.CASE_INSENSITIVE);
+
+  private final FileContentInfoProvider _infoProvider;
+  private final String _rootUrl;
+
+  /** rewritten pages, each holding one reference owned by this map; guarded by this */
+  private final LinkedHashMap<String, FileContentInfo> _pages;
+  private long _generation = 0;
+
+  private final InvalidationListeners _listeners = new InvalidationListeners();
+
+  /**
+   * A copy of an HTML page with rewritten references, owned by this cache rather than the provider.
+   */
+  private static class RewrittenPage extends FileContentInfo
+  {
+    RewrittenPage(byte[] bytes, Map<String, String> meta)
+    {
+      super(ChannelBuffers.wrappedBuffer(bytes), meta);
+    }
+  }
+
+  public AssetFingerprints(FileContentInfoProvider infoProvider)
+  {
+    this(infoProvider, "/");
+  }
+
+  /**
+   * @param rootUrl the URL path the provider's root is served under, used to resolve absolute references
+   */
+  public AssetFingerprints(FileContentInfoProvider infoProvider, String rootUrl)
+  {
+    _infoProvider = infoProvider;
+    _rootUrl = rootUrl.endsWith("/") ? rootUrl : rootUrl + "/";
+    _pages = new LinkedHashMap<String, FileContentInfo>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, FileContentInfo> eldest)
+      {
+        if (size() <= MAX_PAGES) return false;
+        eldest.getValue().release();
+        return true;
+      }
+    };
+  }
+
+  public FileContentInfoProvider getProvider()
+  {
+    return _infoProvider;
+  }
+
+  /**
+   * @return the fingerprinted alias of an asset, or the path itself if it does not exist or has no extension
+   */
+  public String getAlias(String path)
+  {
+    int dot = extensionDot(path);
+    if (dot < 0) return path;
+
+    FileContentInfo contentInfo = _infoProvider.getFileContent(path);
+    if (contentInfo == null) return path;
+
+    try
+    {
+      return path.substring(0, dot) + "." + fingerprint(contentInfo) + path.substring(dot);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return path;
+    }
+    finally
+    {
+      _infoProvider.dispose(contentInfo);
+    }
+  }
+
+  /**
+   * @return the path an alias stands for, or null if the path is not an alias of the current content
+   */
+  public String resolve(String path)
+  {
+    FileContentInfo contentInfo = getAliasedContent(path);
+    if (contentInfo == null) return null;
+
+    _infoProvider.dispose(contentInfo);
+    return original(path);
+  }
+
+  /**
+   * Resolves an alias and fetches the content it stands for in one step.  The fingerprint is checked
+   * against the content returned, so content that changes in between is never served under an old alias.
+   * The content is returned as the provider serves it; HTML is not rewritten, as that would change the
+   * bytes the fingerprint stands for.
+   *
+   * @return the content, to be disposed through this cache, or null if the path is not an alias of the
+   *         current content
+   */
+  public FileContentInfo getAliasedContent(String path)
+  {
+    String original = original(path);
+    if (original == null) return null;
+
+    FileContentInfo contentInfo = _infoProvider.getFileContent(original);
+    if (contentInfo == null) return null;
+
+    int dot = extensionDot(path);
+    String fingerprint = path.substring(dot - FINGERPRINT_LENGTH, dot);
+    try
+    {
+      if (fingerprint.equals(fingerprint(contentInfo))) return contentInfo;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+
+    _infoProvider.dispose(contentInfo);
+    return null;
+  }
+
+  /**
+   * @return the path an alias would stand for, or null if the path does not have the form of an alias
+   */
+  private static String original(String path)
+  {
+    if (path == null) return null;
+
+    int dot = extensionDot(path);
+    int fingerprintDot = dot - FINGERPRINT_LENGTH - 1;
+    if (dot < 0 || fingerprintDot <= path.lastIndexOf('/') + 1 || path.charAt(fingerprintDot) != '.') return null;
+
+    for (int i = fingerprintDot + 1; i < dot; i++)
+    {
+      if (Character.digit(path.charAt(i), 16) < 0) return null;
+    }
+
+    return path.substring(0, fingerprintDot) + path.substring(dot);
+  }
+
+  /**
+   * Rewrites the src and href references of an HTML document to point at fingerprinted aliases.
+   * References to other pages, to other hosts and to missing files are left alone.
+   *
+   * @param pagePath the path of the page relative to the root, against which relative references resolve
+   */
+  public String rewrite(String html, String pagePath)
+  {
+    String pageDirectory = pagePath.substring(0, pagePath.lastIndexOf('/') + 1);
+
+    Matcher matcher = REFERENCE.matcher(html);
+    StringBuffer sb = null;
+
+    while (matcher.find())
+    {
+      String reference = matcher.group(3);
+      String aliased = rewriteReference(reference, pageDirectory);
+      if (aliased.equals(reference)) continue;
+
+      if (sb == null)
+      {
+        sb = new StringBuffer(html.length() + 256);
+      }
+      String replacement = matcher.group(1) + matcher.group(2) + aliased + matcher.group(2);
+      matcher.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+    }
+
+    if (sb == null) return html;
+
+    matcher.appendTail(sb);
+    return sb.toString();
+  }
+
+  private String rewriteReference(String reference, String pageDirectory)
+  {
+    // other hosts, fragments and schemes such as data: and mailto:
+    if (reference.startsWith("//") || reference.startsWith("#") || reference.indexOf(':') >= 0)
+    {
+      return reference;
+    }
+
+    int end = reference.length();
+    int query = reference.indexOf('?');
+    if (query >= 0) end = query;
+    int fragment = reference.indexOf('#');
+    if (fragment >= 0 && fragment < end) end = fragment;
+
+    String url = reference.substring(0, end);
+
+    String path;
+    if (url.startsWith(_rootUrl))
+    {
+      path = url.substring(_rootUrl.length());
+    }
+    else if (url.startsWith("/"))
+    {
+      return reference;
+    }
+    else
+    {
+      path = normalize(pageDirectory + url);
+      if (path == null) return reference;
+    }
+
+    if (path.isEmpty() || path.endsWith("/") || path.endsWith(".html") || path.endsWith(".htm"))
+    {
+      return reference;
+    }
+
+    String alias = getAlias(path);
+    if (alias.equals(path)) return reference;
+
+    // only the file name changes, so the reference keeps its own form
+    String fileName = alias.substring(alias.lastIndexOf('/') + 1);
+    return url.substring(0, url.lastIndexOf('/') + 1) + fileName + reference.substring(end);
+  }
+
+  /**
+   * Resolves "." and ".." segments.
+   *
+   * @return the normalized path, or null if it leaves the root
+   */
+  private static String normalize(String path)
+  {
+    if (!path.contains("./")) return path;
+
+    String[] segments = path.split("/", -1);
+    String[] stack = new String[segments.length];
+    int depth = 0;
+
+    for (String segment : segments)
+    {
+      if (segment.equals("."))
+      {
+        continue;
+      }
+      if (segment.equals(".."))
+      {
+        if (depth == 0) return null;
+        depth--;
+        continue;
+      }
+      stack[depth++] = segment;
+    }
+
+    StringBuilder sb = new StringBuilder(path.length());
+    for (int i = 0; i < depth; i++)
+    {
+      if (i > 0) sb.append('/');
+      sb.append(stack[i]);
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public FileContentInfo getFileContent(String path)
+  {
+    if (path == null) return null;
+
+    FileContentInfo aliased = getAliasedContent(path);
+    if (aliased != null) return aliased;
+
+    long generation;
+    synchronized (this)
+    {
+      FileContentInfo page = _pages.get(path);
+      if (page != null && page.retain()) return page;
+      generation = _generation;
+    }
+
+    FileContentInfo contentInfo = _infoProvider.getFileContent(path);
+    if (contentInfo == null || contentInfo.isFileRegion() || !isHtml(contentInfo)) return contentInfo;
+
+    FileContentInfo page;
+    try
+    {
+      page = rewritePage(path, contentInfo);
+    }
+    finally
+    {
+      _infoProvider.dispose(contentInfo);
+    }
+
+    synchronized (this)
+    {
+      // a page rewritten while something was invalidated may reference stale fingerprints
+      if (generation == _generation)
+      {
+        page.retain();
+        FileContentInfo replaced = _pages.put(path, page);
+        if (replaced != null) replaced.release();
+      }
+    }
+
+    return page;
+  }
+
+  private FileContentInfo rewritePage(String path, FileContentInfo contentInfo)
+  {
+    byte[] bytes = new byte[(int) contentInfo.getLength()];
+    contentInfo.content.getBytes(0, bytes);
+
+    String pagePath = path.startsWith("/") ? path.substring(1) : path;
+    byte[] rewritten = rewrite(new String(bytes, UTF8), pagePath).getBytes(UTF8);
+
+    FileContentInfo page = new RewrittenPage(rewritten, withLength(contentInfo.meta, rewritten.length));
+    page.lastModified = contentInfo.lastModified;
+
+    byte[] compressed = null;
+    try
+    {
+      compressed = StaticFileContentInfoProvider.gzip(rewritten);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+
+    if (compressed != null)
+    {
+      FileContentInfo encoded = new RewrittenPage(compressed, withLength(contentInfo.meta, compressed.length));
+      encoded.lastModified = contentInfo.lastModified;
+      encoded.contentEncoding = HttpHeaders.Values.GZIP;
+      page.encodings = Collections.singletonMap(HttpHeaders.Values.GZIP, encoded);
+    }
+
+    return page;
+  }
+
+  private static Map<String, String> withLength(Map<String, String> meta, int length)
+  {
+    Map<String, String> copy = new HashMap<String, String>(meta);
+    copy.put(HttpHeaders.Names.CONTENT_LENGTH, Integer.toString(length));
+    return copy;
+  }
+
+  private static boolean isHtml(FileContentInfo contentInfo)
+  {
+    String contentType = contentInfo.meta.get(HttpHeaders.Names.CONTENT_TYPE);
+    return contentType != null && contentType.startsWith("text/html") && contentInfo.contentEncoding == null;
+  }
+
+  @Override
+  public void dispose(FileContentInfo info)
+  {
+    if (info instanceof RewrittenPage)
+    {
+      info.release();
+    }
+    else
+    {
+      _infoProvider.dispose(info);
+    }
+  }
+
+  @Override
+  public void invalidate(String path)
+  {
+    // any page may reference the invalidated path
+    clearPages();
+    if (_infoProvider instanceof FileContentInfoCache)
+    {
+      ((FileContentInfoCache) _infoProvider).invalidate(path);
+    }
+    _listeners.invalidated(path);
+  }
+
+  @Override
+  public void invalidateAll()
+  {
+    clearPages();
+    if (_infoProvider instanceof FileContentInfoCache)
+    {
+      ((FileContentInfoCache) _infoProvider).invalidateAll();
+    }
+    _listeners.invalidatedAll();
+  }
+
+  @Override
+  public void addInvalidationListener(InvalidationListener listener)
+  {
+    _listeners.add(listener);
+  }
+
+  private synchronized void clearPages()
+  {
+    _generation++;
+    for (Iterator<FileContentInfo> it = _pages.values().iterator(); it.hasNext(); )
+    {
+      it.next().release();
+      it.remove();
+    }
+  }
+
+  @Override
+  public long getHitCount()
+  {
+    return _infoProvider instanceof FileContentInfoCache ? ((FileContentInfoCache) _infoProvider).getHitCount() : 0;
+  }
+
+  @Override
+  public long getMissCount()
+  {
+    return _infoProvider instanceof FileContentInfoCache ? ((FileContentInfoCache) _infoProvider).getMissCount() : 0;
+  }
+
+  /**
+   * @return the index of the dot starting the extension of the file name, or -1 if it has none
+   */
+  private static int extensionDot(String path)
+  {
+    int dot = path.lastIndexOf('.');
+    return dot > path.lastIndexOf('/') + 1 ? dot : -1;
+  }
+
+  /**
+   * Digests the content, reading file regions through the channel pool, the first time the content is
+   * fingerprinted.  The entity tag would be cheaper, but for file regions it is only length and
+   * modification time, which a rebuilt asset of the same size can share.
+   */
+  private static String fingerprint(FileContentInfo contentInfo)
+    throws IOException
+  {
+    String fingerprint = contentInfo.fingerprint;
+    if (fingerprint != null) return fingerprint;
+
+    try
+    {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      if (contentInfo.content != null)
+      {
+        digest.update(contentInfo.content.toByteBuffer(0, (int) contentInfo.getLength()));
+      }
+      else
+      {
+        digestFile(contentInfo, digest);
+      }
+      byte[] hash = digest.digest();
+
+      StringBuilder sb = new StringBuilder(FINGERPRINT_LENGTH);
+      for (int i = 0; sb.length() < FINGERPRINT_LENGTH; i++)
+      {
+        sb.append(Character.forDigit((hash[i] >> 4) & 0xF, 16));
+        sb.append(Character.forDigit(hash[i] & 0xF, 16));
+      }
+      fingerprint = sb.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new IllegalStateException(e);
+    }
+
+    contentInfo.fingerprint = fingerprint;
+    return fingerprint;
+  }
+
+  private static void digestFile(FileContentInfo contentInfo, MessageDigest digest)
+    throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(contentInfo.getLength(), 64 * 1024));
+    FileChannelPool.Lease lease = contentInfo.openChannel();
+    try
+    {
+      long position = 0;
+      while (position < contentInfo.getLength())
+      {
+        buffer.clear();
+        int n = lease.channel.read(buffer, position);
+        if (n < 0) throw new IOException("file shrank while fingerprinting: " + contentInfo.file);
+        buffer.flip();
+        digest.update(buffer);
+        position += n;
+      }
+    }
+    finally
+    {
+      lease.release();
+    }
+  }
+}
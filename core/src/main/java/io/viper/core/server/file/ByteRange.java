@@ -0,0 +1,121 @@
+package io.viper.core.server.file;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+
+/**
+ * A satisfiable range of a Range: bytes=... request header.
+ */
+public class ByteRange
+{
+  /** requests asking for more ranges than this are served in full */
+  public static final int MAX_RANGES = 16;
+
+  public final long start;
+  public final long end;
+
+  public ByteRange(long start, long end)
+  {
+    this.start = start;
+    this.end = end;
+  }
+
+  public long length()
+  {
+    return end - start + 1;
+  }
+
+  public String toContentRange(long totalLength)
+  {
+    return "bytes " + start + "-" + end + "/" + totalLength;
+  }
+
+  /**
+   * Parses a Range header against content of the given length.
+   *
+   * @return the satisfiable ranges, an empty list if none are satisfiable, or null if the header is missing,
+   *         malformed or asks for too many ranges, in which case the whole content should be sent
+   */
+  public static List<ByteRange> parse(String header, long totalLength)
+  {
+    if (header == null) return null;
+
+    header = header.trim();
+    if (!header.startsWith("bytes=")) return null;
+
+    String[] specs = header.substring("bytes=".length()).split(",");
+    if (specs.length > MAX_RANGES) return null;
+
+    List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+
+    for (String spec : specs)
+    {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) return null;
+
+      try
+      {
+        long start;
+        long end;
+
+        if (dash == 0)
+        {
+          // suffix range: the last n bytes
+          long suffixLength = Long.parseLong(spec.substring(1));
+          if (suffixLength <= 0) continue;
+          start = Math.max(0, totalLength - suffixLength);
+          end = totalLength - 1;
+        }
+        else
+        {
+          start = Long.parseLong(spec.substring(0, dash));
+          if (dash == spec.length() - 1)
+          {
+            end = totalLength - 1;
+          }
+          else
+          {
+            end = Long.parseLong(spec.substring(dash + 1));
+            if (end < start) return null;
+            end = Math.min(end, totalLength - 1);
+          }
+        }
+
+        if (start < 0) return null;
+        if (start >= totalLength) continue;
+
+        ranges.add(new ByteRange(start, end));
+      }
+      catch (NumberFormatException e)
+      {
+        return null;
+      }
+    }
+
+    return ranges.isEmpty() ? Collections.<ByteRange>emptyList() : ranges;
+  }
+
+  public static ChannelBuffer multipartHeader(String boundary, String contentType, ByteRange range, long totalLength)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("\r\n--").append(boundary).append("\r\n");
+    if (contentType != null)
+    {
+      sb.append("Content-Type: ").append(contentType).append("\r\n");
+    }
+    sb.append("Content-Range: ").append(range.toContentRange(totalLength)).append("\r\n\r\n");
+    return ChannelBuffers.copiedBuffer(sb.toString(), CharsetUtil.US_ASCII);
+  }
+
+  public static ChannelBuffer multipartTrailer(String boundary)
+  {
+    return ChannelBuffers.copiedBuffer("\r\n--" + boundary + "--\r\n", CharsetUtil.US_ASCII);
+  }
+}
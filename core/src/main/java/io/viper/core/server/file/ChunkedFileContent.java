@@ -0,0 +1,93 @@
+package io.viper.core.server.file;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.stream.ChunkedInput;
+
+
+/**
+ * Streams a range of content in bounded chunks, for connections that cannot use sendfile.
+ *
+ * The pipeline's ChunkedWriteHandler only asks for the next chunk while the channel is writable, so
+ * at most a few chunks per connection are in flight however large the content is.  In-memory content
+ * is sliced without copying; content on disk is read through a channel borrowed from FileChannelPool,
+ * which is given back when the input is closed.
+ */
+class ChunkedFileContent implements ChunkedInput
+{
+  private final FileContentInfo _contentInfo;
+  private final long _end;
+  private final int _chunkSize;
+  private long _position;
+  private FileChannelPool.Lease _lease;
+
+  ChunkedFileContent(FileContentInfo contentInfo, long position, long count, int chunkSize)
+  {
+    _contentInfo = contentInfo;
+    _position = position;
+    _end = position + count;
+    _chunkSize = chunkSize;
+  }
+
+  @Override
+  public boolean hasNextChunk()
+  {
+    return _position < _end;
+  }
+
+  @Override
+  public boolean isEndOfInput()
+  {
+    return !hasNextChunk();
+  }
+
+  @Override
+  public Object nextChunk()
+    throws IOException
+  {
+    if (_position >= _end) return null;
+
+    int length = (int) Math.min(_chunkSize, _end - _position);
+
+    ChannelBuffer chunk;
+    if (_contentInfo.content != null)
+    {
+      chunk = _contentInfo.content.slice((int) _position, length);
+    }
+    else
+    {
+      if (_lease == null)
+      {
+        _lease = _contentInfo.openChannel();
+      }
+
+      // each chunk gets its own buffer, as SSL may still hold the previous one; reads are positional
+      // because the pooled channel is shared with other responses
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining())
+      {
+        int n = _lease.channel.read(buffer, _position + buffer.position());
+        if (n < 0) throw new EOFException("file shrank while sending: " + _contentInfo.file);
+      }
+      buffer.flip();
+      chunk = ChannelBuffers.wrappedBuffer(buffer);
+    }
+
+    _position += length;
+    return chunk;
+  }
+
+  @Override
+  public void close()
+  {
+    if (_lease != null)
+    {
+      _lease.release();
+      _lease = null;
+    }
+  }
+}
@@ -0,0 +1,370 @@
+package io.viper.core.server.file;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Budgets the file descriptors and mapped bytes held by static content, process-wide.
+ *
+ * Content that fits in memory is mapped and its channel closed right away: a mapping stays valid after
+ * its channel is closed.  Content sent from disk borrows a channel from the pool while a response is
+ * being written, and idle channels are closed, least recently used first, once more than maxOpenFiles
+ * are open.  Channels that are in use are never closed, so the limit can be exceeded briefly under load,
+ * but open descriptors no longer grow with the number of cached files.
+ *
+ * Java cannot unmap a buffer, so mapped bytes are given back to the budget when content is disposed and
+ * the memory itself when the buffer is collected.
+ */
+public class FileChannelPool
+{
+  public static final int DEFAULT_MAX_OPEN_FILES = 256;
+  public static final long DEFAULT_MAX_MAPPED_BYTES = 1024L * 1024 * 1024;
+
+  public static final FileChannelPool SHARED = new FileChannelPool(DEFAULT_MAX_OPEN_FILES, DEFAULT_MAX_MAPPED_BYTES);
+
+  private volatile int _maxOpenFiles;
+  private volatile long _maxMappedBytes;
+
+  /** pooled channels in least recently used order, keyed by the content they read */
+  private final LinkedHashMap<FileContentInfo, Entry> _channels = new LinkedHashMap<FileContentInfo, Entry>(16, 0.75f, true);
+  private final Map<FileChannel, Entry> _retired = new IdentityHashMap<FileChannel, Entry>();
+  private int _openFiles;
+
+  private final AtomicLong _mappedBytes = new AtomicLong();
+  private final AtomicLong _openCount = new AtomicLong();
+  private final AtomicLong _closeCount = new AtomicLong();
+  private final AtomicLong _rejectedMapCount = new AtomicLong();
+
+  private static class Entry
+  {
+    final FileChannel channel;
+    int leases;
+
+    Entry(FileChannel channel)
+    {
+      this.channel = channel;
+    }
+  }
+
+  /**
+   * A channel lent out by the pool, which must be released once it is no longer read.
+   */
+  public static class Lease
+  {
+    public final FileChannel channel;
+
+    private final FileChannelPool _pool;
+    private final Entry _entry;
+    private final AtomicBoolean _released = new AtomicBoolean();
+
+    private Lease(FileChannelPool pool, Entry entry, FileChannel channel)
+    {
+      _pool = pool;
+      _entry = entry;
+      this.channel = channel;
+    }
+
+    public void release()
+    {
+      if (_pool != null && _released.compareAndSet(false, true))
+      {
+        _pool.release(_entry);
+      }
+    }
+  }
+
+  public FileChannelPool(int maxOpenFiles, long maxMappedBytes)
+  {
+    _maxOpenFiles = maxOpenFiles;
+    _maxMappedBytes = maxMappedBytes;
+  }
+
+  public void setMaxOpenFiles(int maxOpenFiles)
+  {
+    _maxOpenFiles = maxOpenFiles;
+    synchronized (this)
+    {
+      closeIdle();
+    }
+  }
+
+  public void setMaxMappedBytes(long maxMappedBytes)
+  {
+    _maxMappedBytes = maxMappedBytes;
+  }
+
+  /**
+   * Lends out a channel that belongs to someone else; releasing it does nothing.
+   */
+  public static Lease lend(FileChannel channel)
+  {
+    return new Lease(null, null, channel);
+  }
+
+  /**
+   * Maps a file if it is no larger than maxSize and the mapping fits in the budget.
+   *
+   * @return the mapping, or null if the file should be sent from disk instead
+   */
+  public ByteBuffer map(File file, long maxSize)
+    throws IOException
+  {
+    synchronized (this)
+    {
+      _openFiles++;
+      closeIdle();
+    }
+    _openCount.incrementAndGet();
+
+    // the slot is taken before the file is opened, so it is given back however the open goes
+    RandomAccessFile raf = null;
+    try
+    {
+      raf = new RandomAccessFile(file, "r");
+      FileChannel fc = raf.getChannel();
+      long size = fc.size();
+      if (size > maxSize) return null;
+      if (!reserve(size))
+      {
+        _rejectedMapCount.incrementAndGet();
+        return null;
+      }
+
+      try
+      {
+        return fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+      catch (IOException e)
+      {
+        unmapped(size);
+        throw e;
+      }
+    }
+    finally
+    {
+      if (raf != null) closeQuietly(raf.getChannel());
+      synchronized (this)
+      {
+        _openFiles--;
+      }
+    }
+  }
+
+  private boolean reserve(long size)
+  {
+    while (true)
+    {
+      long mapped = _mappedBytes.get();
+      if (mapped + size > _maxMappedBytes) return false;
+      if (_mappedBytes.compareAndSet(mapped, mapped + size)) return true;
+    }
+  }
+
+  /**
+   * Gives the bytes of a disposed mapping back to the budget.
+   */
+  public void unmapped(long size)
+  {
+    _mappedBytes.addAndGet(-size);
+  }
+
+  /**
+   * Borrows a channel for reading the file of some content, opening it if it is not pooled.
+   *
+   * @throws IOException if the file cannot be opened, or has changed since the content was loaded
+   */
+  public Lease acquire(FileContentInfo contentInfo)
+    throws IOException
+  {
+    synchronized (this)
+    {
+      Entry entry = _channels.get(contentInfo);
+      if (entry != null)
+      {
+        entry.leases++;
+        return new Lease(this, entry, entry.channel);
+      }
+      _openFiles++;
+      closeIdle();
+    }
+    _openCount.incrementAndGet();
+
+    FileChannel channel;
+    try
+    {
+      channel = open(contentInfo);
+    }
+    catch (IOException e)
+    {
+      synchronized (this)
+      {
+        _openFiles--;
+      }
+      throw e;
+    }
+
+    synchronized (this)
+    {
+      Entry entry = _channels.get(contentInfo);
+      if (entry != null)
+      {
+        // another thread opened it first
+        _openFiles--;
+        closeQuietly(channel);
+      }
+      else
+      {
+        entry = new Entry(channel);
+        _channels.put(contentInfo, entry);
+      }
+      entry.leases++;
+      return new Lease(this, entry, entry.channel);
+    }
+  }
+
+  private static FileChannel open(FileContentInfo contentInfo)
+    throws IOException
+  {
+    File file = contentInfo.file;
+    if (file == null) throw new IOException("content is not backed by a file");
+
+    FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+    boolean changed;
+    try
+    {
+      changed = channel.size() != contentInfo.getLength()
+                || (contentInfo.lastModified > 0 && file.lastModified() != contentInfo.lastModified);
+    }
+    catch (IOException e)
+    {
+      closeQuietly(channel);
+      throw e;
+    }
+    if (changed)
+    {
+      closeQuietly(channel);
+      throw new IOException("file changed since it was loaded: " + file);
+    }
+    return channel;
+  }
+
+  private synchronized void release(Entry entry)
+  {
+    if (--entry.leases > 0) return;
+
+    if (_retired.remove(entry.channel) != null)
+    {
+      close(entry);
+    }
+    else
+    {
+      closeIdle();
+    }
+  }
+
+  /**
+   * Closes the pooled channel of disposed content, once it is no longer in use.
+   */
+  public synchronized void evict(FileContentInfo contentInfo)
+  {
+    Entry entry = _channels.remove(contentInfo);
+    if (entry == null) return;
+
+    if (entry.leases == 0)
+    {
+      close(entry);
+    }
+    else
+    {
+      _retired.put(entry.channel, entry);
+    }
+  }
+
+  private void closeIdle()
+  {
+    Iterator<Entry> iterator = _channels.values().iterator();
+    while (_openFiles > _maxOpenFiles && iterator.hasNext())
+    {
+      Entry entry = iterator.next();
+      if (entry.leases == 0)
+      {
+        iterator.remove();
+        close(entry);
+      }
+    }
+  }
+
+  private void close(Entry entry)
+  {
+    _openFiles--;
+    _closeCount.incrementAndGet();
+    closeQuietly(entry.channel);
+  }
+
+  private static void closeQuietly(FileChannel channel)
+  {
+    try
+    {
+      channel.close();
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * @return the number of descriptors the pool holds open, including those being mapped
+   */
+  public synchronized int getOpenFiles()
+  {
+    return _openFiles;
+  }
+
+  public int getMaxOpenFiles()
+  {
+    return _maxOpenFiles;
+  }
+
+  /**
+   * @return the number of bytes mapped by content that has not been disposed
+   */
+  public long getMappedBytes()
+  {
+    return _mappedBytes.get();
+  }
+
+  public long getMaxMappedBytes()
+  {
+    return _maxMappedBytes;
+  }
+
+  public long getOpenCount()
+  {
+    return _openCount.get();
+  }
+
+  public long getCloseCount()
+  {
+    return _closeCount.get();
+  }
+
+  /**
+   * @return the number of files sent from disk because mapping them would have exceeded the budget
+   */
+  public long getRejectedMapCount()
+  {
+    return _rejectedMapCount.get();
+  }
+}
@@ -7,7 +7,6 @@ import java.nio.channels.FileChannel;
 import java.util.Map;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
-import org.json.JSONObject;
 
 
 public class FileChunkProxy implements HttpChunkRelayProxy
@@ -15,7 +14,6 @@ public class FileChunkProxy implements HttpChunkRelayProxy
   private final String _rootDir;
 
   String _filePath;
-  String _metaFilePath;
   RandomAccessFile _raf;
   FileChannel _fileChannel;
   Map<String, String> _objectMeta;
@@ -34,8 +32,6 @@ public class FileChunkProxy implements HttpChunkRelayProxy
   public FileChunkProxy(String rootDir)
   {
     _rootDir = rootDir;
-    _metaFilePath = _rootDir + File.separatorChar + ".meta" + File.separatorChar;
-    new File(_metaFilePath).mkdir();
   }
 
   @Override
@@ -94,11 +90,7 @@ public class FileChunkProxy implements HttpChunkRelayProxy
 
         if (_objectMeta.containsKey(HttpHeaders.Names.CONTENT_TYPE))
         {
-          File meta = new File(_metaFilePath + _objectName);
-          RandomAccessFile metaRaf = new RandomAccessFile(meta, "rw");
-          JSONObject jsonObject = new JSONObject(_objectMeta);
-          metaRaf.writeUTF(jsonObject.toString());
-          metaRaf.close();
+          MetadataLog.forDirectory(_rootDir).put(_objectName, _objectMeta);
         }
 
         _state = State.closed;
@@ -1,12 +1,17 @@
 package io.viper.core.server.file;
 
 
+import io.viper.core.server.Util;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
@@ -15,8 +20,33 @@ public class FileContentInfo
 {
   public ChannelBuffer content;
   public FileChannel fileChannel;
+  public File file;
   public Map<String, String> meta;
 
+  /** modification time in milliseconds, 0 if unknown */
+  public long lastModified;
+
+  /** the content coding of this content, e.g. gzip, or null for identity */
+  public String contentEncoding;
+
+  /** encoded copies of this content keyed by content coding; they are disposed along with it */
+  public Map<String, FileContentInfo> encodings = Collections.emptyMap();
+
+  /** the encoded headers of full responses for this content, one per cache policy, built by PreencodedResponse */
+  volatile PreencodedResponse.HeaderBlock headerBlock;
+
+  /** the fingerprint of this content, computed by AssetFingerprints */
+  volatile String fingerprint;
+
+  private volatile String _etag;
+  private volatile String _lastModifiedHeader;
+
+  private final AtomicInteger _refCount = new AtomicInteger(1);
+  private final long _length;
+
+  /** the bytes of content mapped through FileChannelPool, given back to its budget on dispose */
+  private long _mappedBytes;
+
   public FileContentInfo(ChannelBuffer content, Map<String, String> meta)
   {
     this(null, content, meta);
@@ -24,17 +54,44 @@ public class FileContentInfo
 
   public FileContentInfo(FileChannel fileChannel, ChannelBuffer content, Map<String, String> meta)
   {
+    this(null, fileChannel, content, meta);
+  }
+
+  public FileContentInfo(File file, FileChannel fileChannel, ChannelBuffer content, Map<String, String> meta)
+  {
+    this.file = file;
     this.fileChannel = fileChannel;
     this.content = content;
     this.meta = meta;
+    _length = computeLength();
   }
 
   public static FileContentInfo create(File file, Map<String, String> meta)
     throws IOException
   {
-    FileChannel fc = new RandomAccessFile(file, "r").getChannel();
-    ByteBuffer roBuf = fc.map(FileChannel.MapMode.READ_ONLY, 0, (int) fc.size());
-    FileContentInfo result = new FileContentInfo(fc, ChannelBuffers.wrappedBuffer(roBuf), meta);
+    return create(file, meta, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates content for a file, mapping it into memory if it is no larger than mapThreshold and the
+   * mapping fits in the FileChannelPool budget.  Other files are left on disk and served through channels
+   * borrowed from the pool, so no descriptor is held while the content is cached.
+   */
+  public static FileContentInfo create(File file, Map<String, String> meta, long mapThreshold)
+    throws IOException
+  {
+    ByteBuffer roBuf = FileChannelPool.SHARED.map(file, Math.min(mapThreshold, Integer.MAX_VALUE));
+    FileContentInfo result;
+    if (roBuf == null)
+    {
+      result = new FileContentInfo(file, null, null, meta);
+    }
+    else
+    {
+      result = new FileContentInfo(file, null, ChannelBuffers.wrappedBuffer(roBuf), meta);
+      result._mappedBytes = roBuf.capacity();
+    }
+    result.lastModified = file.lastModified();
     return result;
   }
 
@@ -44,9 +101,238 @@ public class FileContentInfo
     return new FileContentInfo(ChannelBuffers.wrappedBuffer(bytes), meta);
   }
 
+  public long getLength()
+  {
+    return _length;
+  }
+
+  /**
+   * Returns a strong entity tag, computed on first use.  In-memory content is tagged with a digest of its
+   * bytes; file regions, which would need a full read to digest, are tagged with length and modification time.
+   */
+  public String getETag()
+  {
+    String etag = _etag;
+    if (etag == null)
+    {
+      etag = computeETag();
+      _etag = etag;
+    }
+    return etag;
+  }
+
+  /**
+   * Sets an entity tag computed ahead of time, e.g. when the content was packed.
+   */
+  void setETag(String etag)
+  {
+    _etag = etag;
+  }
+
+  /**
+   * @return the Last-Modified header value, or null if the modification time is unknown
+   */
+  public String getLastModified()
+  {
+    if (lastModified <= 0) return null;
+
+    String lastModifiedHeader = _lastModifiedHeader;
+    if (lastModifiedHeader == null)
+    {
+      lastModifiedHeader = Util.formatHttpDate(lastModified);
+      _lastModifiedHeader = lastModifiedHeader;
+    }
+    return lastModifiedHeader;
+  }
+
+  private String computeETag()
+  {
+    if (content == null)
+    {
+      return "\"" + Long.toHexString(_length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    try
+    {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      digest.update(content.toByteBuffer(0, (int) _length));
+      byte[] hash = digest.digest();
+
+      StringBuilder sb = new StringBuilder(2 + hash.length * 2);
+      sb.append('"');
+      for (byte b : hash)
+      {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+        sb.append(Character.forDigit(b & 0xF, 16));
+      }
+      sb.append('"');
+      return sb.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the number of bytes this content holds in memory
+   */
+  public long getResidentLength()
+  {
+    long residentLength = content != null ? _length : 0;
+    for (FileContentInfo encoded : encodings.values())
+    {
+      residentLength += encoded.getResidentLength();
+    }
+    return residentLength;
+  }
+
+  /**
+   * Picks the best encoding of this content the client accepts, following RFC 7231 section 5.3.4:
+   * codings with q=0 are refused, "*" stands for every coding the header does not name, and identity is
+   * acceptable unless it is refused explicitly or through "*".  Of the codings with the highest quality
+   * the smallest is chosen.
+   *
+   * @param acceptEncoding the Accept-Encoding request header, may be null
+   * @return the encoded content, this content for identity, or null if the client accepts neither
+   */
+  public FileContentInfo selectEncoding(String acceptEncoding)
+  {
+    if (acceptEncoding == null) return this;
+
+    Map<String, Float> qualities = new HashMap<String, Float>();
+    for (String token : acceptEncoding.split(","))
+    {
+      String coding = token;
+      float quality = 1;
+
+      int semicolon = token.indexOf(';');
+      if (semicolon >= 0)
+      {
+        coding = token.substring(0, semicolon);
+        int q = token.indexOf("q=", semicolon);
+        if (q >= 0)
+        {
+          try
+          {
+            quality = Float.parseFloat(token.substring(q + 2).trim());
+          }
+          catch (NumberFormatException e)
+          {
+            quality = 0;
+          }
+        }
+      }
+
+      coding = coding.trim().toLowerCase();
+      if (!coding.isEmpty()) qualities.put(coding, quality);
+    }
+
+    Float any = qualities.get("*");
+
+    // identity is acceptable by default, but less preferred than any coding the client names
+    Float identity = qualities.get("identity");
+    float identityQuality = identity != null ? identity : any != null ? any : Float.MIN_VALUE;
+
+    FileContentInfo best = identityQuality > 0 ? this : null;
+    float bestQuality = identityQuality;
+
+    for (Map.Entry<String, FileContentInfo> entry : encodings.entrySet())
+    {
+      Float q = qualities.get(entry.getKey());
+      float quality = q != null ? q : any != null ? any : 0;
+      if (quality <= 0) continue;
+
+      FileContentInfo encoded = entry.getValue();
+      if (best == null || quality > bestQuality || (quality == bestQuality && encoded._length < best._length))
+      {
+        best = encoded;
+        bestQuality = quality;
+      }
+    }
+
+    return best;
+  }
+
+  /**
+   * @return true if the content is not in memory and has to be sent from the file
+   */
+  public boolean isFileRegion()
+  {
+    return content == null && (fileChannel != null || file != null);
+  }
+
+  /**
+   * Opens the file of this content for reading.  Content that holds its own channel lends it out, other
+   * content borrows one from FileChannelPool.  The lease must be released.
+   */
+  public FileChannelPool.Lease openChannel()
+    throws IOException
+  {
+    if (fileChannel != null) return FileChannelPool.lend(fileChannel);
+    return FileChannelPool.SHARED.acquire(this);
+  }
+
+  private long computeLength()
+  {
+    if (content != null) return content.capacity();
+
+    if (fileChannel != null)
+    {
+      try
+      {
+        return fileChannel.size();
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+
+    if (file != null) return file.length();
+
+    return 0;
+  }
+
+  /**
+   * Adds a reference to this content, e.g. for a response that is being written.
+   *
+   * @return false if the content has already been disposed
+   */
+  public boolean retain()
+  {
+    while (true)
+    {
+      int count = _refCount.get();
+      if (count <= 0) return false;
+      if (_refCount.compareAndSet(count, count + 1)) return true;
+    }
+  }
+
+  /**
+   * Drops a reference, disposing the content when the last reference is gone.
+   */
+  public void release()
+  {
+    if (_refCount.decrementAndGet() == 0)
+    {
+      dispose();
+    }
+  }
+
   public void dispose()
   {
+    for (FileContentInfo encoded : encodings.values())
+    {
+      encoded.dispose();
+    }
     if (content != null) content.clear();
+    if (_mappedBytes > 0)
+    {
+      FileChannelPool.SHARED.unmapped(_mappedBytes);
+      _mappedBytes = 0;
+    }
+    if (file != null) FileChannelPool.SHARED.evict(this);
     if (fileChannel != null) {
       try
       {
@@ -0,0 +1,26 @@
+package io.viper.core.server.file;
+
+
+/**
+ * A FileContentInfoProvider that keeps loaded content around between requests.
+ *
+ * Invalidated content is dropped from the cache but stays valid until the responses still writing it
+ * have called dispose().
+ */
+public interface FileContentInfoCache extends FileContentInfoProvider
+{
+  long getHitCount();
+  long getMissCount();
+
+  /**
+   * Drops the cached content of a path, so the next request loads it again.
+   */
+  void invalidate(String path);
+
+  void invalidateAll();
+
+  /**
+   * Registers a listener that is told about every invalidation of this cache.
+   */
+  void addInvalidationListener(InvalidationListener listener);
+}
@@ -0,0 +1,61 @@
+package io.viper.core.server.file;
+
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import org.jboss.netty.channel.FileRegion;
+
+
+/**
+ * A FileRegion over a pooled file channel.  Unlike DefaultFileRegion it never closes the channel: the
+ * channel is leased from FileChannelPool, and the lease is released when the write completes.
+ */
+class FileContentRegion implements FileRegion
+{
+  private final FileChannel _fileChannel;
+  private final long _position;
+  private final long _count;
+
+  FileContentRegion(FileChannel fileChannel, long position, long count)
+  {
+    _fileChannel = fileChannel;
+    _position = position;
+    _count = count;
+  }
+
+  @Override
+  public long getPosition()
+  {
+    return _position;
+  }
+
+  @Override
+  public long getCount()
+  {
+    return _count;
+  }
+
+  @Override
+  public long transferTo(WritableByteChannel target, long position)
+    throws IOException
+  {
+    long count = _count - position;
+    if (count < 0 || position < 0)
+    {
+      throw new IllegalArgumentException("position out of range: " + position + " (expected: 0 - " + (_count - 1) + ")");
+    }
+    if (count == 0)
+    {
+      return 0L;
+    }
+
+    return _fileChannel.transferTo(_position + position, count, target);
+  }
+
+  @Override
+  public void releaseExternalResources()
+  {
+    // NOP
+  }
+}
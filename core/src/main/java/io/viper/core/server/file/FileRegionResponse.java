@@ -0,0 +1,157 @@
+package io.viper.core.server.file;
+
+
+import io.viper.core.server.router.RouteResponse;
+import java.io.IOException;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.ssl.SslHandler;
+
+
+/**
+ * Sends a file, or ranges of a file, that is not held in memory.
+ *
+ * On plain connections the file is written as a FileRegion, which lets the kernel send it without
+ * copying it through user space.  SSL needs the bytes in user space, so on secure connections the
+ * file is streamed in chunks through the pipeline's ChunkedWriteHandler, reading from the same pooled
+ * channel instead of opening the file again.
+ */
+public class FileRegionResponse extends RouteResponse
+{
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private final FileContentInfo _contentInfo;
+  private final List<ByteRange> _ranges;
+  private final ChannelBuffer[] _partHeaders;
+  private final ChannelBuffer _trailer;
+  private final long _contentLength;
+
+  public FileRegionResponse(HttpResponse response, FileContentInfo contentInfo, RouteResponseDispose disposeHandler)
+  {
+    this(response, contentInfo, null, null, disposeHandler);
+  }
+
+  /**
+   * @param ranges the ranges to send, or null to send the whole file
+   * @param boundary the multipart boundary, required when sending more than one range
+   */
+  public FileRegionResponse(
+    HttpResponse response,
+    FileContentInfo contentInfo,
+    List<ByteRange> ranges,
+    String boundary,
+    RouteResponseDispose disposeHandler)
+  {
+    super(response, disposeHandler);
+    _contentInfo = contentInfo;
+    _ranges = ranges;
+
+    if (ranges == null)
+    {
+      _partHeaders = null;
+      _trailer = null;
+      _contentLength = contentInfo.getLength();
+    }
+    else if (ranges.size() == 1)
+    {
+      _partHeaders = null;
+      _trailer = null;
+      _contentLength = ranges.get(0).length();
+    }
+    else
+    {
+      String contentType = contentInfo.meta.get(HttpHeaders.Names.CONTENT_TYPE);
+      long contentLength = 0;
+
+      _partHeaders = new ChannelBuffer[ranges.size()];
+      for (int i = 0; i < ranges.size(); i++)
+      {
+        ByteRange range = ranges.get(i);
+        _partHeaders[i] = ByteRange.multipartHeader(boundary, contentType, range, contentInfo.getLength());
+        contentLength += _partHeaders[i].readableBytes() + range.length();
+      }
+
+      _trailer = ByteRange.multipartTrailer(boundary);
+      _contentLength = contentLength + _trailer.readableBytes();
+    }
+
+    HttpHeaders.setContentLength(response, _contentLength);
+  }
+
+  @Override
+  public long getContentLength()
+  {
+    return _contentLength;
+  }
+
+  @Override
+  public ChannelFuture write(Channel channel)
+  {
+    ChannelFuture future = channel.write(HttpResponse);
+
+    boolean isSecure = channel.getPipeline().get(SslHandler.class) != null;
+
+    try
+    {
+      if (_ranges == null)
+      {
+        return writeRegion(channel, 0, _contentInfo.getLength(), isSecure);
+      }
+
+      for (int i = 0; i < _ranges.size(); i++)
+      {
+        ByteRange range = _ranges.get(i);
+        if (_partHeaders != null)
+        {
+          channel.write(_partHeaders[i]);
+        }
+        future = writeRegion(channel, range.start, range.length(), isSecure);
+      }
+
+      if (_trailer != null)
+      {
+        future = channel.write(_trailer);
+      }
+
+      return future;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return channel.close();
+    }
+  }
+
+  private ChannelFuture writeRegion(Channel channel, long position, long count, boolean isSecure)
+    throws IOException
+  {
+    return writeRegion(channel, _contentInfo, position, count, isSecure);
+  }
+
+  static ChannelFuture writeRegion(Channel channel, FileContentInfo contentInfo, long position, long count, boolean isSecure)
+    throws IOException
+  {
+    if (!isSecure)
+    {
+      final FileChannelPool.Lease lease = contentInfo.openChannel();
+      ChannelFuture future = channel.write(new FileContentRegion(lease.channel, position, count));
+      future.addListener(new ChannelFutureListener()
+      {
+        @Override
+        public void operationComplete(ChannelFuture future)
+          throws Exception
+        {
+          lease.release();
+        }
+      });
+      return future;
+    }
+
+    return channel.write(new ChunkedFileContent(contentInfo, position, count, CHUNK_SIZE));
+  }
+}
@@ -2,12 +2,17 @@ package io.viper.core.server.file;
 
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 
-public class InsertOnlyFileContentInfoCache implements FileContentInfoProvider
+public class InsertOnlyFileContentInfoCache implements FileContentInfoCache
 {
   private final ConcurrentHashMap<String, FileContentInfo> _fileCache = new ConcurrentHashMap<String, FileContentInfo>();
 
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+  private final InvalidationListeners _listeners = new InvalidationListeners();
+
   FileContentInfoProvider _infoProvider;
 
   public InsertOnlyFileContentInfoCache(FileContentInfoProvider infoProvider)
@@ -18,29 +23,98 @@ public class InsertOnlyFileContentInfoCache implements FileContentInfoProvider
   @Override
   public FileContentInfo getFileContent(String path)
   {
-    FileContentInfo contentInfo;
-
     if (path == null) return null;
 
-    if (_fileCache.containsKey(path))
+    FileContentInfo contentInfo = _fileCache.get(path);
+
+    // content that lost a race with invalidate() has already been released and is loaded again
+    if (contentInfo != null && contentInfo.retain())
     {
-      contentInfo = _fileCache.get(path);
+      _hits.incrementAndGet();
+      return contentInfo;
     }
-    else
+
+    _misses.incrementAndGet();
+
+    contentInfo = _infoProvider.getFileContent(path);
+    if (contentInfo == null) return null;
+
+    // the cache keeps the initial reference and the caller gets its own
+    contentInfo.retain();
+
+    while (true)
     {
-      contentInfo = _infoProvider.getFileContent(path);
+      FileContentInfo existing = _fileCache.putIfAbsent(path, contentInfo);
+      if (existing == null)
+      {
+        return contentInfo;
+      }
+      if (existing.retain())
+      {
+        // another thread loaded the same file first; ours was never shared, so it can go at once
+        _infoProvider.dispose(contentInfo);
+        return existing;
+      }
+      // the entry was released by invalidate() but not yet removed; take its place, or retry if another
+      // thread got there first
+      if (_fileCache.replace(path, existing, contentInfo))
+      {
+        return contentInfo;
+      }
+    }
+  }
+
+  @Override
+  public void dispose(FileContentInfo info)
+  {
+    info.release();
+  }
+
+  @Override
+  public void invalidate(String path)
+  {
+    FileContentInfo contentInfo = _fileCache.remove(path);
+    if (contentInfo != null)
+    {
+      contentInfo.release();
+    }
+    _listeners.invalidated(path);
+  }
+
+  @Override
+  public void invalidateAll()
+  {
+    for (String path : _fileCache.keySet())
+    {
+      FileContentInfo contentInfo = _fileCache.remove(path);
       if (contentInfo != null)
       {
-        _fileCache.put(path, contentInfo);
+        contentInfo.release();
       }
     }
+    _listeners.invalidatedAll();
+  }
 
-    return contentInfo;
+  @Override
+  public void addInvalidationListener(InvalidationListener listener)
+  {
+    _listeners.add(listener);
   }
 
   @Override
-  public void dispose(FileContentInfo info)
+  public long getHitCount()
+  {
+    return _hits.get();
+  }
+
+  @Override
+  public long getMissCount()
+  {
+    return _misses.get();
+  }
+
+  public int size()
   {
-    // NOP
+    return _fileCache.size();
   }
 }
@@ -0,0 +1,13 @@
+package io.viper.core.server.file;
+
+
+/**
+ * Told about the invalidations of a FileContentInfoCache, e.g. to drop state derived from its content.
+ * Listeners are called on the invalidating thread, after the cache has dropped the content.
+ */
+public interface InvalidationListener
+{
+  void invalidated(String path);
+
+  void invalidatedAll();
+}
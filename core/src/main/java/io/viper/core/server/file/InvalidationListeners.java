@@ -0,0 +1,36 @@
+package io.viper.core.server.file;
+
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * The invalidation listeners of a cache.  Listeners are rarely added, so they are copied on write and
+ * notified without a lock.
+ */
+class InvalidationListeners
+{
+  private final List<InvalidationListener> _listeners = new CopyOnWriteArrayList<InvalidationListener>();
+
+  void add(InvalidationListener listener)
+  {
+    _listeners.add(listener);
+  }
+
+  void invalidated(String path)
+  {
+    for (InvalidationListener listener : _listeners)
+    {
+      listener.invalidated(path);
+    }
+  }
+
+  void invalidatedAll()
+  {
+    for (InvalidationListener listener : _listeners)
+    {
+      listener.invalidatedAll();
+    }
+  }
+}
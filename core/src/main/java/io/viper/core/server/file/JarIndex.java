@@ -0,0 +1,341 @@
+package io.viper.core.server.file;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+
+/**
+ * A read-only view of a jar, mapped into memory and indexed once.
+ *
+ * The central directory is parsed into an immutable entry table when the jar is first opened, and entries
+ * are read straight from the mapping: stored entries are sliced without a copy and deflated entries are
+ * inflated with a per-thread Inflater.  Reads take no locks, so any number of threads can serve content
+ * from the same jar.
+ *
+ * Jars that cannot be mapped (larger than 2GB, or zip64) are rejected with an IOException.
+ */
+public class JarIndex
+{
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int END_HEADER_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+
+  private static final ConcurrentHashMap<File, JarIndex> _indexes = new ConcurrentHashMap<File, JarIndex>();
+
+  private static final ThreadLocal<Inflater> _inflater = new ThreadLocal<Inflater>()
+  {
+    @Override
+    protected Inflater initialValue()
+    {
+      return new Inflater(true);
+    }
+  };
+
+  private final File _file;
+  private final ByteBuffer _mapped;
+  private final Map<String, Entry> _entries;
+
+  public static class Entry
+  {
+    public final String name;
+    public final long time;
+    public final int size;
+    final int method;
+    final int compressedSize;
+    final int dataOffset;
+
+    Entry(String name, long time, int size, int method, int compressedSize, int dataOffset)
+    {
+      this.name = name;
+      this.time = time;
+      this.size = size;
+      this.method = method;
+      this.compressedSize = compressedSize;
+      this.dataOffset = dataOffset;
+    }
+
+    public boolean isDirectory()
+    {
+      return name.endsWith("/");
+    }
+  }
+
+  private JarIndex(File file)
+    throws IOException
+  {
+    _file = file;
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try
+    {
+      FileChannel fc = raf.getChannel();
+      if (fc.size() > Integer.MAX_VALUE)
+      {
+        throw new IOException("jar too large to map: " + file);
+      }
+      // the mapping stays valid after the channel is closed
+      _mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    finally
+    {
+      raf.close();
+    }
+
+    _entries = Collections.unmodifiableMap(readCentralDirectory());
+  }
+
+  /**
+   * @return the shared index of the jar file, creating it on first use
+   */
+  public static JarIndex get(File jarFile)
+    throws IOException
+  {
+    JarIndex index = _indexes.get(jarFile);
+    if (index == null)
+    {
+      index = new JarIndex(jarFile);
+      JarIndex existing = _indexes.putIfAbsent(jarFile, index);
+      if (existing != null) index = existing;
+    }
+    return index;
+  }
+
+  /**
+   * @return the shared index of the jar a jar: URL points into
+   */
+  public static JarIndex get(URL jarUrl)
+    throws IOException
+  {
+    return get(getJarFile(jarUrl));
+  }
+
+  /**
+   * @return the name of the entry a jar: URL points to
+   */
+  public static String getEntryName(URL jarUrl)
+    throws IOException
+  {
+    return ((JarURLConnection) jarUrl.openConnection()).getEntryName();
+  }
+
+  private static File getJarFile(URL jarUrl)
+    throws IOException
+  {
+    URL fileUrl = ((JarURLConnection) jarUrl.openConnection()).getJarFileURL();
+    try
+    {
+      return new File(fileUrl.toURI());
+    }
+    catch (URISyntaxException e)
+    {
+      throw new IOException("unsupported jar url: " + jarUrl, e);
+    }
+    catch (IllegalArgumentException e)
+    {
+      throw new IOException("unsupported jar url: " + jarUrl, e);
+    }
+  }
+
+  public File getFile()
+  {
+    return _file;
+  }
+
+  public Entry getEntry(String name)
+  {
+    return _entries.get(name);
+  }
+
+  public Collection<Entry> getEntries()
+  {
+    return _entries.values();
+  }
+
+  /**
+   * Reads an entry.  Stored entries are returned as a slice of the mapped jar; deflated entries are
+   * inflated into a heap buffer, or into a direct buffer if requested.
+   */
+  public ChannelBuffer read(Entry entry, boolean direct)
+    throws IOException
+  {
+    ByteBuffer data = _mapped.duplicate();
+    data.position(entry.dataOffset);
+    data.limit(entry.dataOffset + entry.compressedSize);
+
+    if (entry.method == METHOD_STORED)
+    {
+      return ChannelBuffers.wrappedBuffer(data.slice());
+    }
+
+    byte[] bytes = inflate(entry, data);
+
+    if (direct)
+    {
+      ChannelBuffer buffer = ChannelBuffers.directBuffer(bytes.length);
+      buffer.writeBytes(bytes);
+      return buffer;
+    }
+
+    return ChannelBuffers.wrappedBuffer(bytes);
+  }
+
+  private static byte[] inflate(Entry entry, ByteBuffer data)
+    throws IOException
+  {
+    // raw inflate needs an extra dummy byte after the compressed data
+    byte[] input = new byte[entry.compressedSize + 1];
+    data.get(input, 0, entry.compressedSize);
+
+    byte[] output = new byte[entry.size];
+
+    Inflater inflater = _inflater.get();
+    inflater.reset();
+    inflater.setInput(input);
+
+    try
+    {
+      int offset = 0;
+      while (offset < output.length && !inflater.finished())
+      {
+        int n = inflater.inflate(output, offset, output.length - offset);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+        {
+          break;
+        }
+        offset += n;
+      }
+
+      if (offset != output.length)
+      {
+        throw new IOException("truncated jar entry: " + entry.name);
+      }
+    }
+    catch (DataFormatException e)
+    {
+      throw new IOException("corrupt jar entry: " + entry.name, e);
+    }
+
+    return output;
+  }
+
+  private Map<String, Entry> readCentralDirectory()
+    throws IOException
+  {
+    int end = findEndOfCentralDirectory();
+
+    int count = _mapped.getShort(end + 10) & 0xFFFF;
+    int offset = _mapped.getInt(end + 16);
+
+    if (count == 0xFFFF || offset == -1)
+    {
+      throw new IOException("zip64 jars are not supported: " + _file);
+    }
+
+    Map<String, Entry> entries = new HashMap<String, Entry>(count * 2);
+
+    for (int i = 0; i < count; i++)
+    {
+      if (_mapped.getInt(offset) != CENTRAL_HEADER_SIGNATURE)
+      {
+        throw new IOException("invalid central directory: " + _file);
+      }
+
+      int method = _mapped.getShort(offset + 10) & 0xFFFF;
+      int dosTime = _mapped.getShort(offset + 12) & 0xFFFF;
+      int dosDate = _mapped.getShort(offset + 14) & 0xFFFF;
+      int compressedSize = _mapped.getInt(offset + 20);
+      int size = _mapped.getInt(offset + 24);
+      int nameLength = _mapped.getShort(offset + 28) & 0xFFFF;
+      int extraLength = _mapped.getShort(offset + 30) & 0xFFFF;
+      int commentLength = _mapped.getShort(offset + 32) & 0xFFFF;
+      int localHeaderOffset = _mapped.getInt(offset + 42);
+
+      String name = readName(offset + 46, nameLength);
+
+      if (method != METHOD_STORED && method != METHOD_DEFLATED)
+      {
+        throw new IOException("unsupported compression method " + method + " for " + name + " in " + _file);
+      }
+      if (compressedSize < 0 || size < 0 || localHeaderOffset < 0)
+      {
+        throw new IOException("zip64 jars are not supported: " + _file);
+      }
+      if (_mapped.getInt(localHeaderOffset) != LOCAL_HEADER_SIGNATURE)
+      {
+        throw new IOException("invalid local header for " + name + " in " + _file);
+      }
+
+      int dataOffset = localHeaderOffset
+                       + 30
+                       + (_mapped.getShort(localHeaderOffset + 26) & 0xFFFF)
+                       + (_mapped.getShort(localHeaderOffset + 28) & 0xFFFF);
+
+      entries.put(name, new Entry(name, dosToJavaTime(dosDate, dosTime), size, method, compressedSize, dataOffset));
+
+      offset += 46 + nameLength + extraLength + commentLength;
+    }
+
+    return entries;
+  }
+
+  private int findEndOfCentralDirectory()
+    throws IOException
+  {
+    int limit = Math.max(0, _mapped.capacity() - END_HEADER_SIZE - MAX_COMMENT_SIZE);
+    for (int i = _mapped.capacity() - END_HEADER_SIZE; i >= limit; i--)
+    {
+      if (_mapped.getInt(i) == END_SIGNATURE)
+      {
+        return i;
+      }
+    }
+    throw new IOException("not a jar: " + _file);
+  }
+
+  private String readName(int offset, int length)
+    throws IOException
+  {
+    byte[] bytes = new byte[length];
+    ByteBuffer data = _mapped.duplicate();
+    data.position(offset);
+    data.get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static long dosToJavaTime(int dosDate, int dosTime)
+  {
+    Calendar calendar = Calendar.getInstance();
+    calendar.clear();
+    calendar.set(
+      ((dosDate >> 9) & 0x7F) + 1980,
+      ((dosDate >> 5) & 0x0F) - 1,
+      dosDate & 0x1F,
+      (dosTime >> 11) & 0x1F,
+      (dosTime >> 5) & 0x3F,
+      (dosTime & 0x1F) * 2);
+    return calendar.getTimeInMillis();
+  }
+}
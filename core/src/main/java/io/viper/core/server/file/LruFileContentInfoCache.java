@@ -0,0 +1,314 @@
+package io.viper.core.server.file;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A bounded FileContentInfoCache using a segmented LRU.
+ *
+ * New entries are admitted to a probation segment and only move to the protected segment once they are
+ * requested again, so a crawler walking many files once cannot flush the hot set.  The cache is bounded
+ * both by the number of entries and by the total length of the content held in memory.  Evicted content is disposed once the
+ * responses still writing it have called dispose().
+ */
+public class LruFileContentInfoCache implements FileContentInfoCache
+{
+  private static final double PROTECTED_RATIO = 0.8;
+
+  private final FileContentInfoProvider _infoProvider;
+  private final long _maxBytes;
+  private final int _maxEntries;
+  private final long _maxProtectedBytes;
+  private final int _maxProtectedEntries;
+
+  private final LinkedHashMap<String, FileContentInfo> _probation = new LinkedHashMap<String, FileContentInfo>();
+  private final LinkedHashMap<String, FileContentInfo> _protected = new LinkedHashMap<String, FileContentInfo>();
+
+  private long _probationBytes = 0;
+  private long _protectedBytes = 0;
+
+  /** bumped by every invalidation, so loads that overlap one are not cached */
+  private long _generation = 0;
+
+  private final InvalidationListeners _listeners = new InvalidationListeners();
+
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+  private final AtomicLong _evictions = new AtomicLong();
+
+  public LruFileContentInfoCache(FileContentInfoProvider infoProvider, long maxBytes, int maxEntries)
+  {
+    if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+    if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive");
+
+    _infoProvider = infoProvider;
+    _maxBytes = maxBytes;
+    _maxEntries = maxEntries;
+    _maxProtectedBytes = (long) (maxBytes * PROTECTED_RATIO);
+    _maxProtectedEntries = Math.max(1, (int) (maxEntries * PROTECTED_RATIO));
+  }
+
+  @Override
+  public FileContentInfo getFileContent(String path)
+  {
+    if (path == null) return null;
+
+    FileContentInfo contentInfo;
+    long generation;
+
+    synchronized (this)
+    {
+      contentInfo = get(path);
+      generation = _generation;
+    }
+
+    if (contentInfo != null)
+    {
+      _hits.incrementAndGet();
+      return contentInfo;
+    }
+
+    _misses.incrementAndGet();
+
+    contentInfo = _infoProvider.getFileContent(path);
+    if (contentInfo == null) return null;
+
+    if (contentInfo.getResidentLength() > _maxBytes)
+    {
+      // too large to cache: the caller owns the only reference
+      return contentInfo;
+    }
+
+    List<FileContentInfo> evicted = new ArrayList<FileContentInfo>();
+    FileContentInfo existing;
+
+    synchronized (this)
+    {
+      if (generation != _generation)
+      {
+        // the file changed while it was being loaded, so this copy may predate the change: the caller may
+        // use it, but the next request loads the file again
+        return contentInfo;
+      }
+
+      existing = get(path);
+      if (existing == null)
+      {
+        contentInfo.retain();
+        _probation.put(path, contentInfo);
+        _probationBytes += contentInfo.getResidentLength();
+        evict(evicted);
+      }
+    }
+
+    if (existing != null)
+    {
+      // another thread loaded the same file first
+      _infoProvider.dispose(contentInfo);
+      contentInfo = existing;
+    }
+
+    release(evicted);
+
+    return contentInfo;
+  }
+
+  @Override
+  public void dispose(FileContentInfo info)
+  {
+    info.release();
+  }
+
+  /**
+   * Invalidates a path here and in the wrapped provider, if it is a cache as well.
+   */
+  @Override
+  public void invalidate(String path)
+  {
+    if (_infoProvider instanceof FileContentInfoCache)
+    {
+      ((FileContentInfoCache) _infoProvider).invalidate(path);
+    }
+
+    FileContentInfo contentInfo;
+
+    synchronized (this)
+    {
+      _generation++;
+
+      contentInfo = _protected.remove(path);
+      if (contentInfo != null)
+      {
+        _protectedBytes -= contentInfo.getResidentLength();
+      }
+      else
+      {
+        contentInfo = _probation.remove(path);
+        if (contentInfo != null)
+        {
+          _probationBytes -= contentInfo.getResidentLength();
+        }
+      }
+    }
+
+    if (contentInfo != null)
+    {
+      contentInfo.release();
+    }
+    _listeners.invalidated(path);
+  }
+
+  @Override
+  public void invalidateAll()
+  {
+    if (_infoProvider instanceof FileContentInfoCache)
+    {
+      ((FileContentInfoCache) _infoProvider).invalidateAll();
+    }
+
+    List<FileContentInfo> invalidated;
+
+    synchronized (this)
+    {
+      _generation++;
+
+      invalidated = new ArrayList<FileContentInfo>(_probation.size() + _protected.size());
+      invalidated.addAll(_probation.values());
+      invalidated.addAll(_protected.values());
+      _probation.clear();
+      _protected.clear();
+      _probationBytes = 0;
+      _protectedBytes = 0;
+    }
+
+    release(invalidated);
+    _listeners.invalidatedAll();
+  }
+
+  @Override
+  public void addInvalidationListener(InvalidationListener listener)
+  {
+    _listeners.add(listener);
+  }
+
+  /**
+   * Finds an entry and records the access, promoting probation entries to the protected segment.
+   * The returned content has been retained for the caller.  Must be called while holding the lock.
+   */
+  private FileContentInfo get(String path)
+  {
+    FileContentInfo contentInfo = _protected.remove(path);
+    if (contentInfo != null)
+    {
+      _protected.put(path, contentInfo);
+    }
+    else
+    {
+      contentInfo = _probation.remove(path);
+      if (contentInfo == null) return null;
+
+      long length = contentInfo.getResidentLength();
+      _probationBytes -= length;
+      _protected.put(path, contentInfo);
+      _protectedBytes += length;
+      demote();
+    }
+
+    contentInfo.retain();
+    return contentInfo;
+  }
+
+  private void demote()
+  {
+    Iterator<String> keys = _protected.keySet().iterator();
+    while ((_protectedBytes > _maxProtectedBytes || _protected.size() > _maxProtectedEntries) && keys.hasNext())
+    {
+      String key = keys.next();
+      FileContentInfo contentInfo = _protected.get(key);
+      keys.remove();
+
+      long length = contentInfo.getResidentLength();
+      _protectedBytes -= length;
+      _probation.put(key, contentInfo);
+      _probationBytes += length;
+    }
+  }
+
+  private void evict(List<FileContentInfo> evicted)
+  {
+    evict(_probation, evicted, true);
+    evict(_protected, evicted, false);
+  }
+
+  private void evict(LinkedHashMap<String, FileContentInfo> segment, List<FileContentInfo> evicted, boolean isProbation)
+  {
+    Iterator<FileContentInfo> values = segment.values().iterator();
+    while (isOverBudget() && values.hasNext())
+    {
+      FileContentInfo contentInfo = values.next();
+      values.remove();
+
+      if (isProbation)
+      {
+        _probationBytes -= contentInfo.getResidentLength();
+      }
+      else
+      {
+        _protectedBytes -= contentInfo.getResidentLength();
+      }
+
+      evicted.add(contentInfo);
+      _evictions.incrementAndGet();
+    }
+  }
+
+  private boolean isOverBudget()
+  {
+    return (_probationBytes + _protectedBytes) > _maxBytes || (_probation.size() + _protected.size()) > _maxEntries;
+  }
+
+  private static void release(List<FileContentInfo> evicted)
+  {
+    for (FileContentInfo contentInfo : evicted)
+    {
+      contentInfo.release();
+    }
+  }
+
+  @Override
+  public long getHitCount()
+  {
+    return _hits.get();
+  }
+
+  @Override
+  public long getMissCount()
+  {
+    return _misses.get();
+  }
+
+  public FileContentInfoProvider getProvider()
+  {
+    return _infoProvider;
+  }
+
+  public long getEvictionCount()
+  {
+    return _evictions.get();
+  }
+
+  public synchronized long getResidentBytes()
+  {
+    return _probationBytes + _protectedBytes;
+  }
+
+  public synchronized int size()
+  {
+    return _probation.size() + _protected.size();
+  }
+}
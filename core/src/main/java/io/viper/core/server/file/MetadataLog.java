@@ -0,0 +1,673 @@
+package io.viper.core.server.file;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/**
+ * Object metadata for a directory, kept in a single append-only, memory-mapped log instead of one .meta
+ * file per object.
+ *
+ * Each record is framed as [int length][int crc32][payload], where the payload is a record type, the
+ * object name and, for puts, the metadata as JSON.  An in-memory hash index maps each name to its latest
+ * record, so lookups read straight from the mapping without taking a lock.  Writes are appended under a
+ * lock and forced to disk before they are indexed.
+ *
+ * On open, the log is replayed up to the first record that is truncated or fails its checksum, and
+ * anything after it, e.g. a write torn by a crash, is discarded.  Once superseded records outweigh live
+ * ones the log is compacted in the background into a new file that atomically replaces it; writers are
+ * only held up while the records appended meanwhile are copied and the new file is swapped in.
+ *
+ * Logs are shared process-wide per directory; see forDirectory() and find().
+ */
+public class MetadataLog
+{
+  public static final String FILE_NAME = ".meta.log";
+
+  private static final byte[] MAGIC = "VIPRMLOG".getBytes(Charset.forName("US-ASCII"));
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = MAGIC.length + 4;
+  private static final int FRAME_SIZE = 8;
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+  private static final int MIN_MAP_SIZE = 64 * 1024;
+  private static final int MAX_GROWTH = 64 * 1024 * 1024;
+  private static final int MIN_COMPACT_SIZE = 1024 * 1024;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final ConcurrentHashMap<File, MetadataLog> _logs = new ConcurrentHashMap<File, MetadataLog>();
+
+  /** the number of logs opened by this process, so a directory found to have none is only looked at again once one is */
+  private static volatile int _openedCount;
+
+  private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(new ThreadFactory()
+  {
+    @Override
+    public Thread newThread(Runnable runnable)
+    {
+      Thread thread = new Thread(runnable, "metadata-log-compactor");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final File _file;
+  private volatile Segment _segment;
+
+  /** held for the whole of a compaction, so only one runs at a time */
+  private final Object _compactLock = new Object();
+
+  /** the end of the last valid record; guarded by this */
+  private int _end;
+  private long _liveBytes;
+  private long _deadBytes;
+  private boolean _compacting;
+  private boolean _closed;
+
+  /**
+   * A log file, its mapping and the index into it.  Compaction replaces the whole segment, so readers
+   * always use an index together with the mapping it points into.
+   */
+  private static class Segment
+  {
+    final RandomAccessFile raf;
+    final FileChannel channel;
+    final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<String, Long>();
+    volatile MappedByteBuffer buffer;
+
+    Segment(File file)
+      throws IOException
+    {
+      raf = new RandomAccessFile(file, "rw");
+      channel = raf.getChannel();
+    }
+
+    void close()
+    {
+      try
+      {
+        raf.close();
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private MetadataLog(File file)
+    throws IOException
+  {
+    _file = file;
+    _segment = open(file);
+  }
+
+  /**
+   * @return the shared log of a directory, creating it if necessary
+   */
+  public static MetadataLog forDirectory(String directory)
+    throws IOException
+  {
+    File file = new File(directory, FILE_NAME).getCanonicalFile();
+
+    MetadataLog log = _logs.get(file);
+    if (log == null)
+    {
+      synchronized (_logs)
+      {
+        log = _logs.get(file);
+        if (log == null)
+        {
+          log = new MetadataLog(file);
+          _logs.put(file, log);
+          _openedCount++;
+        }
+      }
+    }
+    return log;
+  }
+
+  /**
+   * @return the shared log of a directory if it exists, without creating one
+   */
+  public static MetadataLog find(String directory)
+  {
+    try
+    {
+      File file = new File(directory, FILE_NAME).getCanonicalFile();
+      MetadataLog log = _logs.get(file);
+      if (log != null || !file.isFile()) return log;
+      return forDirectory(directory);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * @return the number of logs opened by this process so far
+   */
+  static int getOpenedCount()
+  {
+    return _openedCount;
+  }
+
+  public File getFile()
+  {
+    return _file;
+  }
+
+  /**
+   * @return the metadata of an object, or null if the log has none
+   */
+  public Map<String, String> get(String name)
+  {
+    Segment segment = _segment;
+
+    Long location = segment.index.get(name);
+    if (location == null) return null;
+
+    ByteBuffer record = segment.buffer.duplicate();
+    record.position(offsetOf(location) + FRAME_SIZE);
+    record.limit(offsetOf(location) + FRAME_SIZE + lengthOf(location));
+
+    record.get();
+    skipString(record);
+
+    byte[] json = new byte[record.remaining()];
+    record.get(json);
+
+    try
+    {
+      JSONObject jsonObject = new JSONObject(new String(json, UTF8));
+      Map<String, String> meta = new HashMap<String, String>();
+      Iterator<String> keys = jsonObject.keys();
+      while (keys.hasNext())
+      {
+        String key = keys.next();
+        meta.put(key, jsonObject.getString(key));
+      }
+      return meta;
+    }
+    catch (JSONException e)
+    {
+      // the checksum matched, so the writer stored something that is not metadata
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  public void put(String name, Map<String, String> meta)
+    throws IOException
+  {
+    append(PUT, name, new JSONObject(meta).toString().getBytes(UTF8));
+  }
+
+  public void remove(String name)
+    throws IOException
+  {
+    if (_segment.index.containsKey(name))
+    {
+      append(DELETE, name, new byte[0]);
+    }
+  }
+
+  public int size()
+  {
+    return _segment.index.size();
+  }
+
+  private synchronized void append(byte type, String name, byte[] value)
+    throws IOException
+  {
+    byte[] payload = encode(type, name, value);
+
+    Segment segment = _segment;
+    int offset = _end;
+    _end = write(segment, offset, payload);
+    segment.buffer.force();
+
+    Long previous = type == PUT
+      ? segment.index.put(name, locationOf(offset, payload.length))
+      : segment.index.remove(name);
+
+    if (previous != null)
+    {
+      _liveBytes -= FRAME_SIZE + lengthOf(previous);
+      _deadBytes += FRAME_SIZE + lengthOf(previous);
+    }
+
+    if (type == PUT)
+    {
+      _liveBytes += FRAME_SIZE + payload.length;
+    }
+    else
+    {
+      _deadBytes += FRAME_SIZE + payload.length;
+    }
+
+    if (!_compacting && _end > MIN_COMPACT_SIZE && _deadBytes > _liveBytes)
+    {
+      scheduleCompaction();
+    }
+  }
+
+  private void scheduleCompaction()
+  {
+    _compacting = true;
+    try
+    {
+      COMPACTOR.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            compact();
+          }
+          catch (IOException e)
+          {
+            e.printStackTrace();
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e)
+    {
+      _compacting = false;
+    }
+  }
+
+  /**
+   * Writes a framed record at an offset of a segment, without forcing it to disk.
+   *
+   * @return the end of the record
+   */
+  private int write(Segment segment, int offset, byte[] payload)
+    throws IOException
+  {
+    long end = (long) offset + FRAME_SIZE + payload.length;
+    if (end > Integer.MAX_VALUE)
+    {
+      throw new IOException("metadata log too large: " + _file);
+    }
+
+    ensureMapped(segment, (int) end);
+
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+
+    // the length goes in last, so a torn write is never mistaken for a complete record
+    MappedByteBuffer buffer = segment.buffer;
+    buffer.putInt(offset + 4, (int) crc.getValue());
+    ByteBuffer target = buffer.duplicate();
+    target.position(offset + FRAME_SIZE);
+    target.put(payload);
+    buffer.putInt(offset, payload.length);
+
+    return (int) end;
+  }
+
+  private static byte[] read(Segment segment, int offset, int length)
+  {
+    byte[] payload = new byte[length];
+    ByteBuffer record = segment.buffer.duplicate();
+    record.position(offset + FRAME_SIZE);
+    record.get(payload);
+    return payload;
+  }
+
+  /**
+   * Rewrites the live records into a new log and replaces the current one with it.  The live records are
+   * copied without holding up writers; records they append meanwhile are copied after them under the
+   * lock, and the new log is forced to disk once, before it replaces the current one.
+   */
+  public void compact()
+    throws IOException
+  {
+    synchronized (_compactLock)
+    {
+      try
+      {
+        compactSegment();
+      }
+      finally
+      {
+        synchronized (this)
+        {
+          _compacting = false;
+        }
+      }
+    }
+  }
+
+  private void compactSegment()
+    throws IOException
+  {
+    Segment current;
+    int copiedEnd;
+    Map<String, Long> live;
+
+    synchronized (this)
+    {
+      if (_closed) return;
+
+      current = _segment;
+      copiedEnd = _end;
+      live = new HashMap<String, Long>(current.index);
+    }
+
+    File compacted = new File(_file.getPath() + ".compact");
+    compacted.delete();
+
+    Segment segment = new Segment(compacted);
+
+    try
+    {
+      ensureMapped(segment, HEADER_SIZE);
+      writeHeader(segment.buffer);
+      int end = HEADER_SIZE;
+
+      // records below copiedEnd are never written again, so they are read without the lock
+      for (Map.Entry<String, Long> entry : live.entrySet())
+      {
+        long location = entry.getValue();
+        byte[] payload = read(current, offsetOf(location), lengthOf(location));
+
+        segment.index.put(entry.getKey(), locationOf(end, payload.length));
+        end = write(segment, end, payload);
+      }
+
+      synchronized (this)
+      {
+        if (_closed) throw new IOException("metadata log closed: " + _file);
+
+        // replay what was appended while the live records were copied, deletes included, so the new log
+        // recovers to the same state
+        for (int offset = copiedEnd; offset < _end; )
+        {
+          int length = current.buffer.getInt(offset);
+          byte[] payload = read(current, offset, length);
+
+          ByteBuffer fields = ByteBuffer.wrap(payload);
+          byte type = fields.get();
+          String name = readString(fields);
+
+          if (type == PUT)
+          {
+            segment.index.put(name, locationOf(end, length));
+          }
+          else
+          {
+            segment.index.remove(name);
+          }
+
+          end = write(segment, end, payload);
+          offset += FRAME_SIZE + length;
+        }
+
+        segment.buffer.force();
+        Files.move(compacted.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(_file.getParentFile());
+
+        long liveBytes = 0;
+        for (long location : segment.index.values())
+        {
+          liveBytes += FRAME_SIZE + lengthOf(location);
+        }
+
+        _segment = segment;
+        _end = end;
+        _liveBytes = liveBytes;
+        _deadBytes = end - HEADER_SIZE - liveBytes;
+      }
+    }
+    catch (IOException e)
+    {
+      segment.close();
+      compacted.delete();
+      throw e;
+    }
+
+    // readers still holding the old segment keep its mapping, which outlives the channel
+    current.close();
+  }
+
+  /**
+   * Makes a rename in a directory durable.  Not every platform can open a directory, and there the
+   * rename is left to the file system.
+   */
+  private static void forceDirectory(File directory)
+  {
+    FileChannel channel = null;
+    try
+    {
+      channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+      channel.force(true);
+    }
+    catch (IOException e)
+    {
+      // e.g. Windows, which cannot open directories
+    }
+    finally
+    {
+      if (channel != null)
+      {
+        try
+        {
+          channel.close();
+        }
+        catch (IOException e)
+        {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  public synchronized void close()
+  {
+    _closed = true;
+    _logs.remove(_file, this);
+    _segment.close();
+  }
+
+  private Segment open(File file)
+    throws IOException
+  {
+    Segment segment = new Segment(file);
+
+    try
+    {
+      long size = segment.channel.size();
+      if (size > Integer.MAX_VALUE)
+      {
+        throw new IOException("metadata log too large: " + file);
+      }
+
+      _end = 0;
+      ensureMapped(segment, Math.max(HEADER_SIZE, (int) size));
+
+      if (size < HEADER_SIZE)
+      {
+        writeHeader(segment.buffer);
+        segment.buffer.force();
+        _end = HEADER_SIZE;
+        return segment;
+      }
+
+      byte[] magic = new byte[MAGIC.length];
+      ByteBuffer header = segment.buffer.duplicate();
+      header.get(magic);
+      if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION)
+      {
+        throw new IOException("not a metadata log: " + file);
+      }
+
+      recover(segment);
+      return segment;
+    }
+    catch (IOException e)
+    {
+      segment.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Replays the log into the index, stopping at the first incomplete or corrupt record and clearing
+   * everything after it.
+   */
+  private void recover(Segment segment)
+  {
+    ByteBuffer buffer = segment.buffer;
+    int capacity = buffer.capacity();
+    int offset = HEADER_SIZE;
+
+    _liveBytes = 0;
+    _deadBytes = 0;
+
+    while (offset + FRAME_SIZE <= capacity)
+    {
+      int length = buffer.getInt(offset);
+      if (length <= 0 || length > capacity - offset - FRAME_SIZE) break;
+
+      byte[] payload = new byte[length];
+      ByteBuffer record = buffer.duplicate();
+      record.position(offset + FRAME_SIZE);
+      record.get(payload);
+
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != buffer.getInt(offset + 4)) break;
+
+      ByteBuffer fields = ByteBuffer.wrap(payload);
+      byte type = fields.get();
+      String name = readString(fields);
+
+      Long previous = type == PUT
+        ? segment.index.put(name, locationOf(offset, length))
+        : segment.index.remove(name);
+
+      if (previous != null)
+      {
+        _liveBytes -= FRAME_SIZE + lengthOf(previous);
+        _deadBytes += FRAME_SIZE + lengthOf(previous);
+      }
+      if (type == PUT)
+      {
+        _liveBytes += FRAME_SIZE + length;
+      }
+      else
+      {
+        _deadBytes += FRAME_SIZE + length;
+      }
+
+      offset += FRAME_SIZE + length;
+    }
+
+    _end = offset;
+
+    // a torn tail must not resurface behind records appended later
+    for (int i = offset; i < capacity; i++)
+    {
+      buffer.put(i, (byte) 0);
+    }
+    segment.buffer.force();
+  }
+
+  /**
+   * Maps at least size bytes of the segment's file, growing the file as needed.  The previous mapping
+   * stays valid for readers still using it.
+   */
+  private static void ensureMapped(Segment segment, int size)
+    throws IOException
+  {
+    MappedByteBuffer buffer = segment.buffer;
+    if (buffer != null && buffer.capacity() >= size) return;
+
+    long mapSize = buffer == null ? size : buffer.capacity() + Math.min(buffer.capacity(), MAX_GROWTH);
+    mapSize = Math.min(Integer.MAX_VALUE, Math.max(MIN_MAP_SIZE, Math.max(size, mapSize)));
+
+    segment.buffer = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+  }
+
+  private static void writeHeader(MappedByteBuffer buffer)
+  {
+    ByteBuffer header = buffer.duplicate();
+    header.put(MAGIC);
+    header.putInt(VERSION);
+  }
+
+  private static byte[] encode(byte type, String name, byte[] value)
+    throws IOException
+  {
+    byte[] nameBytes = name.getBytes(UTF8);
+    if (nameBytes.length > 0xFFFF)
+    {
+      throw new IOException("object name too long");
+    }
+
+    ByteBuffer payload = ByteBuffer.allocate(1 + 2 + nameBytes.length + value.length);
+    payload.put(type);
+    payload.putShort((short) nameBytes.length);
+    payload.put(nameBytes);
+    payload.put(value);
+    return payload.array();
+  }
+
+  private static String readString(ByteBuffer buffer)
+  {
+    byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+    buffer.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private static void skipString(ByteBuffer buffer)
+  {
+    int length = buffer.getShort() & 0xFFFF;
+    buffer.position(buffer.position() + length);
+  }
+
+  private static long locationOf(int offset, int length)
+  {
+    return ((long) offset << 32) | (length & 0xFFFFFFFFL);
+  }
+
+  private static int offsetOf(long location)
+  {
+    return (int) (location >>> 32);
+  }
+
+  private static int lengthOf(long location)
+  {
+    return (int) location;
+  }
+}
@@ -0,0 +1,147 @@
+package io.viper.core.server.file;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Remembers paths the wrapped provider could not find, so repeated requests for missing files do not
+ * hit the filesystem again until the entry expires or is invalidated.
+ *
+ * Hits are lookups answered from the cache ("absorbed"); misses are lookups passed to the provider.
+ * The number of remembered paths is bounded, dropping the oldest first.
+ */
+public class NegativeLookupCache implements FileContentInfoCache
+{
+  private final FileContentInfoProvider _infoProvider;
+  private final long _ttlNanos;
+  private final LinkedHashMap<String, Long> _missing;
+
+  private long _generation = 0;
+
+  private final InvalidationListeners _listeners = new InvalidationListeners();
+
+  private final AtomicLong _absorbed = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+
+  public NegativeLookupCache(FileContentInfoProvider infoProvider, long ttlMillis, final int maxEntries)
+  {
+    if (ttlMillis <= 0) throw new IllegalArgumentException("ttlMillis must be positive");
+    if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive");
+
+    _infoProvider = infoProvider;
+    _ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    _missing = new LinkedHashMap<String, Long>()
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+      {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  @Override
+  public FileContentInfo getFileContent(String path)
+  {
+    if (path == null) return null;
+
+    long generation = lookup(path);
+    if (generation < 0)
+    {
+      _absorbed.incrementAndGet();
+      return null;
+    }
+
+    _misses.incrementAndGet();
+
+    FileContentInfo contentInfo = _infoProvider.getFileContent(path);
+    if (contentInfo == null)
+    {
+      synchronized (this)
+      {
+        // a file created while it was being looked up must not be remembered as missing
+        if (generation == _generation)
+        {
+          _missing.put(path, System.nanoTime() + _ttlNanos);
+        }
+      }
+    }
+
+    return contentInfo;
+  }
+
+  /**
+   * @return -1 if the path is known to be missing, otherwise the current invalidation generation
+   */
+  private synchronized long lookup(String path)
+  {
+    Long expires = _missing.get(path);
+    if (expires == null) return _generation;
+
+    if (System.nanoTime() - expires >= 0)
+    {
+      _missing.remove(path);
+      return _generation;
+    }
+
+    return -1;
+  }
+
+  @Override
+  public void dispose(FileContentInfo info)
+  {
+    _infoProvider.dispose(info);
+  }
+
+  @Override
+  public void invalidate(String path)
+  {
+    synchronized (this)
+    {
+      _generation++;
+      _missing.remove(path);
+    }
+    _listeners.invalidated(path);
+  }
+
+  @Override
+  public void invalidateAll()
+  {
+    synchronized (this)
+    {
+      _generation++;
+      _missing.clear();
+    }
+    _listeners.invalidatedAll();
+  }
+
+  @Override
+  public void addInvalidationListener(InvalidationListener listener)
+  {
+    _listeners.add(listener);
+  }
+
+  /**
+   * @return the number of lookups answered without asking the provider
+   */
+  @Override
+  public long getHitCount()
+  {
+    return _absorbed.get();
+  }
+
+  @Override
+  public long getMissCount()
+  {
+    return _misses.get();
+  }
+
+  public synchronized int size()
+  {
+    return _missing.size();
+  }
+}
@@ -0,0 +1,242 @@
+package io.viper.core.server.file;
+
+
+import io.viper.core.server.HttpClock;
+import io.viper.core.server.router.RouteResponse;
+import java.io.IOException;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.util.CharsetUtil;
+
+
+/**
+ * A full 200 response for static content whose status line and headers were encoded once, when the
+ * content was first served, and are written as raw bytes instead of going through HttpResponseEncoder.
+ * Redirects to directories are pre-encoded the same way.
+ *
+ * Only the headers that change per response, Date, Expires and Connection, are appended on write, and
+ * those come from per-second HttpClocks.
+ */
+public class PreencodedResponse extends RouteResponse
+{
+  private static final ChannelBuffer KEEP_ALIVE = line(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+  private static final ChannelBuffer CLOSE = line(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+  private static final ChannelBuffer CRLF = ChannelBuffers.unmodifiableBuffer(
+    ChannelBuffers.wrappedBuffer(new byte[]{'\r', '\n'}));
+
+  /** the most header blocks kept per content, one for each cache policy it is served with */
+  private static final int MAX_HEADER_BLOCKS = 4;
+
+  private final ChannelBuffer _headers;
+  private final HttpClock _expires;
+  private final FileContentInfo _contentInfo;
+  private boolean _keepAlive = true;
+
+  /**
+   * The encoded status line and headers of a full response for one piece of content and cache policy,
+   * linked to the blocks of the other policies the content is served with, e.g. a fingerprinted alias
+   * and the plain path.  The list is immutable and replaced as a whole when a policy is added.
+   */
+  static class HeaderBlock
+  {
+    final String cacheControl;
+    final ChannelBuffer bytes;
+    final HeaderBlock next;
+
+    HeaderBlock(String cacheControl, ChannelBuffer bytes, HeaderBlock next)
+    {
+      this.cacheControl = cacheControl;
+      this.bytes = bytes;
+      this.next = next;
+    }
+  }
+
+  /**
+   * @param contentInfo the content to send, which also holds the cached header block
+   * @param contentType the content type, which encoded variants share with the content they belong to
+   * @param vary true if the content has encoded variants
+   * @param cacheControl the Cache-Control header value
+   * @param expires the clock supplying the Expires header
+   */
+  public PreencodedResponse(
+    FileContentInfo contentInfo,
+    String contentType,
+    boolean vary,
+    String cacheControl,
+    HttpClock expires,
+    RouteResponseDispose disposeHandler)
+  {
+    this(headerBlock(contentInfo, contentType, vary, cacheControl), expires, contentInfo, disposeHandler);
+  }
+
+  private PreencodedResponse(
+    ChannelBuffer headers,
+    HttpClock expires,
+    FileContentInfo contentInfo,
+    RouteResponseDispose disposeHandler)
+  {
+    super(null, disposeHandler);
+    _headers = headers;
+    _expires = expires;
+    _contentInfo = contentInfo;
+  }
+
+  /**
+   * @param headers a header block from encodeRedirect()
+   * @param query the query string to append to the location, with its '?', or null
+   */
+  public static PreencodedResponse redirect(ChannelBuffer headers, String query)
+  {
+    ChannelBuffer end = query == null || query.isEmpty()
+      ? CRLF.duplicate()
+      : ChannelBuffers.wrappedBuffer(ChannelBuffers.copiedBuffer(query, CharsetUtil.ISO_8859_1), CRLF.duplicate());
+    return new PreencodedResponse(ChannelBuffers.wrappedBuffer(headers.duplicate(), end), null, null, null);
+  }
+
+  /**
+   * Encodes the status line and headers of a permanent redirect, to be kept and sent with redirect().
+   * The Location header comes last and is left open, so each response can append its own query.
+   */
+  public static ChannelBuffer encodeRedirect(String location)
+  {
+    StringBuilder sb = new StringBuilder(128);
+    sb.append("HTTP/1.1 301 Moved Permanently\r\n");
+    append(sb, HttpHeaders.Names.CONTENT_LENGTH, "0");
+    sb.append(HttpHeaders.Names.LOCATION).append(": ").append(location);
+
+    return ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(sb.toString().getBytes(CharsetUtil.ISO_8859_1)));
+  }
+
+  private static ChannelBuffer headerBlock(FileContentInfo contentInfo, String contentType, boolean vary, String cacheControl)
+  {
+    HeaderBlock first = contentInfo.headerBlock;
+    for (HeaderBlock headers = first; headers != null; headers = headers.next)
+    {
+      if (headers.cacheControl.equals(cacheControl)) return headers.bytes;
+    }
+
+    // racing threads may each add a block; the last one wins and the others are encoded again
+    ChannelBuffer bytes = encode(contentInfo, contentType, vary, cacheControl);
+    contentInfo.headerBlock = new HeaderBlock(cacheControl, bytes, truncate(first, MAX_HEADER_BLOCKS - 1));
+    return bytes;
+  }
+
+  /**
+   * @return a copy of the first count blocks of a list
+   */
+  private static HeaderBlock truncate(HeaderBlock headers, int count)
+  {
+    if (headers == null || count == 0) return null;
+    if (size(headers) <= count) return headers;
+    return new HeaderBlock(headers.cacheControl, headers.bytes, truncate(headers.next, count - 1));
+  }
+
+  private static int size(HeaderBlock headers)
+  {
+    int size = 0;
+    for (; headers != null; headers = headers.next)
+    {
+      size++;
+    }
+    return size;
+  }
+
+  private static ChannelBuffer encode(FileContentInfo contentInfo, String contentType, boolean vary, String cacheControl)
+  {
+    StringBuilder sb = new StringBuilder(256);
+    sb.append("HTTP/1.1 200 OK\r\n");
+    if (contentType != null)
+    {
+      append(sb, HttpHeaders.Names.CONTENT_TYPE, contentType);
+    }
+    append(sb, HttpHeaders.Names.CONTENT_LENGTH, Long.toString(contentInfo.getLength()));
+    append(sb, HttpHeaders.Names.ETAG, contentInfo.getETag());
+    if (contentInfo.getLastModified() != null)
+    {
+      append(sb, HttpHeaders.Names.LAST_MODIFIED, contentInfo.getLastModified());
+    }
+    append(sb, HttpHeaders.Names.CACHE_CONTROL, cacheControl);
+    append(sb, HttpHeaders.Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+    if (vary)
+    {
+      append(sb, HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+    }
+    if (contentInfo.contentEncoding != null)
+    {
+      append(sb, HttpHeaders.Names.CONTENT_ENCODING, contentInfo.contentEncoding);
+    }
+
+    ChannelBuffer bytes = ChannelBuffers.wrappedBuffer(sb.toString().getBytes(CharsetUtil.ISO_8859_1));
+    return ChannelBuffers.unmodifiableBuffer(bytes);
+  }
+
+  private static void append(StringBuilder sb, String name, String value)
+  {
+    sb.append(name).append(": ").append(value).append("\r\n");
+  }
+
+  private static ChannelBuffer line(String name, String value)
+  {
+    return ChannelBuffers.unmodifiableBuffer(
+      ChannelBuffers.wrappedBuffer((name + ": " + value + "\r\n").getBytes(CharsetUtil.US_ASCII)));
+  }
+
+  @Override
+  public boolean hasResponse()
+  {
+    return true;
+  }
+
+  @Override
+  public void setKeepAlive(boolean keepAlive)
+  {
+    _keepAlive = keepAlive;
+  }
+
+  @Override
+  public long getContentLength()
+  {
+    return _contentInfo != null ? _contentInfo.getLength() : 0;
+  }
+
+  @Override
+  public ChannelFuture write(Channel channel)
+  {
+    ChannelBuffer head = ChannelBuffers.wrappedBuffer(
+      _headers.duplicate(),
+      HttpClock.DATE.getHeaderLine(),
+      _expires != null ? _expires.getHeaderLine() : ChannelBuffers.EMPTY_BUFFER,
+      (_keepAlive ? KEEP_ALIVE : CLOSE).duplicate(),
+      CRLF.duplicate());
+
+    if (_contentInfo == null)
+    {
+      return channel.write(head);
+    }
+
+    boolean isSecure = channel.getPipeline().get(SslHandler.class) != null;
+
+    // SSL would encrypt a large body in one go, holding a copy of it per connection, so it is streamed
+    if (!_contentInfo.isFileRegion() && !(isSecure && _contentInfo.getLength() > FileRegionResponse.CHUNK_SIZE))
+    {
+      // the content buffer is shared by all responses for this file
+      return channel.write(ChannelBuffers.wrappedBuffer(head, _contentInfo.content.duplicate()));
+    }
+
+    channel.write(head);
+
+    try
+    {
+      return FileRegionResponse.writeRegion(channel, _contentInfo, 0, _contentInfo.getLength(), isSecure);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return channel.close();
+    }
+  }
+}
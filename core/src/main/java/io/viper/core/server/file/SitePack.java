@@ -0,0 +1,248 @@
+package io.viper.core.server.file;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+
+
+/**
+ * A read-only site pack: every asset of a site in one memory-mapped file, along with its headers,
+ * entity tags and encoded variants.
+ *
+ * Layout, big-endian:
+ *
+ *   header   magic "VIPRPACK", int version, int entry count, int slot count, int reserved, long slot table offset
+ *   data     the bytes of every variant of every asset
+ *   records  per asset: path, last modified, headers, and the offset, length and ETag of each variant
+ *   slots    an open-addressed hash table of record offsets keyed by path, 0 marking an empty slot
+ *
+ * Opening a pack maps it and reads the header; lookups hash the path and probe the slot table, so both
+ * are O(1) regardless of the number of assets.  Content is served as slices of the mapping, and no file
+ * descriptor is held once the pack is mapped.  Packs are limited to 2GB.
+ *
+ * Packs are created by SitePackBuilder.
+ */
+public class SitePack
+{
+  static final byte[] MAGIC = "VIPRPACK".getBytes(Charset.forName("US-ASCII"));
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 32;
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File _file;
+  private final ByteBuffer _mapped;
+  private final int _entryCount;
+  private final int _slotCount;
+  private final int _slotTableOffset;
+
+  private SitePack(File file, ByteBuffer mapped)
+    throws IOException
+  {
+    _file = file;
+    _mapped = mapped;
+
+    byte[] magic = new byte[MAGIC.length];
+    ByteBuffer header = mapped.duplicate();
+    header.get(magic);
+    if (!Arrays.equals(magic, MAGIC))
+    {
+      throw new IOException("not a site pack: " + file);
+    }
+
+    int version = header.getInt();
+    if (version != VERSION)
+    {
+      throw new IOException("unsupported site pack version " + version + ": " + file);
+    }
+
+    _entryCount = header.getInt();
+    _slotCount = header.getInt();
+    header.getInt();
+    _slotTableOffset = (int) header.getLong();
+
+    if (Integer.bitCount(_slotCount) != 1 || _slotTableOffset + (long) _slotCount * 4 > mapped.capacity())
+    {
+      throw new IOException("corrupt site pack: " + file);
+    }
+  }
+
+  public static SitePack open(File file)
+    throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try
+    {
+      FileChannel fc = raf.getChannel();
+      if (fc.size() > Integer.MAX_VALUE)
+      {
+        throw new IOException("site pack too large to map: " + file);
+      }
+      // the mapping stays valid after the channel is closed
+      return new SitePack(file, fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  public File getFile()
+  {
+    return _file;
+  }
+
+  public int size()
+  {
+    return _entryCount;
+  }
+
+  /**
+   * Looks up an asset.
+   *
+   * @param path the path of the asset relative to the site root, without a leading slash
+   * @return the asset, sharing the pack's memory, or null if the pack has no such asset
+   */
+  public FileContentInfo get(String path)
+  {
+    int record = find(path.getBytes(UTF8));
+    return record != 0 ? read(record) : null;
+  }
+
+  /**
+   * @return the paths of every asset in the pack
+   */
+  public List<String> getPaths()
+  {
+    List<String> paths = new ArrayList<String>(_entryCount);
+
+    for (int slot = 0; slot < _slotCount; slot++)
+    {
+      int record = _mapped.getInt(_slotTableOffset + slot * 4);
+      if (record == 0) continue;
+
+      ByteBuffer buffer = _mapped.duplicate();
+      buffer.position(record);
+      paths.add(readString(buffer));
+    }
+
+    return paths;
+  }
+
+  private int find(byte[] path)
+  {
+    int mask = _slotCount - 1;
+    int slot = hash(path) & mask;
+
+    for (int probes = 0; probes < _slotCount; probes++)
+    {
+      int record = _mapped.getInt(_slotTableOffset + slot * 4);
+      if (record == 0) return 0;
+      if (pathEquals(record, path)) return record;
+      slot = (slot + 1) & mask;
+    }
+
+    return 0;
+  }
+
+  private boolean pathEquals(int record, byte[] path)
+  {
+    if ((_mapped.getShort(record) & 0xFFFF) != path.length) return false;
+
+    int offset = record + 2;
+    for (int i = 0; i < path.length; i++)
+    {
+      if (_mapped.get(offset + i) != path[i]) return false;
+    }
+    return true;
+  }
+
+  private FileContentInfo read(int record)
+  {
+    ByteBuffer buffer = _mapped.duplicate();
+    buffer.position(record);
+
+    readString(buffer);
+    long lastModified = buffer.getLong();
+
+    int headerCount = buffer.getShort() & 0xFFFF;
+    Map<String, String> meta = new HashMap<String, String>(headerCount * 2);
+    for (int i = 0; i < headerCount; i++)
+    {
+      String key = readString(buffer);
+      meta.put(key, readString(buffer));
+    }
+
+    FileContentInfo identity = null;
+    Map<String, FileContentInfo> encodings = new HashMap<String, FileContentInfo>();
+
+    int variantCount = buffer.get() & 0xFF;
+    for (int i = 0; i < variantCount; i++)
+    {
+      String encoding = readString(buffer);
+      int offset = (int) buffer.getLong();
+      int length = buffer.getInt();
+      String etag = readString(buffer);
+
+      ByteBuffer content = _mapped.duplicate();
+      content.position(offset);
+      content.limit(offset + length);
+
+      Map<String, String> variantMeta = new HashMap<String, String>(meta);
+      variantMeta.put(HttpHeaders.Names.CONTENT_LENGTH, Integer.toString(length));
+
+      FileContentInfo variant = new FileContentInfo(ChannelBuffers.wrappedBuffer(content.slice()), variantMeta);
+      variant.lastModified = lastModified;
+      variant.setETag(etag);
+
+      if (encoding.isEmpty())
+      {
+        identity = variant;
+      }
+      else
+      {
+        variant.contentEncoding = encoding;
+        encodings.put(encoding, variant);
+      }
+    }
+
+    if (identity != null && !encodings.isEmpty())
+    {
+      identity.encodings = encodings;
+    }
+
+    return identity;
+  }
+
+  private static String readString(ByteBuffer buffer)
+  {
+    int length = buffer.getShort() & 0xFFFF;
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * FNV-1a over the UTF-8 bytes of a path.
+   */
+  static int hash(byte[] path)
+  {
+    int hash = 0x811C9DC5;
+    for (byte b : path)
+    {
+      hash ^= b & 0xFF;
+      hash *= 0x01000193;
+    }
+    return hash;
+  }
+}
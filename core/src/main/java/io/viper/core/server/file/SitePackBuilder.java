@@ -0,0 +1,428 @@
+package io.viper.core.server.file;
+
+
+import io.viper.core.server.Util;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/**
+ * Packs a directory into a SitePack.
+ *
+ * Every file under the directory becomes an asset carrying its content type, the headers recorded for it
+ * in the directory's MetadataLog or .meta sidecar, its modification time and an MD5 entity tag.
+ * Precompressed .gz and .br sidecars are packed as encodings of the file they belong to, and compressible
+ * files without a .gz sidecar are gzipped.
+ *
+ * Usage: SitePackBuilder &lt;directory&gt; &lt;pack file&gt;
+ */
+public class SitePackBuilder
+{
+  private static final String META_DIR = ".meta";
+
+  private final File _root;
+  private MetadataLog _metadataLog;
+  private boolean _compressText = true;
+
+  private static class Variant
+  {
+    final String encoding;
+    final long offset;
+    final int length;
+    final String etag;
+
+    Variant(String encoding, long offset, int length, String etag)
+    {
+      this.encoding = encoding;
+      this.offset = offset;
+      this.length = length;
+      this.etag = etag;
+    }
+  }
+
+  private static class Asset
+  {
+    final String path;
+    final long lastModified;
+    final Map<String, String> headers;
+    final List<Variant> variants = new ArrayList<Variant>();
+
+    Asset(String path, long lastModified, Map<String, String> headers)
+    {
+      this.path = path;
+      this.lastModified = lastModified;
+      this.headers = headers;
+    }
+  }
+
+  public SitePackBuilder(File root)
+  {
+    _root = root;
+  }
+
+  public SitePackBuilder setCompressText(boolean compressText)
+  {
+    _compressText = compressText;
+    return this;
+  }
+
+  public static void main(String[] args)
+    throws IOException
+  {
+    if (args.length != 2)
+    {
+      System.err.println("usage: SitePackBuilder <directory> <pack file>");
+      System.exit(1);
+    }
+
+    long start = System.currentTimeMillis();
+    int count = new SitePackBuilder(new File(args[0])).build(new File(args[1]));
+    System.out.println(String.format("packed %d assets into %s in %d ms", count, args[1], System.currentTimeMillis() - start));
+  }
+
+  /**
+   * Writes the pack.
+   *
+   * @return the number of assets packed
+   */
+  public int build(File packFile)
+    throws IOException
+  {
+    if (!_root.isDirectory())
+    {
+      throw new IOException("not a directory: " + _root);
+    }
+
+    _metadataLog = MetadataLog.find(_root.getPath());
+
+    List<String> paths = new ArrayList<String>();
+    list(_root, "", paths);
+
+    List<Asset> assets = new ArrayList<Asset>(paths.size());
+
+    CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(packFile));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(counter));
+    try
+    {
+      // the header is written last, once the offsets are known
+      out.write(new byte[SitePack.HEADER_SIZE]);
+
+      for (String path : paths)
+      {
+        assets.add(writeAsset(out, counter, path));
+      }
+
+      int slotCount = Integer.highestOneBit(Math.max(1, assets.size()) * 2 - 1) << 1;
+      int[] slots = new int[slotCount];
+
+      for (Asset asset : assets)
+      {
+        out.flush();
+        long record = counter.count;
+        if (record > Integer.MAX_VALUE)
+        {
+          throw new IOException("site pack would exceed 2GB");
+        }
+        insert(slots, asset.path, (int) record);
+        writeRecord(out, asset);
+      }
+
+      out.flush();
+      long slotTableOffset = counter.count;
+      if (slotTableOffset + slotCount * 4L > Integer.MAX_VALUE)
+      {
+        throw new IOException("site pack would exceed 2GB");
+      }
+
+      for (int slot : slots)
+      {
+        out.writeInt(slot);
+      }
+
+      out.close();
+
+      writeHeader(packFile, assets.size(), slotCount, slotTableOffset);
+    }
+    catch (IOException e)
+    {
+      out.close();
+      packFile.delete();
+      throw e;
+    }
+
+    return assets.size();
+  }
+
+  private void list(File directory, String prefix, List<String> paths)
+  {
+    File[] files = directory.listFiles();
+    if (files == null) return;
+
+    Arrays.sort(files);
+
+    for (File file : files)
+    {
+      String path = prefix + file.getName();
+      if (file.isDirectory())
+      {
+        if (!file.getName().equals(META_DIR))
+        {
+          list(file, path + "/", paths);
+        }
+      }
+      else if (path.startsWith(MetadataLog.FILE_NAME))
+      {
+        // object metadata, packed with the objects themselves
+      }
+      else if (!isSidecar(path) || !new File(_root, stripSidecar(path)).isFile())
+      {
+        paths.add(path);
+      }
+    }
+  }
+
+  private Asset writeAsset(DataOutputStream out, CountingOutputStream counter, String path)
+    throws IOException
+  {
+    File file = new File(_root, path);
+
+    Map<String, String> headers = new LinkedHashMap<String, String>();
+    headers.put(HttpHeaders.Names.CONTENT_TYPE, Util.getContentType(path));
+    readMeta(path, headers);
+    headers.remove(HttpHeaders.Names.CONTENT_LENGTH);
+
+    Asset asset = new Asset(path, file.lastModified(), headers);
+
+    byte[] bytes = readFile(file);
+    asset.variants.add(writeVariant(out, counter, "", bytes));
+
+    boolean hasGzip = false;
+    for (String[] sidecar : StaticFileContentInfoProvider.SIDECAR_ENCODINGS)
+    {
+      File encoded = new File(_root, path + sidecar[1]);
+      if (encoded.isFile())
+      {
+        asset.variants.add(writeVariant(out, counter, sidecar[0], readFile(encoded)));
+        hasGzip |= sidecar[0].equals(HttpHeaders.Values.GZIP);
+      }
+    }
+
+    if (_compressText && !hasGzip && StaticFileContentInfoProvider.isCompressible(headers.get(HttpHeaders.Names.CONTENT_TYPE)))
+    {
+      byte[] compressed = StaticFileContentInfoProvider.gzip(bytes);
+      if (compressed != null)
+      {
+        asset.variants.add(writeVariant(out, counter, HttpHeaders.Values.GZIP, compressed));
+      }
+    }
+
+    return asset;
+  }
+
+  private static Variant writeVariant(DataOutputStream out, CountingOutputStream counter, String encoding, byte[] bytes)
+    throws IOException
+  {
+    out.flush();
+    long offset = counter.count;
+    if (offset + bytes.length > Integer.MAX_VALUE)
+    {
+      throw new IOException("site pack would exceed 2GB");
+    }
+
+    out.write(bytes);
+    return new Variant(encoding, offset, bytes.length, etag(bytes));
+  }
+
+  private static void writeRecord(DataOutputStream out, Asset asset)
+    throws IOException
+  {
+    writeString(out, asset.path);
+    out.writeLong(asset.lastModified);
+
+    out.writeShort(asset.headers.size());
+    for (Map.Entry<String, String> header : asset.headers.entrySet())
+    {
+      writeString(out, header.getKey());
+      writeString(out, header.getValue());
+    }
+
+    out.writeByte(asset.variants.size());
+    for (Variant variant : asset.variants)
+    {
+      writeString(out, variant.encoding);
+      out.writeLong(variant.offset);
+      out.writeInt(variant.length);
+      writeString(out, variant.etag);
+    }
+  }
+
+  private static void writeHeader(File packFile, int entryCount, int slotCount, long slotTableOffset)
+    throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(packFile, "rw");
+    try
+    {
+      raf.write(SitePack.MAGIC);
+      raf.writeInt(SitePack.VERSION);
+      raf.writeInt(entryCount);
+      raf.writeInt(slotCount);
+      raf.writeInt(0);
+      raf.writeLong(slotTableOffset);
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  private static void insert(int[] slots, String path, int record)
+  {
+    int mask = slots.length - 1;
+    int slot = SitePack.hash(path.getBytes(SitePack.UTF8)) & mask;
+    while (slots[slot] != 0)
+    {
+      slot = (slot + 1) & mask;
+    }
+    slots[slot] = record;
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+    throws IOException
+  {
+    byte[] bytes = value.getBytes(SitePack.UTF8);
+    if (bytes.length > 0xFFFF)
+    {
+      throw new IOException("string too long for a site pack: " + value.substring(0, 64) + "...");
+    }
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  private void readMeta(String path, Map<String, String> headers)
+    throws IOException
+  {
+    Map<String, String> logged = _metadataLog != null ? _metadataLog.get(path) : null;
+    if (logged != null)
+    {
+      headers.putAll(logged);
+      return;
+    }
+
+    File metaFile = new File(new File(_root, META_DIR), path);
+    if (!metaFile.isFile()) return;
+
+    RandomAccessFile metaRaf = new RandomAccessFile(metaFile, "r");
+    try
+    {
+      JSONObject jsonObject = new JSONObject(metaRaf.readUTF());
+      Iterator<String> keys = jsonObject.keys();
+      while (keys.hasNext())
+      {
+        String key = keys.next();
+        headers.put(key, jsonObject.getString(key));
+      }
+    }
+    catch (JSONException e)
+    {
+      throw new IOException("invalid meta file: " + metaFile, e);
+    }
+    finally
+    {
+      metaRaf.close();
+    }
+  }
+
+  private static boolean isSidecar(String path)
+  {
+    return stripSidecar(path) != path;
+  }
+
+  private static String stripSidecar(String path)
+  {
+    for (String[] sidecar : StaticFileContentInfoProvider.SIDECAR_ENCODINGS)
+    {
+      if (path.endsWith(sidecar[1])) return path.substring(0, path.length() - sidecar[1].length());
+    }
+    return path;
+  }
+
+  private static byte[] readFile(File file)
+    throws IOException
+  {
+    FileInputStream input = new FileInputStream(file);
+    try
+    {
+      return Util.copyStream(input);
+    }
+    finally
+    {
+      input.close();
+    }
+  }
+
+  private static String etag(byte[] bytes)
+  {
+    try
+    {
+      byte[] hash = MessageDigest.getInstance("MD5").digest(bytes);
+
+      StringBuilder sb = new StringBuilder(2 + hash.length * 2);
+      sb.append('"');
+      for (byte b : hash)
+      {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+        sb.append(Character.forDigit(b & 0xF, 16));
+      }
+      sb.append('"');
+      return sb.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream
+  {
+    long count = 0;
+
+    CountingOutputStream(OutputStream out)
+    {
+      super(out);
+    }
+
+    @Override
+    public void write(int b)
+      throws IOException
+    {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+      throws IOException
+    {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
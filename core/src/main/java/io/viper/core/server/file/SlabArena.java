@@ -0,0 +1,160 @@
+package io.viper.core.server.file;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+
+/**
+ * Direct memory carved into fixed-size pages.
+ *
+ * Memory is reserved in slabs, allocated lazily up to the arena's capacity, and handed out as contiguous
+ * runs of pages so each allocation can be wrapped as a single direct buffer.  Slabs are never returned
+ * to the system; freed pages are reused by later allocations.
+ */
+public class SlabArena
+{
+  public static final int PAGE_SIZE = 4 * 1024;
+  public static final int DEFAULT_SLAB_SIZE = 8 * 1024 * 1024;
+
+  private final int _pagesPerSlab;
+  private final int _maxSlabs;
+  private final List<Slab> _slabs = new ArrayList<Slab>();
+  private long _usedBytes = 0;
+
+  public static class Allocation
+  {
+    public final ByteBuffer buffer;
+    private final Slab _slab;
+    private final int _firstPage;
+    private final int _pages;
+
+    private Allocation(Slab slab, int firstPage, int pages, int length)
+    {
+      _slab = slab;
+      _firstPage = firstPage;
+      _pages = pages;
+
+      ByteBuffer buffer = slab.buffer.duplicate();
+      buffer.position(firstPage * PAGE_SIZE);
+      buffer.limit(firstPage * PAGE_SIZE + length);
+      this.buffer = buffer.slice();
+    }
+  }
+
+  private static class Slab
+  {
+    final ByteBuffer buffer;
+    final BitSet used;
+
+    Slab(int size, int pages)
+    {
+      buffer = ByteBuffer.allocateDirect(size);
+      used = new BitSet(pages);
+    }
+  }
+
+  public SlabArena(long capacity)
+  {
+    this(capacity, DEFAULT_SLAB_SIZE);
+  }
+
+  public SlabArena(long capacity, int slabSize)
+  {
+    if (slabSize < PAGE_SIZE || slabSize % PAGE_SIZE != 0)
+    {
+      throw new IllegalArgumentException("slabSize must be a multiple of " + PAGE_SIZE);
+    }
+
+    _pagesPerSlab = slabSize / PAGE_SIZE;
+    _maxSlabs = (int) Math.min(Integer.MAX_VALUE, capacity / slabSize);
+  }
+
+  public long getCapacity()
+  {
+    return (long) _maxSlabs * _pagesPerSlab * PAGE_SIZE;
+  }
+
+  /**
+   * @return the largest allocation the arena can satisfy
+   */
+  public int getMaxAllocation()
+  {
+    return _maxSlabs > 0 ? _pagesPerSlab * PAGE_SIZE : 0;
+  }
+
+  /**
+   * Allocates a contiguous block of at least length bytes.
+   *
+   * @return the allocation, or null if no free run of pages is large enough
+   */
+  public synchronized Allocation allocate(int length)
+  {
+    int pages = Math.max(1, (length + PAGE_SIZE - 1) / PAGE_SIZE);
+    if (pages > _pagesPerSlab) return null;
+
+    for (Slab slab : _slabs)
+    {
+      int firstPage = findRun(slab.used, pages);
+      if (firstPage >= 0)
+      {
+        return take(slab, firstPage, pages, length);
+      }
+    }
+
+    if (_slabs.size() < _maxSlabs)
+    {
+      Slab slab = new Slab(_pagesPerSlab * PAGE_SIZE, _pagesPerSlab);
+      _slabs.add(slab);
+      return take(slab, 0, pages, length);
+    }
+
+    return null;
+  }
+
+  public synchronized void free(Allocation allocation)
+  {
+    allocation._slab.used.clear(allocation._firstPage, allocation._firstPage + allocation._pages);
+    _usedBytes -= (long) allocation._pages * PAGE_SIZE;
+  }
+
+  /**
+   * @return the number of bytes in allocated pages
+   */
+  public synchronized long getUsedBytes()
+  {
+    return _usedBytes;
+  }
+
+  /**
+   * @return the number of bytes of direct memory reserved by the arena
+   */
+  public synchronized long getReservedBytes()
+  {
+    return (long) _slabs.size() * _pagesPerSlab * PAGE_SIZE;
+  }
+
+  private Allocation take(Slab slab, int firstPage, int pages, int length)
+  {
+    slab.used.set(firstPage, firstPage + pages);
+    _usedBytes += (long) pages * PAGE_SIZE;
+    return new Allocation(slab, firstPage, pages, length);
+  }
+
+  private int findRun(BitSet used, int pages)
+  {
+    int start = used.nextClearBit(0);
+    while (start + pages <= _pagesPerSlab)
+    {
+      int next = used.nextSetBit(start);
+      if (next < 0 || next >= start + pages)
+      {
+        return start;
+      }
+      start = used.nextClearBit(next);
+    }
+    return -1;
+  }
+}
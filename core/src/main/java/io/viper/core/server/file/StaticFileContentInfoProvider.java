@@ -4,13 +4,20 @@ package io.viper.core.server.file;
 import io.viper.core.server.Util;
 
 import java.io.*;
-import java.net.JarURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.jar.JarFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
 
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.json.JSONException;
@@ -19,10 +26,29 @@ import org.json.JSONObject;
 
 public class StaticFileContentInfoProvider implements FileContentInfoProvider
 {
+  public static final long DEFAULT_SENDFILE_THRESHOLD = 1024 * 1024;
+
+  /** precompressed sidecar files, e.g. app.js.br next to app.js, keyed by content coding */
+  static final String[][] SIDECAR_ENCODINGS = new String[][]{{"br", ".br"}, {"gzip", ".gz"}};
+
   private String _rootPath;
   private final boolean _fromClasspath;
   String _metaFilePath;
   private Class _clazz;
+  private volatile long _sendFileThreshold = DEFAULT_SENDFILE_THRESHOLD;
+  private volatile boolean _compressText = false;
+  private volatile boolean _directJarContent = false;
+  private JarIndex _jarIndex;
+  private SitePack _sitePack;
+  private String _jarPrefix;
+  private volatile MetadataLog _metadataLog;
+  /** MetadataLog.getOpenedCount() when the root was last found to have no log */
+  private volatile int _metadataLogMissedAt = -1;
+  private volatile boolean _minify = false;
+  private final Map<String, List<String>> _bundles = new ConcurrentHashMap<String, List<String>>();
+
+  /** the default file each directory resolved to, keyed by directory path */
+  private final ConcurrentHashMap<String, String> _directoryIndexes = new ConcurrentHashMap<String, String>();
 
   final String[] defaultFiles = new String[]{"index.html", "index.htm"};
 
@@ -41,14 +67,402 @@ public class StaticFileContentInfoProvider implements FileContentInfoProvider
       rootPath = rootPath.replace("res://", "");
     }
 
+    if (!_fromClasspath && new File(rootPath).isFile())
+    {
+      openSitePack(new File(rootPath));
+    }
+
     _rootPath = rootPath.endsWith("/") ? rootPath : rootPath + "/";
 
     _rootPath = _rootPath.replace(File.separatorChar, '/');
     _metaFilePath = _rootPath + ".meta" + File.separatorChar;
+
+    if (_fromClasspath)
+    {
+      indexJarRoot();
+    }
+  }
+
+  /**
+   * Copies deflated jar entries into direct buffers instead of the heap.  Stored entries are always served
+   * from the mapped jar.
+   */
+  public void setDirectJarContent(boolean directJarContent)
+  {
+    _directJarContent = directJarContent;
+  }
+
+  public String getRootPath()
+  {
+    return _rootPath;
+  }
+
+  public boolean isFromClasspath()
+  {
+    return _fromClasspath;
+  }
+
+  /**
+   * @return the directory files are served from, or null if the root is not a directory, e.g. in a jar
+   */
+  public File getRootDirectory()
+  {
+    if (_sitePack != null) return null;
+    if (!_fromClasspath) return new File(_rootPath);
+
+    URL url = _clazz.getResource(_rootPath);
+    if (url == null || !url.getProtocol().equals("file")) return null;
+
+    try
+    {
+      return new File(url.toURI());
+    }
+    catch (URISyntaxException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * @return the site pack files are served from, or null if the root is not a pack
+   */
+  public SitePack getSitePack()
+  {
+    return _sitePack;
+  }
+
+  /**
+   * @return the index of the jar files are served from, or null if the root is not in a jar
+   */
+  public JarIndex getJarIndex()
+  {
+    return _jarIndex;
+  }
+
+  /**
+   * @return the name of the root directory's entry in the jar, ending with a slash
+   */
+  public String getJarPrefix()
+  {
+    return _jarPrefix;
+  }
+
+  /**
+   * Files larger than the threshold are not mapped into memory and are sent with sendfile instead.
+   */
+  public void setSendFileThreshold(long sendFileThreshold)
+  {
+    _sendFileThreshold = sendFileThreshold;
+  }
+
+  public long getSendFileThreshold()
+  {
+    return _sendFileThreshold;
+  }
+
+  /**
+   * Enables gzip compression of text content that has no .gz sidecar.  Content is compressed once, when it
+   * is loaded, and the compressed copy is kept next to the original.  Off by default; precompressed
+   * sidecars are served either way.
+   */
+  public void setCompressText(boolean compressText)
+  {
+    _compressText = compressText;
+  }
+
+  /**
+   * Minifies CSS, JavaScript and HTML as it is loaded.  Compressed copies of minified content are made
+   * from the minified bytes, so precompressed sidecars of the original are not used for it.
+   */
+  public void setMinify(boolean minify)
+  {
+    _minify = minify;
+  }
+
+  /**
+   * Declares a bundle, a path that serves the concatenation of other files in the given order.  Bundles
+   * are loaded, minified and compressed like any other file.
+   *
+   * @param path the path of the bundle relative to the root
+   * @param parts the paths of the files making up the bundle, relative to the root
+   */
+  public void addBundle(String path, List<String> parts)
+  {
+    List<String> relativeParts = new ArrayList<String>(parts.size());
+    for (String part : parts)
+    {
+      relativeParts.add(part.startsWith("/") ? part.substring(1) : part);
+    }
+    _bundles.put(path.startsWith("/") ? path.substring(1) : path, Collections.unmodifiableList(relativeParts));
+  }
+
+  /**
+   * @return the paths of the bundles that include a file
+   */
+  public List<String> getBundlesContaining(String path)
+  {
+    if (_bundles.isEmpty()) return Collections.emptyList();
+
+    List<String> bundles = new ArrayList<String>();
+    for (Map.Entry<String, List<String>> bundle : _bundles.entrySet())
+    {
+      if (bundle.getValue().contains(path))
+      {
+        bundles.add(bundle.getKey());
+      }
+    }
+    return bundles;
   }
 
   @Override
   public FileContentInfo getFileContent(String path)
+  {
+    if (_sitePack != null)
+    {
+      return loadPacked(path);
+    }
+
+    List<String> parts = path != null ? _bundles.get(path.startsWith("/") ? path.substring(1) : path) : null;
+
+    FileContentInfo result = parts != null ? loadBundle(path, parts) : load(path);
+    boolean transformed = parts != null;
+
+    if (result != null && _minify && !path.endsWith("/"))
+    {
+      FileContentInfo minified = minify(result);
+      if (minified != result)
+      {
+        result.dispose();
+        result = minified;
+        transformed = true;
+      }
+    }
+
+    if (result != null && !path.endsWith("/"))
+    {
+      addEncodings(path, result, !transformed);
+    }
+
+    return result;
+  }
+
+  /**
+   * @return the minified content, or the content itself if it cannot be minified or does not shrink
+   */
+  private static FileContentInfo minify(FileContentInfo contentInfo)
+  {
+    if (contentInfo.content == null) return contentInfo;
+
+    String contentType = contentInfo.meta.get(HttpHeaders.Names.CONTENT_TYPE);
+    if (contentType == null || !isCompressible(contentType)) return contentInfo;
+
+    byte[] bytes = new byte[(int) contentInfo.getLength()];
+    contentInfo.content.getBytes(0, bytes);
+
+    try
+    {
+      // text that is not valid UTF-8 would not survive the round trip
+      String text = Charset.forName("UTF-8").newDecoder().decode(ByteBuffer.wrap(bytes)).toString();
+      String minified = TextMinifier.minify(contentType, text);
+      if (minified == null) return contentInfo;
+
+      byte[] minifiedBytes = minified.getBytes("UTF-8");
+      if (minifiedBytes.length >= bytes.length) return contentInfo;
+
+      FileContentInfo result = FileContentInfo.create(minifiedBytes, withLength(contentInfo.meta, minifiedBytes.length));
+      result.lastModified = contentInfo.lastModified;
+      return result;
+    }
+    catch (CharacterCodingException e)
+    {
+      return contentInfo;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return contentInfo;
+    }
+  }
+
+  /**
+   * Concatenates the parts of a bundle.  Missing parts are skipped.
+   */
+  private FileContentInfo loadBundle(String path, List<String> parts)
+  {
+    String contentType = Util.getContentType(path);
+    // a script that does not end its last statement must not run into the next one
+    byte[] separator = (contentType.contains("javascript") ? ";\n" : "\n").getBytes();
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    long lastModified = 0;
+    boolean empty = true;
+
+    for (String part : parts)
+    {
+      FileContentInfo contentInfo = load(part);
+      if (contentInfo == null) continue;
+
+      try
+      {
+        if (!empty) buffer.write(separator);
+        buffer.write(readBytes(contentInfo));
+        lastModified = Math.max(lastModified, contentInfo.lastModified);
+        empty = false;
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+      finally
+      {
+        contentInfo.dispose();
+      }
+    }
+
+    if (empty) return null;
+
+    byte[] bytes = buffer.toByteArray();
+
+    Map<String, String> meta = new HashMap<String, String>();
+    meta.put(HttpHeaders.Names.CONTENT_TYPE, contentType);
+
+    try
+    {
+      FileContentInfo result = FileContentInfo.create(bytes, withLength(meta, bytes.length));
+      result.lastModified = lastModified;
+      return result;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  private static byte[] readBytes(FileContentInfo contentInfo)
+    throws IOException
+  {
+    byte[] bytes = new byte[(int) contentInfo.getLength()];
+    if (contentInfo.content != null)
+    {
+      contentInfo.content.getBytes(0, bytes);
+      return bytes;
+    }
+
+    ByteBuffer target = ByteBuffer.wrap(bytes);
+    FileChannelPool.Lease lease = contentInfo.openChannel();
+    try
+    {
+      while (target.hasRemaining())
+      {
+        if (lease.channel.read(target, target.position()) < 0) break;
+      }
+    }
+    finally
+    {
+      lease.release();
+    }
+    return bytes;
+  }
+
+  private static Map<String, String> withLength(Map<String, String> meta, long length)
+  {
+    Map<String, String> copy = new HashMap<String, String>(meta);
+    copy.put(HttpHeaders.Names.CONTENT_LENGTH, Long.toString(length));
+    return copy;
+  }
+
+  /**
+   * @param useSidecars false if the content was transformed, so precompressed files no longer match it
+   */
+  private void addEncodings(String path, FileContentInfo contentInfo, boolean useSidecars)
+  {
+    Map<String, FileContentInfo> encodings = new HashMap<String, FileContentInfo>();
+
+    for (String[] sidecar : SIDECAR_ENCODINGS)
+    {
+      if (!useSidecars) break;
+
+      FileContentInfo encoded = load(path + sidecar[1]);
+      if (encoded != null)
+      {
+        encoded.contentEncoding = sidecar[0];
+        encoded.meta.put(HttpHeaders.Names.CONTENT_TYPE, contentInfo.meta.get(HttpHeaders.Names.CONTENT_TYPE));
+        encodings.put(sidecar[0], encoded);
+      }
+    }
+
+    if (_compressText
+        && !encodings.containsKey(HttpHeaders.Values.GZIP)
+        && contentInfo.content != null
+        && isCompressible(contentInfo.meta.get(HttpHeaders.Names.CONTENT_TYPE)))
+    {
+      FileContentInfo encoded = gzip(contentInfo);
+      if (encoded != null)
+      {
+        encodings.put(HttpHeaders.Values.GZIP, encoded);
+      }
+    }
+
+    if (!encodings.isEmpty())
+    {
+      contentInfo.encodings = encodings;
+    }
+  }
+
+  static boolean isCompressible(String contentType)
+  {
+    if (contentType == null) return false;
+
+    return contentType.startsWith("text/")
+           || contentType.contains("javascript")
+           || contentType.contains("json")
+           || contentType.contains("xml");
+  }
+
+  private static FileContentInfo gzip(FileContentInfo contentInfo)
+  {
+    try
+    {
+      byte[] bytes = new byte[(int) contentInfo.getLength()];
+      contentInfo.content.getBytes(0, bytes);
+
+      byte[] compressed = gzip(bytes);
+      if (compressed == null) return null;
+
+      Map<String, String> meta = new HashMap<String, String>(contentInfo.meta);
+      meta.put(HttpHeaders.Names.CONTENT_LENGTH, Long.toString(compressed.length));
+
+      FileContentInfo result = FileContentInfo.create(compressed, meta);
+      result.lastModified = contentInfo.lastModified;
+      result.contentEncoding = HttpHeaders.Values.GZIP;
+      return result;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * @return the gzipped bytes, or null if compression does not shrink them enough to be worth it
+   */
+  static byte[] gzip(byte[] bytes)
+    throws IOException
+  {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 2 + 64);
+    GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+    gzip.write(bytes);
+    gzip.close();
+
+    byte[] compressed = buffer.toByteArray();
+
+    // not worth a Vary round trip if it barely shrinks
+    return compressed.length > bytes.length * 0.9 ? null : compressed;
+  }
+
+  private FileContentInfo load(String path)
   {
     if (path == null) return null;
 
@@ -60,13 +474,11 @@ public class StaticFileContentInfoProvider implements FileContentInfoProvider
       path = path.startsWith("/") ? path.substring(1) : path;
       final String fullPath = _rootPath + path;
 
+      if (!_fromClasspath && path.startsWith(MetadataLog.FILE_NAME)) return null;
+
       if (fullPath.endsWith("/"))
       {
-        for (String defaultFileName : defaultFiles)
-        {
-          result = getFileContent(path + defaultFileName);
-          if (result != null) break;
-        }
+        result = loadDirectoryIndex(path);
       }
       else
       {
@@ -76,26 +488,21 @@ public class StaticFileContentInfoProvider implements FileContentInfoProvider
 
         if (_fromClasspath)
         {
+          if (_jarIndex != null)
+          {
+            result = loadJarEntry(_jarIndex, _jarPrefix + path, path);
+            if (result != null) return result;
+          }
+
           URL url = _clazz.getResource(fullPath);
           if (url == null)
           {
             return null;
           }
 
-          if (url.toString().startsWith("jar:")) {
-            // TODO: this is a hack to deal with the fact that jarFile seems to be non-thread safe
-            byte[] bytes;
-            synchronized (StaticFileContentInfoProvider.class) {
-              JarURLConnection conn = (JarURLConnection)url.openConnection();
-              JarFile jarFile = conn.getJarFile();
-              InputStream input = jarFile.getInputStream(conn.getJarEntry());
-              bytes = Util.copyStream(input);
-              jarFile.close();
-            }
-            meta.put(HttpHeaders.Names.CONTENT_TYPE, Util.getContentType(path));
-            meta.put(HttpHeaders.Names.CONTENT_LENGTH, Long.toString(bytes.length));
-            result = FileContentInfo.create(bytes, meta);
-            file = null;
+          if (url.toString().startsWith("jar:"))
+          {
+            return loadJarEntry(JarIndex.get(url), JarIndex.getEntryName(url), path);
           }
           else
           {
@@ -106,24 +513,10 @@ public class StaticFileContentInfoProvider implements FileContentInfoProvider
         {
           file = new File(fullPath);
 
-          File metaFile = new File(_metaFilePath + path);
-          if (metaFile.exists())
-          {
-            RandomAccessFile metaRaf = new RandomAccessFile(metaFile, "r");
-            String rawJSON = metaRaf.readUTF();
-            JSONObject jsonObject = new JSONObject(rawJSON);
-            metaRaf.close();
-
-            Iterator<String> keys = jsonObject.keys();
-            while(keys.hasNext())
-            {
-              String key = keys.next();
-              meta.put(key, jsonObject.getString(key));
-            }
-          }
+          readMeta(path, meta);
         }
 
-        if (file != null && file.exists())
+        if (file != null && file.isFile())
         {
           if (!meta.containsKey(HttpHeaders.Names.CONTENT_TYPE)) {
             meta.put(HttpHeaders.Names.CONTENT_TYPE, Util.getContentType(path));
@@ -131,7 +524,7 @@ public class StaticFileContentInfoProvider implements FileContentInfoProvider
           if (!meta.containsKey(HttpHeaders.Names.CONTENT_LENGTH)) {
             meta.put(HttpHeaders.Names.CONTENT_LENGTH, Long.toString(file.length()));
           }
-          result = FileContentInfo.create(file, meta);
+          result = FileContentInfo.create(file, meta, _sendFileThreshold);
         }
       }
     }
@@ -164,6 +557,172 @@ public class StaticFileContentInfoProvider implements FileContentInfoProvider
     return result;
   }
 
+  /**
+   * Loads the default file of a directory, trying the one it resolved to last time first.
+   */
+  private FileContentInfo loadDirectoryIndex(String path)
+  {
+    String index = _directoryIndexes.get(path);
+    if (index != null)
+    {
+      FileContentInfo result = getFileContent(path + index);
+      if (result != null) return result;
+      _directoryIndexes.remove(path, index);
+    }
+
+    for (String defaultFileName : defaultFiles)
+    {
+      FileContentInfo result = getFileContent(path + defaultFileName);
+      if (result != null)
+      {
+        _directoryIndexes.put(path, defaultFileName);
+        return result;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Forgets which default file a directory resolved to, e.g. because one of its default files changed.
+   *
+   * @param directory the path of the directory relative to the root, ending with a slash
+   */
+  void invalidateDirectoryIndex(String directory)
+  {
+    _directoryIndexes.remove(directory.startsWith("/") ? directory.substring(1) : directory);
+  }
+
+  void invalidateDirectoryIndexes()
+  {
+    _directoryIndexes.clear();
+    _metadataLogMissedAt = -1;
+  }
+
+  /**
+   * Looks for the root's metadata log again on the next load, e.g. because another process created it.
+   */
+  void invalidateMetadataLog()
+  {
+    _metadataLogMissedAt = -1;
+  }
+
+  /**
+   * Reads the metadata of an uploaded file from the root's metadata log, falling back to a .meta sidecar
+   * written before the log existed.
+   */
+  private void readMeta(String path, Map<String, String> meta)
+    throws IOException, JSONException
+  {
+    MetadataLog log = _metadataLog;
+    if (log == null)
+    {
+      // the log is created by the first upload, which may come after this provider, so it is looked for
+      // again whenever a log has been opened since the root was last found to have none
+      int opened = MetadataLog.getOpenedCount();
+      if (opened != _metadataLogMissedAt)
+      {
+        log = _metadataLog = MetadataLog.find(_rootPath);
+        if (log == null) _metadataLogMissedAt = opened;
+      }
+    }
+
+    Map<String, String> logged = log != null ? log.get(path) : null;
+    if (logged != null)
+    {
+      meta.putAll(logged);
+      return;
+    }
+
+    File metaFile = new File(_metaFilePath + path);
+    if (metaFile.exists())
+    {
+      RandomAccessFile metaRaf = new RandomAccessFile(metaFile, "r");
+      String rawJSON = metaRaf.readUTF();
+      JSONObject jsonObject = new JSONObject(rawJSON);
+      metaRaf.close();
+
+      Iterator<String> keys = jsonObject.keys();
+      while(keys.hasNext())
+      {
+        String key = keys.next();
+        meta.put(key, jsonObject.getString(key));
+      }
+    }
+  }
+
+  /**
+   * Serves a root that is a site pack rather than a directory.  Packed content already carries its
+   * encodings and entity tags.
+   */
+  private FileContentInfo loadPacked(String path)
+  {
+    if (path == null) return null;
+
+    path = path.startsWith("/") ? path.substring(1) : path;
+
+    if (path.isEmpty() || path.endsWith("/"))
+    {
+      for (String defaultFileName : defaultFiles)
+      {
+        FileContentInfo result = _sitePack.get(path + defaultFileName);
+        if (result != null) return result;
+      }
+      return null;
+    }
+
+    return _sitePack.get(path);
+  }
+
+  private void openSitePack(File file)
+  {
+    try
+    {
+      _sitePack = SitePack.open(file);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  private FileContentInfo loadJarEntry(JarIndex jarIndex, String entryName, String path)
+    throws IOException
+  {
+    JarIndex.Entry entry = jarIndex.getEntry(entryName);
+    if (entry == null || entry.isDirectory()) return null;
+
+    Map<String, String> meta = new HashMap<String, String>();
+    meta.put(HttpHeaders.Names.CONTENT_TYPE, Util.getContentType(path));
+    meta.put(HttpHeaders.Names.CONTENT_LENGTH, Long.toString(entry.size));
+
+    FileContentInfo result = new FileContentInfo(jarIndex.read(entry, _directJarContent), meta);
+    result.lastModified = entry.time;
+    return result;
+  }
+
+  /**
+   * Indexes the jar holding the root directory, so lookups under the root go straight to the jar's entry
+   * table instead of through the class loader.  Roots that are not in a jar, or whose jar has no directory
+   * entry for the root, are resolved per request.
+   */
+  private void indexJarRoot()
+  {
+    URL url = _clazz.getResource(_rootPath);
+    if (url == null || !url.toString().startsWith("jar:")) return;
+
+    try
+    {
+      String prefix = JarIndex.getEntryName(url);
+      _jarIndex = JarIndex.get(url);
+      _jarPrefix = prefix.endsWith("/") ? prefix : prefix + "/";
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
   @Override
   public void dispose(FileContentInfo info)
   {
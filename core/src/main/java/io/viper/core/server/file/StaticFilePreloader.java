@@ -0,0 +1,225 @@
+package io.viper.core.server.file;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Loads every file under a provider's root into a cache, so the first requests after startup are served
+ * from memory.
+ *
+ * Directories, or batches of jar entries, are walked and loaded in parallel on a fork-join pool.  Loading
+ * stops once the given number of bytes is held in memory, since anything beyond the cache's budget would
+ * only evict what was just loaded.  .meta sidecars and precompressed variants are not loaded on their own,
+ * as they are loaded along with the file they belong to.
+ */
+public class StaticFilePreloader
+{
+  private static final String META_DIR = ".meta";
+  private static final int BATCH_SIZE = 16;
+
+  private final FileContentInfoCache _cache;
+  private final long _maxBytes;
+
+  private final AtomicInteger _files = new AtomicInteger();
+  private final AtomicLong _bytes = new AtomicLong();
+
+  public static class Result
+  {
+    public final int files;
+    public final long bytes;
+    public final long elapsedMillis;
+
+    Result(int files, long bytes, long elapsedMillis)
+    {
+      this.files = files;
+      this.bytes = bytes;
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("%d files, %d bytes in %d ms", files, bytes, elapsedMillis);
+    }
+  }
+
+  private StaticFilePreloader(FileContentInfoCache cache, long maxBytes)
+  {
+    _cache = cache;
+    _maxBytes = maxBytes;
+  }
+
+  /**
+   * Preloads using a pool with one thread per processor.
+   */
+  public static Result preload(StaticFileContentInfoProvider provider, FileContentInfoCache cache, long maxBytes)
+  {
+    ForkJoinPool pool = new ForkJoinPool();
+    try
+    {
+      return preload(provider, cache, maxBytes, pool);
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * @param provider the provider whose root is walked
+   * @param cache the cache to load into, normally wrapping the same root
+   * @param maxBytes stop loading once this many bytes are held in memory
+   */
+  public static Result preload(
+    StaticFileContentInfoProvider provider,
+    FileContentInfoCache cache,
+    long maxBytes,
+    ForkJoinPool pool)
+  {
+    long start = System.currentTimeMillis();
+
+    StaticFilePreloader preloader = new StaticFilePreloader(cache, maxBytes);
+
+    SitePack sitePack = provider.getSitePack();
+    JarIndex jarIndex = provider.getJarIndex();
+    File rootDirectory = provider.getRootDirectory();
+
+    if (sitePack != null)
+    {
+      pool.invoke(preloader.new LoadTask(sitePack.getPaths(), 0));
+    }
+    else if (jarIndex != null)
+    {
+      pool.invoke(preloader.new LoadTask(listJar(jarIndex, provider.getJarPrefix()), 0));
+    }
+    else if (rootDirectory != null && rootDirectory.isDirectory())
+    {
+      pool.invoke(preloader.new DirectoryTask(rootDirectory, ""));
+    }
+
+    return new Result(preloader._files.get(), preloader._bytes.get(), System.currentTimeMillis() - start);
+  }
+
+  private static List<String> listJar(JarIndex jarIndex, String prefix)
+  {
+    List<String> paths = new ArrayList<String>();
+
+    for (JarIndex.Entry entry : jarIndex.getEntries())
+    {
+      if (entry.isDirectory() || !entry.name.startsWith(prefix)) continue;
+
+      String path = entry.name.substring(prefix.length());
+      if (!path.startsWith(META_DIR + "/") && !isSidecar(path))
+      {
+        paths.add(path);
+      }
+    }
+
+    return paths;
+  }
+
+  private static boolean isSidecar(String path)
+  {
+    for (String[] sidecar : StaticFileContentInfoProvider.SIDECAR_ENCODINGS)
+    {
+      if (path.endsWith(sidecar[1])) return true;
+    }
+    return false;
+  }
+
+  private void load(String path)
+  {
+    if (_bytes.get() >= _maxBytes) return;
+
+    FileContentInfo contentInfo = _cache.getFileContent(path);
+    if (contentInfo == null) return;
+
+    _files.incrementAndGet();
+    _bytes.addAndGet(contentInfo.getResidentLength());
+    _cache.dispose(contentInfo);
+  }
+
+  private class DirectoryTask extends RecursiveAction
+  {
+    private final File _directory;
+    private final String _prefix;
+
+    DirectoryTask(File directory, String prefix)
+    {
+      _directory = directory;
+      _prefix = prefix;
+    }
+
+    @Override
+    protected void compute()
+    {
+      File[] files = _directory.listFiles();
+      if (files == null || _bytes.get() >= _maxBytes) return;
+
+      List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+      List<String> paths = new ArrayList<String>();
+
+      for (File file : files)
+      {
+        String path = _prefix + file.getName();
+
+        if (file.isDirectory())
+        {
+          if (!file.getName().equals(META_DIR))
+          {
+            tasks.add(new DirectoryTask(file, path + "/"));
+          }
+        }
+        else if (!isSidecar(path) && !file.getName().startsWith(MetadataLog.FILE_NAME))
+        {
+          paths.add(path);
+        }
+      }
+
+      tasks.add(new LoadTask(paths, 0));
+      invokeAll(tasks);
+    }
+  }
+
+  private class LoadTask extends RecursiveAction
+  {
+    private final List<String> _paths;
+    private final int _start;
+    private final int _end;
+
+    LoadTask(List<String> paths, int start)
+    {
+      this(paths, start, paths.size());
+    }
+
+    LoadTask(List<String> paths, int start, int end)
+    {
+      _paths = paths;
+      _start = start;
+      _end = end;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (_end - _start > BATCH_SIZE)
+      {
+        int middle = (_start + _end) >>> 1;
+        invokeAll(new LoadTask(_paths, _start, middle), new LoadTask(_paths, middle, _end));
+        return;
+      }
+
+      for (int i = _start; i < _end; i++)
+      {
+        load(_paths.get(i));
+      }
+    }
+  }
+}
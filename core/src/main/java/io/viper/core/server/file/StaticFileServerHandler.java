@@ -1,88 +1,412 @@
-package io.viper.core.server.file;
-
-
-import static org.jboss.netty.handler.codec.http.HttpHeaders.*;
-import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.*;
-import static org.jboss.netty.handler.codec.http.HttpMethod.*;
-import static org.jboss.netty.handler.codec.http.HttpResponseStatus.*;
-import static org.jboss.netty.handler.codec.http.HttpVersion.*;
-
-import io.viper.core.server.Util;
-import io.viper.core.server.router.RouteHandler;
-import io.viper.core.server.router.RouteResponse;
-import org.jboss.netty.buffer.ChannelBuffers;
-import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelFutureListener;
-import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.ExceptionEvent;
-import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
-import org.jboss.netty.handler.codec.frame.TooLongFrameException;
-import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
-import org.jboss.netty.handler.codec.http.HttpHeaders;
-import org.jboss.netty.handler.codec.http.HttpRequest;
-import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.handler.codec.http.HttpResponseStatus;
-import org.jboss.netty.util.CharsetUtil;
-
-import java.net.URISyntaxException;
-import java.util.List;
-import java.util.Map;
-
-
-public class StaticFileServerHandler implements RouteHandler
-{
-  private final FileContentInfoProvider _fileCache;
-
-  public StaticFileServerHandler(FileContentInfoProvider fileCache)
-  {
-    _fileCache = fileCache;
-  }
-
-  @Override
-  public RouteResponse exec(Map<String, String> args)
-  {
-    DefaultHttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
-
-    final String filePath;
-
-    if (!args.containsKey("path"))
-    {
-      args.put("path", "/");
-    }
-
-    try
-    {
-      filePath = Util.sanitizeUri(args.get("path"));
-    }
-    catch (URISyntaxException e)
-    {
-      e.printStackTrace();
-      response.setStatus(NOT_FOUND);
-      return new RouteResponse(response);
-    }
-
-    final FileContentInfo contentInfo = _fileCache.getFileContent(filePath);
-
-    if (contentInfo != null)
-    {
-      response.setHeader(HttpHeaders.Names.CONTENT_TYPE, contentInfo.meta.get(Names.CONTENT_TYPE));
-      response.setHeader(HttpHeaders.Names.EXPIRES, "Expires: Thu, 29 Oct 2020 17:04:19 GMT");
-      response.setContent(contentInfo.content);
-
-      return new RouteResponse(response, new RouteResponse.RouteResponseDispose(){
-        @Override
-        public void dispose()
-        {
-          _fileCache.dispose(contentInfo);
-        }
-      });
-    }
-    else
-    {
-      response.setStatus(NOT_FOUND);
-      return new RouteResponse(response);
-    }
-  }
-}
+package io.viper.core.server.file;
+
+
+import static org.jboss.netty.handler.codec.http.HttpHeaders.*;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.*;
+import static org.jboss.netty.handler.codec.http.HttpMethod.*;
+import static org.jboss.netty.handler.codec.http.HttpResponseStatus.*;
+import static org.jboss.netty.handler.codec.http.HttpVersion.*;
+
+import io.viper.core.server.HttpClock;
+import io.viper.core.server.Util;
+import io.viper.core.server.router.HttpRequestRouteHandler;
+import io.viper.core.server.router.RouteResponse;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.util.CharsetUtil;
+
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+public class StaticFileServerHandler implements HttpRequestRouteHandler
+{
+  public static final int DEFAULT_MAX_AGE = 0;
+
+  private static final int MAX_REDIRECTS = 1024;
+
+  private static final CachePolicy IMMUTABLE = new CachePolicy(AssetFingerprints.IMMUTABLE_CACHE_CONTROL, AssetFingerprints.IMMUTABLE_MAX_AGE);
+
+  private final FileContentInfoProvider _fileCache;
+  private final AssetFingerprints _fingerprints;
+  private final String _boundary = "viper-" + Long.toHexString(new Random().nextLong());
+
+  private volatile CachePolicy _cachePolicy = new CachePolicy(DEFAULT_MAX_AGE);
+
+  /**
+   * Encoded redirects from directory paths without a trailing slash to the paths with one, least recently
+   * used first; guarded by itself.  Only kept when the content comes from a cache, whose invalidations
+   * drop them.
+   */
+  private final LinkedHashMap<String, Redirect> _redirects = new LinkedHashMap<String, Redirect>(16, 0.75f, true)
+  {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Redirect> eldest)
+    {
+      return size() > MAX_REDIRECTS;
+    }
+  };
+
+  /** bumped by every invalidation, so redirects looked up across one are not kept; guarded by _redirects */
+  private long _redirectGeneration = 0;
+
+  /**
+   * A redirect to a directory, encoded for the request path it was first requested with.  Requests for
+   * the same file path through another route or URI encoding get their own location.
+   */
+  private static class Redirect
+  {
+    final String requestPath;
+    final ChannelBuffer headers;
+
+    Redirect(String requestPath, ChannelBuffer headers)
+    {
+      this.requestPath = requestPath;
+      this.headers = headers;
+    }
+  }
+
+  /**
+   * The Cache-Control value for a max age and a clock for the matching Expires header.
+   */
+  private static class CachePolicy
+  {
+    final String cacheControl;
+    final HttpClock expires;
+
+    CachePolicy(int maxAge)
+    {
+      this(maxAge > 0 ? "public, max-age=" + maxAge : HttpHeaders.Values.NO_CACHE, maxAge);
+    }
+
+    CachePolicy(String cacheControl, int maxAge)
+    {
+      this.cacheControl = cacheControl;
+      expires = new HttpClock(HttpHeaders.Names.EXPIRES, maxAge * 1000L);
+    }
+  }
+
+  /**
+   * @param fileCache the content to serve; if it is an AssetFingerprints, fingerprinted aliases are served
+   *                  as immutable
+   */
+  public StaticFileServerHandler(FileContentInfoProvider fileCache)
+  {
+    _fileCache = fileCache;
+    _fingerprints = fileCache instanceof AssetFingerprints ? (AssetFingerprints) fileCache : null;
+
+    if (fileCache instanceof FileContentInfoCache)
+    {
+      ((FileContentInfoCache) fileCache).addInvalidationListener(new InvalidationListener()
+      {
+        @Override
+        public void invalidated(String path)
+        {
+          // a directory's redirect depends on its default file, which is cached under the directory path
+          if (path.endsWith("/"))
+          {
+            String directory = path.substring(0, path.length() - 1);
+            synchronized (_redirects)
+            {
+              _redirectGeneration++;
+              _redirects.remove(directory);
+              _redirects.remove(directory.startsWith("/") ? directory.substring(1) : "/" + directory);
+            }
+          }
+        }
+
+        @Override
+        public void invalidatedAll()
+        {
+          synchronized (_redirects)
+          {
+            _redirectGeneration++;
+            _redirects.clear();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Sets how long clients may use content without revalidating it.  With a max age of 0, the default,
+   * clients revalidate on every use, which is cheap as responses carry an ETag and Last-Modified.
+   */
+  public StaticFileServerHandler setMaxAge(int seconds)
+  {
+    _cachePolicy = new CachePolicy(seconds);
+    return this;
+  }
+
+  @Override
+  public RouteResponse exec(Map<String, String> args)
+  {
+    return exec(null, args);
+  }
+
+  @Override
+  public RouteResponse exec(HttpRequest request, Map<String, String> args)
+  {
+    final String filePath;
+
+    if (!args.containsKey("path"))
+    {
+      args.put("path", "/");
+    }
+
+    try
+    {
+      filePath = Util.sanitizeUri(args.get("path"));
+    }
+    catch (URISyntaxException e)
+    {
+      e.printStackTrace();
+      return new RouteResponse(new DefaultHttpResponse(HTTP_1_1, NOT_FOUND));
+    }
+
+    // an alias is checked against the content it returns, so changed content never goes out as immutable
+    FileContentInfo aliased = _fingerprints != null ? _fingerprints.getAliasedContent(filePath) : null;
+
+    final FileContentInfo cachedInfo = aliased != null ? aliased : _fileCache.getFileContent(filePath);
+
+    if (cachedInfo == null)
+    {
+      RouteResponse redirect = request != null ? redirectToDirectory(request, filePath) : null;
+      return redirect != null ? redirect : new RouteResponse(new DefaultHttpResponse(HTTP_1_1, NOT_FOUND));
+    }
+
+    // encoded variants are owned by the cached content, so only the cached content is disposed
+    FileContentInfo contentInfo = cachedInfo;
+    boolean vary = !cachedInfo.encodings.isEmpty();
+    if (request != null)
+    {
+      contentInfo = cachedInfo.selectEncoding(request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING));
+      if (contentInfo == null)
+      {
+        _fileCache.dispose(cachedInfo);
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, NOT_ACCEPTABLE);
+        if (vary)
+        {
+          response.setHeader(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+        }
+        return new RouteResponse(response);
+      }
+    }
+
+    String contentType = cachedInfo.meta.get(Names.CONTENT_TYPE);
+    CachePolicy cachePolicy = aliased != null ? IMMUTABLE : _cachePolicy;
+
+    RouteResponse.RouteResponseDispose disposeHandler = new RouteResponse.RouteResponseDispose(){
+      @Override
+      public void dispose()
+      {
+        _fileCache.dispose(cachedInfo);
+      }
+    };
+
+    if (request != null && isNotModified(request, contentInfo))
+    {
+      HttpResponse response = createResponse(NOT_MODIFIED, contentInfo, vary, cachePolicy);
+      return new RouteResponse(response, disposeHandler);
+    }
+
+    List<ByteRange> ranges = (request != null && isRangeApplicable(request, contentInfo))
+      ? ByteRange.parse(request.getHeader(HttpHeaders.Names.RANGE), contentInfo.getLength())
+      : null;
+
+    if (ranges == null)
+    {
+      return new PreencodedResponse(contentInfo, contentType, vary, cachePolicy.cacheControl, cachePolicy.expires, disposeHandler);
+    }
+
+    if (ranges.isEmpty())
+    {
+      HttpResponse response = createResponse(REQUESTED_RANGE_NOT_SATISFIABLE, contentInfo, vary, cachePolicy);
+      response.setHeader(HttpHeaders.Names.CONTENT_RANGE, "bytes */" + contentInfo.getLength());
+      return new RouteResponse(response, disposeHandler);
+    }
+
+    HttpResponse response = createResponse(PARTIAL_CONTENT, contentInfo, vary, cachePolicy);
+    if (ranges.size() == 1)
+    {
+      response.setHeader(HttpHeaders.Names.CONTENT_TYPE, contentType);
+      response.setHeader(HttpHeaders.Names.CONTENT_RANGE, ranges.get(0).toContentRange(contentInfo.getLength()));
+    }
+    else
+    {
+      response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "multipart/byteranges; boundary=" + _boundary);
+    }
+
+    if (contentInfo.isFileRegion())
+    {
+      return new FileRegionResponse(response, contentInfo, ranges, _boundary, disposeHandler);
+    }
+
+    response.setContent(slice(contentInfo, ranges));
+
+    return new RouteResponse(response, disposeHandler);
+  }
+
+  /**
+   * Redirects a request for a directory without a trailing slash to the directory, so relative references
+   * in its default file resolve against the directory rather than its parent.
+   *
+   * @return the redirect, or null if the path is not a directory with a default file
+   */
+  private RouteResponse redirectToDirectory(HttpRequest request, String filePath)
+  {
+    if (filePath == null || filePath.isEmpty() || filePath.endsWith("/")) return null;
+
+    String uri = request.getUri();
+    int query = uri.indexOf('?');
+    int pathLength = query < 0 ? uri.length() : query;
+    String queryString = query < 0 ? null : uri.substring(query);
+
+    Redirect redirect;
+    long generation;
+    synchronized (_redirects)
+    {
+      redirect = _redirects.get(filePath);
+      generation = _redirectGeneration;
+    }
+
+    if (redirect == null
+      || redirect.requestPath.length() != pathLength
+      || !uri.startsWith(redirect.requestPath))
+    {
+      FileContentInfo index = _fileCache.getFileContent(filePath + "/");
+      if (index == null) return null;
+      _fileCache.dispose(index);
+
+      String requestPath = uri.substring(0, pathLength);
+      redirect = new Redirect(requestPath, PreencodedResponse.encodeRedirect(requestPath + "/"));
+
+      if (_fileCache instanceof FileContentInfoCache)
+      {
+        synchronized (_redirects)
+        {
+          if (generation == _redirectGeneration)
+          {
+            _redirects.put(filePath, redirect);
+          }
+        }
+      }
+    }
+
+    return PreencodedResponse.redirect(redirect.headers, queryString);
+  }
+
+  /**
+   * Creates a response without a body, for the statuses that are not pre-encoded.
+   */
+  private static HttpResponse createResponse(
+    HttpResponseStatus status,
+    FileContentInfo contentInfo,
+    boolean vary,
+    CachePolicy cachePolicy)
+  {
+    HttpResponse response = new DefaultHttpResponse(HTTP_1_1, status);
+
+    response.setHeader(HttpHeaders.Names.DATE, HttpClock.DATE.getValue());
+    response.setHeader(HttpHeaders.Names.CACHE_CONTROL, cachePolicy.cacheControl);
+    response.setHeader(HttpHeaders.Names.EXPIRES, cachePolicy.expires.getValue());
+    response.setHeader(HttpHeaders.Names.ETAG, contentInfo.getETag());
+    response.setHeader(HttpHeaders.Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+    if (contentInfo.getLastModified() != null)
+    {
+      response.setHeader(HttpHeaders.Names.LAST_MODIFIED, contentInfo.getLastModified());
+    }
+    if (vary)
+    {
+      response.setHeader(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+    }
+    if (contentInfo.contentEncoding != null)
+    {
+      response.setHeader(HttpHeaders.Names.CONTENT_ENCODING, contentInfo.contentEncoding);
+    }
+
+    return response;
+  }
+
+  private static boolean isNotModified(HttpRequest request, FileContentInfo contentInfo)
+  {
+    String ifNoneMatch = request.getHeader(HttpHeaders.Names.IF_NONE_MATCH);
+    if (ifNoneMatch != null)
+    {
+      return matchesETag(ifNoneMatch, contentInfo.getETag());
+    }
+
+    if (contentInfo.lastModified > 0)
+    {
+      long ifModifiedSince = Util.parseHttpDate(request.getHeader(HttpHeaders.Names.IF_MODIFIED_SINCE));
+      // HTTP dates have a resolution of one second
+      return ifModifiedSince >= 0 && contentInfo.lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    return false;
+  }
+
+  private static boolean isRangeApplicable(HttpRequest request, FileContentInfo contentInfo)
+  {
+    String ifRange = request.getHeader(HttpHeaders.Names.IF_RANGE);
+    if (ifRange == null) return true;
+
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\""))
+    {
+      return ifRange.equals(contentInfo.getETag());
+    }
+
+    long date = Util.parseHttpDate(ifRange);
+    return date >= 0 && contentInfo.lastModified > 0 && contentInfo.lastModified / 1000 <= date / 1000;
+  }
+
+  private static boolean matchesETag(String header, String etag)
+  {
+    for (String candidate : header.split(","))
+    {
+      candidate = candidate.trim();
+      if (candidate.equals("*")) return true;
+      if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+      if (candidate.equals(etag)) return true;
+    }
+    return false;
+  }
+
+  private ChannelBuffer slice(FileContentInfo contentInfo, List<ByteRange> ranges)
+  {
+    if (ranges.size() == 1)
+    {
+      ByteRange range = ranges.get(0);
+      return contentInfo.content.slice((int) range.start, (int) range.length());
+    }
+
+    String contentType = contentInfo.meta.get(Names.CONTENT_TYPE);
+    ChannelBuffer[] parts = new ChannelBuffer[ranges.size() * 2 + 1];
+    int i = 0;
+    for (ByteRange range : ranges)
+    {
+      parts[i++] = ByteRange.multipartHeader(_boundary, contentType, range, contentInfo.getLength());
+      parts[i++] = contentInfo.content.slice((int) range.start, (int) range.length());
+    }
+    parts[i] = ByteRange.multipartTrailer(_boundary);
+
+    return ChannelBuffers.wrappedBuffer(parts);
+  }
+}
@@ -0,0 +1,250 @@
+package io.viper.core.server.file;
+
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Watches the root of a filesystem provider and invalidates cached content when files under it are
+ * created, modified or deleted.
+ *
+ * A change to a .meta sidecar or to a precompressed variant invalidates the file it belongs to.  A change
+ * to a default file (e.g. index.html) also invalidates its directory, and a change to a part of a bundle
+ * also invalidates the bundle.  If the watch service overflows, or a watched directory goes away, the
+ * whole cache is invalidated.
+ *
+ * Invalidated content is only disposed once the responses still writing it have released it.
+ */
+public class StaticFileWatcher implements Runnable
+{
+  private static final String META_DIR = ".meta/";
+
+  private final StaticFileContentInfoProvider _provider;
+  private final Path _root;
+  private final FileContentInfoCache _cache;
+  private final List<String> _defaultFiles;
+  private final String[] _sidecarSuffixes;
+  private final WatchService _watchService;
+  private final Map<WatchKey, Path> _directories = new ConcurrentHashMap<WatchKey, Path>();
+
+  private volatile Thread _thread;
+
+  public StaticFileWatcher(StaticFileContentInfoProvider provider, FileContentInfoCache cache)
+    throws IOException
+  {
+    if (provider.isFromClasspath())
+    {
+      throw new IllegalArgumentException("classpath roots cannot be watched: " + provider.getRootPath());
+    }
+
+    _provider = provider;
+    _root = Paths.get(provider.getRootPath()).toAbsolutePath().normalize();
+    _cache = cache;
+    _defaultFiles = Arrays.asList(provider.defaultFiles);
+
+    _sidecarSuffixes = new String[StaticFileContentInfoProvider.SIDECAR_ENCODINGS.length];
+    for (int i = 0; i < _sidecarSuffixes.length; i++)
+    {
+      _sidecarSuffixes[i] = StaticFileContentInfoProvider.SIDECAR_ENCODINGS[i][1];
+    }
+
+    _watchService = FileSystems.getDefault().newWatchService();
+  }
+
+  /**
+   * Creates a watcher for the provider's root and starts it.
+   */
+  public static StaticFileWatcher watch(StaticFileContentInfoProvider provider, FileContentInfoCache cache)
+    throws IOException
+  {
+    StaticFileWatcher watcher = new StaticFileWatcher(provider, cache);
+    watcher.start();
+    return watcher;
+  }
+
+  public synchronized void start()
+    throws IOException
+  {
+    if (_thread != null) return;
+
+    if (Files.isDirectory(_root))
+    {
+      registerAll(_root);
+    }
+
+    _thread = new Thread(this, "static-file-watcher " + _root);
+    _thread.setDaemon(true);
+    _thread.start();
+  }
+
+  public synchronized void close()
+  {
+    Thread thread = _thread;
+    _thread = null;
+
+    try
+    {
+      _watchService.close();
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+
+    if (thread != null) thread.interrupt();
+  }
+
+  @Override
+  public void run()
+  {
+    while (_thread != null)
+    {
+      WatchKey key;
+      try
+      {
+        key = _watchService.take();
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      catch (ClosedWatchServiceException e)
+      {
+        return;
+      }
+
+      Path directory = _directories.get(key);
+
+      for (WatchEvent<?> event : key.pollEvents())
+      {
+        if (event.kind() == OVERFLOW || directory == null)
+        {
+          invalidateAll();
+          continue;
+        }
+
+        Path path = directory.resolve((Path) event.context());
+
+        if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+        {
+          try
+          {
+            registerAll(path);
+          }
+          catch (IOException e)
+          {
+            e.printStackTrace();
+          }
+        }
+        else if (event.kind() == ENTRY_DELETE && _directories.containsValue(path))
+        {
+          // the files below it were not necessarily reported one by one
+          invalidateAll();
+          continue;
+        }
+
+        invalidate(_root.relativize(path).toString().replace('\\', '/'));
+      }
+
+      if (!key.reset())
+      {
+        _directories.remove(key);
+        if (_directories.isEmpty() && !Files.isDirectory(_root))
+        {
+          invalidateAll();
+        }
+      }
+    }
+  }
+
+  private void registerAll(Path start)
+    throws IOException
+  {
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+    {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+        throws IOException
+      {
+        WatchKey key = dir.register(_watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        _directories.put(key, dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Invalidates everything a change to the given file, relative to the root, can affect.
+   */
+  void invalidate(String relativePath)
+  {
+    if (relativePath.startsWith(META_DIR))
+    {
+      relativePath = relativePath.substring(META_DIR.length());
+    }
+
+    if (relativePath.equals(MetadataLog.FILE_NAME))
+    {
+      _provider.invalidateMetadataLog();
+    }
+
+    invalidateKey(relativePath);
+
+    for (String bundle : _provider.getBundlesContaining(relativePath))
+    {
+      invalidateKey(bundle);
+    }
+
+    for (String suffix : _sidecarSuffixes)
+    {
+      if (relativePath.endsWith(suffix))
+      {
+        invalidateKey(relativePath.substring(0, relativePath.length() - suffix.length()));
+      }
+    }
+
+    // directories are served from their default file, and the path may itself be a directory
+    int slash = relativePath.lastIndexOf('/');
+    String name = relativePath.substring(slash + 1);
+    if (_defaultFiles.contains(name))
+    {
+      _provider.invalidateDirectoryIndex(relativePath.substring(0, slash + 1));
+      invalidateKey(relativePath.substring(0, slash + 1));
+    }
+    _provider.invalidateDirectoryIndex(relativePath + "/");
+    invalidateKey(relativePath + "/");
+  }
+
+  private void invalidateAll()
+  {
+    _provider.invalidateDirectoryIndexes();
+    _cache.invalidateAll();
+  }
+
+  /**
+   * Cache keys are request paths, which may or may not have a leading slash.
+   */
+  private void invalidateKey(String path)
+  {
+    _cache.invalidate(path);
+    _cache.invalidate("/" + path);
+  }
+}
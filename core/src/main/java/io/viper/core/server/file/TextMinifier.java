@@ -0,0 +1,459 @@
+package io.viper.core.server.file;
+
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+
+/**
+ * Conservative minifiers for CSS, JavaScript and HTML, applied to static content as it is loaded.
+ *
+ * They only remove comments and collapse whitespace, and never rename or reorder anything.  String,
+ * template and regular expression literals are copied as they are.  JavaScript keeps a line break
+ * wherever one may end a statement, so automatic semicolon insertion is unaffected.  HTML keeps the
+ * contents of pre, textarea, script and style elements and quoted attribute values as they are.
+ */
+public class TextMinifier
+{
+  private static final Set<String> REGEX_KEYWORDS = new HashSet<String>(Arrays.asList(
+    "return", "typeof", "case", "do", "else", "in", "of", "new", "delete", "void", "throw", "instanceof",
+    "yield", "await"));
+
+  private static final String[] RAW_ELEMENTS = {"pre", "textarea", "script", "style"};
+
+  /**
+   * @return the minified text, or null if the content type is not one that can be minified
+   */
+  public static String minify(String contentType, String text)
+  {
+    if (contentType == null) return null;
+
+    if (contentType.startsWith("text/css")) return minifyCss(text);
+    if (contentType.contains("javascript")) return minifyJs(text);
+    if (contentType.startsWith("text/html")) return minifyHtml(text);
+
+    return null;
+  }
+
+  public static String minifyCss(String css)
+  {
+    StringBuilder out = new StringBuilder(css.length());
+    int length = css.length();
+    int i = 0;
+
+    while (i < length)
+    {
+      char c = css.charAt(i);
+
+      if (c == '"' || c == '\'')
+      {
+        i = copyString(css, i, out);
+      }
+      else if (Character.isWhitespace(c) || css.startsWith("/*", i))
+      {
+        i = skipCssSpace(css, i, out);
+        if (i >= length) break;
+
+        char next = css.charAt(i);
+        char last = out.length() > 0 ? out.charAt(out.length() - 1) : '{';
+        if ("{};,>:(".indexOf(last) < 0 && "{};,>)".indexOf(next) < 0)
+        {
+          out.append(' ');
+        }
+      }
+      else
+      {
+        if (c == '}' && out.length() > 0 && out.charAt(out.length() - 1) == ';')
+        {
+          out.setLength(out.length() - 1);
+        }
+        out.append(c);
+        i++;
+      }
+    }
+
+    return out.toString();
+  }
+
+  /**
+   * Skips whitespace and comments, keeping comments marked /*! e.g. licenses.
+   */
+  private static int skipCssSpace(String css, int i, StringBuilder out)
+  {
+    int length = css.length();
+
+    while (i < length)
+    {
+      if (Character.isWhitespace(css.charAt(i)))
+      {
+        i++;
+      }
+      else if (css.startsWith("/*", i))
+      {
+        int end = css.indexOf("*/", i + 2);
+        end = end < 0 ? length : end + 2;
+        if (css.startsWith("/*!", i))
+        {
+          out.append(css, i, end);
+        }
+        i = end;
+      }
+      else
+      {
+        break;
+      }
+    }
+
+    return i;
+  }
+
+  public static String minifyJs(String js)
+  {
+    StringBuilder out = new StringBuilder(js.length());
+    int length = js.length();
+    int i = 0;
+
+    while (i < length)
+    {
+      char c = js.charAt(i);
+
+      if (c == '"' || c == '\'' || c == '`')
+      {
+        i = copyString(js, i, out);
+      }
+      else if (c == '/' && i + 1 < length && js.charAt(i + 1) == '/')
+      {
+        while (i < length && js.charAt(i) != '\n')
+        {
+          i++;
+        }
+      }
+      else if (c == '/' && i + 1 < length && js.charAt(i + 1) == '*')
+      {
+        int end = js.indexOf("*/", i + 2);
+        end = end < 0 ? length : end + 2;
+        if (js.startsWith("/*!", i))
+        {
+          out.append(js, i, end);
+        }
+        else
+        {
+          // a comment separates tokens like whitespace does, and may end a statement
+          boolean newline = js.substring(i, end).indexOf('\n') >= 0;
+          out.append(newline ? '\n' : ' ');
+        }
+        i = end;
+      }
+      else if (c == '/' && isRegexStart(out))
+      {
+        i = copyRegex(js, i, out);
+      }
+      else if (Character.isWhitespace(c))
+      {
+        boolean newline = false;
+        while (i < length && Character.isWhitespace(js.charAt(i)))
+        {
+          newline |= js.charAt(i) == '\n';
+          i++;
+        }
+        out.append(newline ? '\n' : ' ');
+      }
+      else
+      {
+        out.append(c);
+        i++;
+      }
+    }
+
+    return collapseJsSpace(out);
+  }
+
+  /**
+   * Drops the whitespace left between tokens wherever it is not needed to keep them apart or to end a
+   * statement.
+   */
+  private static String collapseJsSpace(CharSequence js)
+  {
+    StringBuilder out = new StringBuilder(js.length());
+    int length = js.length();
+    int i = 0;
+
+    while (i < length)
+    {
+      char c = js.charAt(i);
+
+      if (c == '"' || c == '\'' || c == '`')
+      {
+        i = copyString(js, i, out);
+        continue;
+      }
+      if (c == '/' && !(i + 1 < length && (js.charAt(i + 1) == '/' || js.charAt(i + 1) == '*')) && isRegexStart(out))
+      {
+        i = copyRegex(js, i, out);
+        continue;
+      }
+      if (c == '/' && i + 1 < length && js.charAt(i + 1) == '*')
+      {
+        // a preserved comment
+        int end = js.toString().indexOf("*/", i + 2);
+        end = end < 0 ? length : end + 2;
+        out.append(js, i, end);
+        i = end;
+        continue;
+      }
+      if (c != ' ' && c != '\n')
+      {
+        out.append(c);
+        i++;
+        continue;
+      }
+
+      boolean newline = false;
+      while (i < length && (js.charAt(i) == ' ' || js.charAt(i) == '\n'))
+      {
+        newline |= js.charAt(i) == '\n';
+        i++;
+      }
+      if (out.length() == 0 || i >= length) continue;
+
+      char last = out.charAt(out.length() - 1);
+      char next = js.charAt(i);
+
+      if (newline)
+      {
+        if ("{;,(".indexOf(last) < 0 && "}),;".indexOf(next) < 0)
+        {
+          out.append('\n');
+        }
+      }
+      else if ((isIdentifierPart(last) && isIdentifierPart(next))
+               || (last == next && "+-/".indexOf(last) >= 0)
+               || (last == '/' && next == '*')
+               || (Character.isDigit(last) && next == '.'))
+      {
+        out.append(' ');
+      }
+    }
+
+    return out.toString();
+  }
+
+  /**
+   * A slash starts a regular expression, rather than a division, where an operand is expected.
+   */
+  private static boolean isRegexStart(CharSequence out)
+  {
+    int i = out.length() - 1;
+    while (i >= 0 && Character.isWhitespace(out.charAt(i)))
+    {
+      i--;
+    }
+    if (i < 0) return true;
+
+    char last = out.charAt(i);
+    if ("(,=:[!&|?{};+-*%<>~^".indexOf(last) >= 0) return true;
+    if (!isIdentifierPart(last)) return false;
+
+    int end = i + 1;
+    while (i >= 0 && isIdentifierPart(out.charAt(i)))
+    {
+      i--;
+    }
+    return REGEX_KEYWORDS.contains(out.subSequence(i + 1, end).toString());
+  }
+
+  private static int copyRegex(CharSequence js, int i, StringBuilder out)
+  {
+    int length = js.length();
+    boolean inClass = false;
+
+    out.append(js.charAt(i++));
+    while (i < length)
+    {
+      char c = js.charAt(i++);
+      out.append(c);
+
+      if (c == '\\' && i < length)
+      {
+        out.append(js.charAt(i++));
+      }
+      else if (c == '[')
+      {
+        inClass = true;
+      }
+      else if (c == ']')
+      {
+        inClass = false;
+      }
+      else if ((c == '/' && !inClass) || c == '\n')
+      {
+        break;
+      }
+    }
+
+    return i;
+  }
+
+  /**
+   * Copies a quoted literal, including its quotes and escapes.
+   *
+   * @return the index after the closing quote
+   */
+  private static int copyString(CharSequence text, int i, StringBuilder out)
+  {
+    int length = text.length();
+    char quote = text.charAt(i);
+
+    out.append(text.charAt(i++));
+    while (i < length)
+    {
+      char c = text.charAt(i++);
+      out.append(c);
+
+      if (c == '\\' && i < length)
+      {
+        out.append(text.charAt(i++));
+      }
+      else if (c == quote)
+      {
+        break;
+      }
+    }
+
+    return i;
+  }
+
+  private static boolean isIdentifierPart(char c)
+  {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '\\' || c > 127;
+  }
+
+  public static String minifyHtml(String html)
+  {
+    StringBuilder out = new StringBuilder(html.length());
+    String lower = html.toLowerCase(Locale.US);
+    int length = html.length();
+    int i = 0;
+
+    while (i < length)
+    {
+      char c = html.charAt(i);
+
+      if (html.startsWith("<!--", i))
+      {
+        int end = html.indexOf("-->", i + 4);
+        end = end < 0 ? length : end + 3;
+        // conditional comments are markup for old browsers
+        if (html.startsWith("<!--[", i) || html.startsWith("<!--<!", i))
+        {
+          out.append(html, i, end);
+        }
+        i = end;
+      }
+      else if (c == '<' && i + 1 < length && (Character.isLetter(html.charAt(i + 1)) || html.charAt(i + 1) == '/' || html.charAt(i + 1) == '!'))
+      {
+        int end = copyTag(html, i, out);
+
+        String raw = rawElement(lower, i);
+        if (raw != null)
+        {
+          int close = lower.indexOf("</" + raw, end);
+          close = close < 0 ? length : close;
+          out.append(html, end, close);
+          end = close;
+        }
+        i = end;
+      }
+      else if (Character.isWhitespace(c))
+      {
+        boolean newline = false;
+        while (i < length && Character.isWhitespace(html.charAt(i)))
+        {
+          newline |= html.charAt(i) == '\n';
+          i++;
+        }
+
+        // whitespace left on both sides of a removed comment collapses into one run
+        int last = out.length() - 1;
+        if (last >= 0 && Character.isWhitespace(out.charAt(last)))
+        {
+          if (newline) out.setCharAt(last, '\n');
+        }
+        else
+        {
+          out.append(newline ? '\n' : ' ');
+        }
+      }
+      else
+      {
+        out.append(c);
+        i++;
+      }
+    }
+
+    return out.toString();
+  }
+
+  /**
+   * Copies a tag, collapsing the whitespace between attributes.
+   *
+   * @return the index after the tag
+   */
+  private static int copyTag(String html, int i, StringBuilder out)
+  {
+    int length = html.length();
+
+    while (i < length)
+    {
+      char c = html.charAt(i);
+
+      if (c == '"' || c == '\'')
+      {
+        int end = html.indexOf(c, i + 1);
+        end = end < 0 ? length : end + 1;
+        out.append(html, i, end);
+        i = end;
+      }
+      else if (Character.isWhitespace(c))
+      {
+        while (i < length && Character.isWhitespace(html.charAt(i)))
+        {
+          i++;
+        }
+        if (i < length && html.charAt(i) != '>' && html.charAt(i) != '/')
+        {
+          out.append(' ');
+        }
+      }
+      else
+      {
+        out.append(c);
+        i++;
+        if (c == '>') break;
+      }
+    }
+
+    return i;
+  }
+
+  /**
+   * @return the name of the element opened at i if its content must be kept as it is, otherwise null
+   */
+  private static String rawElement(String lower, int i)
+  {
+    for (String name : RAW_ELEMENTS)
+    {
+      if (lower.startsWith(name, i + 1))
+      {
+        int after = i + 1 + name.length();
+        if (after < lower.length() && !Character.isLetterOrDigit(lower.charAt(after)))
+        {
+          return name;
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,988 @@
+package io.viper.core.server.file;
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+
+/**
+ * A bounded FileContentInfoCache that keeps content in one of three tiers:
+ *
+ *  - heap: small files, copied into byte arrays;
+ *  - off-heap: medium files, copied into a direct memory SlabArena so they can be written without a copy
+ *    and without adding to the garbage collected heap;
+ *  - disk: large files, and files that have not earned a place in memory, sent from the file with
+ *    sendfile.  Content that is not backed by a file, e.g. jar entries, bundles and gzipped variants, is
+ *    spilled to a temporary file first, so the disk tier holds no memory outside the budgets.
+ *
+ * The memory tiers have byte budgets.  Access frequencies are counted per path, including recently
+ * dropped paths, and periodically halved.  When a memory tier is full, content is only admitted if it is
+ * accessed more often than the coldest of a sample of the tier's least recently used entries, which is
+ * then demoted to the disk tier, or dropped if it has no file to be served from.  Files that were not
+ * admitted are served from disk and promoted once they are hot enough; promotions load and copy the
+ * content on a background thread, one at a time per entry, while requests go on being served from disk.
+ *
+ * Content that is demoted, evicted or invalidated is disposed once the responses still writing it have
+ * called dispose().
+ */
+public class TieredFileContentInfoCache implements FileContentInfoCache
+{
+  public static final int DEFAULT_HEAP_MAX_FILE_SIZE = 16 * 1024;
+  public static final int DEFAULT_OFF_HEAP_MAX_FILE_SIZE = 1024 * 1024;
+
+  private static final int EVICTION_SAMPLES = 8;
+  private static final int AGING_FACTOR = 8;
+
+  /** shared by every tiered cache; promotions are rare and mostly copy memory */
+  private static final ExecutorService PROMOTER = Executors.newSingleThreadExecutor(new ThreadFactory()
+  {
+    @Override
+    public Thread newThread(Runnable runnable)
+    {
+      Thread thread = new Thread(runnable, "static-content-promoter");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  enum Tier
+  {
+    HEAP, OFF_HEAP, DISK
+  }
+
+  private final FileContentInfoProvider _infoProvider;
+  private final long _maxHeapBytes;
+  private final int _maxEntries;
+  private final int _heapMaxFileSize;
+  private final int _offHeapMaxFileSize;
+  private final SlabArena _arena;
+
+  private final HashMap<String, Entry> _entries = new HashMap<String, Entry>();
+  private final LinkedHashMap<String, Entry> _heap = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private final LinkedHashMap<String, Entry> _offHeap = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private final LinkedHashMap<String, Entry> _disk = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private final LinkedHashMap<String, Integer> _ghosts;
+
+  private long _heapBytes = 0;
+  private long _accesses = 0;
+
+  /** bumped by every invalidation, so loads that overlap one are not cached */
+  private long _generation = 0;
+
+  private Executor _promoter = PROMOTER;
+
+  private final InvalidationListeners _listeners = new InvalidationListeners();
+
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+  private final AtomicLong _promotions = new AtomicLong();
+  private final AtomicLong _demotions = new AtomicLong();
+
+  private static class Entry
+  {
+    final String path;
+    final Tier target;
+    final Tier tier;
+    final FileContentInfo info;
+    final long heapBytes;
+
+    /** the file the content was loaded from, which it is demoted to; null if it has none */
+    final File file;
+
+    int frequency;
+    boolean promoting;
+
+    Entry(String path, Tier target, Tier tier, FileContentInfo info, long heapBytes, File file, int frequency)
+    {
+      this.path = path;
+      this.target = target;
+      this.tier = tier;
+      this.info = info;
+      this.heapBytes = heapBytes;
+      this.file = file;
+      this.frequency = frequency;
+    }
+  }
+
+  /**
+   * Memory set aside in a tier while content is copied into it outside the lock.
+   */
+  private static class Reservation
+  {
+    final Tier tier;
+    final long heapBytes;
+    final List<SlabArena.Allocation> allocations;
+
+    Reservation(Tier tier, long heapBytes, List<SlabArena.Allocation> allocations)
+    {
+      this.tier = tier;
+      this.heapBytes = heapBytes;
+      this.allocations = allocations;
+    }
+  }
+
+  /**
+   * Off-heap content, which returns its pages to the arena when disposed.
+   */
+  private static class SlabContentInfo extends FileContentInfo
+  {
+    private final SlabArena _arena;
+    private final List<SlabArena.Allocation> _allocations;
+
+    SlabContentInfo(ByteBuffer content, Map<String, String> meta, SlabArena arena, List<SlabArena.Allocation> allocations)
+    {
+      super(ChannelBuffers.wrappedBuffer(content), meta);
+      _arena = arena;
+      _allocations = allocations;
+    }
+
+    @Override
+    public void dispose()
+    {
+      super.dispose();
+      for (SlabArena.Allocation allocation : _allocations)
+      {
+        _arena.free(allocation);
+      }
+    }
+  }
+
+  /**
+   * Disk tier content that had no file of its own, written to a temporary file that is deleted when the
+   * content is disposed.
+   */
+  private static class SpilledContentInfo extends FileContentInfo
+  {
+    SpilledContentInfo(File file, Map<String, String> meta)
+    {
+      super(file, null, null, meta);
+    }
+
+    @Override
+    public void dispose()
+    {
+      super.dispose();
+      file.delete();
+    }
+  }
+
+  public TieredFileContentInfoCache(
+    FileContentInfoProvider infoProvider,
+    long maxHeapBytes,
+    long maxOffHeapBytes,
+    int maxEntries)
+  {
+    this(infoProvider, maxHeapBytes, maxOffHeapBytes, maxEntries, DEFAULT_HEAP_MAX_FILE_SIZE, DEFAULT_OFF_HEAP_MAX_FILE_SIZE);
+  }
+
+  /**
+   * @param heapMaxFileSize files up to this size are kept on the heap
+   * @param offHeapMaxFileSize files up to this size, and larger than heapMaxFileSize, are kept off-heap
+   */
+  public TieredFileContentInfoCache(
+    FileContentInfoProvider infoProvider,
+    long maxHeapBytes,
+    long maxOffHeapBytes,
+    final int maxEntries,
+    int heapMaxFileSize,
+    int offHeapMaxFileSize)
+  {
+    if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive");
+
+    _infoProvider = infoProvider;
+    _maxHeapBytes = maxHeapBytes;
+    _maxEntries = maxEntries;
+    _heapMaxFileSize = heapMaxFileSize;
+    _arena = new SlabArena(maxOffHeapBytes, Math.max(SlabArena.DEFAULT_SLAB_SIZE, roundToPage(offHeapMaxFileSize)));
+    _offHeapMaxFileSize = Math.min(offHeapMaxFileSize, _arena.getMaxAllocation());
+
+    _ghosts = new LinkedHashMap<String, Integer>()
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest)
+      {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Sets the executor that promotes content from disk to memory, e.g. to promote synchronously in tests.
+   */
+  void setPromoter(Executor promoter)
+  {
+    _promoter = promoter;
+  }
+
+  @Override
+  public FileContentInfo getFileContent(String path)
+  {
+    if (path == null) return null;
+
+    Entry entry;
+    FileContentInfo contentInfo = null;
+    boolean promote = false;
+    long generation;
+
+    synchronized (this)
+    {
+      generation = _generation;
+      entry = _entries.get(path);
+      if (entry != null)
+      {
+        touch(entry);
+        contentInfo = entry.info;
+        contentInfo.retain();
+
+        if (entry.tier == Tier.DISK && entry.target != Tier.DISK && !entry.promoting && hasRoom(entry))
+        {
+          entry.promoting = true;
+          promote = true;
+        }
+      }
+    }
+
+    if (entry != null)
+    {
+      _hits.incrementAndGet();
+      if (promote)
+      {
+        schedulePromotion(entry);
+      }
+      return contentInfo;
+    }
+
+    _misses.incrementAndGet();
+
+    FileContentInfo source = _infoProvider.getFileContent(path);
+    if (source == null) return null;
+
+    return admit(path, source, generation);
+  }
+
+  @Override
+  public void dispose(FileContentInfo info)
+  {
+    info.release();
+  }
+
+  private FileContentInfo admit(String path, FileContentInfo source, long generation)
+  {
+    Tier target = getTargetTier(source);
+    Reservation reservation = null;
+    Entry existing;
+    int frequency;
+
+    synchronized (this)
+    {
+      existing = _entries.get(path);
+      if (existing != null)
+      {
+        touch(existing);
+        existing.info.retain();
+      }
+
+      Integer ghost = _ghosts.remove(path);
+      frequency = (ghost != null ? ghost : 0) + 1;
+
+      if (existing == null && target != Tier.DISK)
+      {
+        reservation = reserve(target, source, frequency);
+      }
+    }
+
+    if (existing != null)
+    {
+      // another thread loaded the same file first
+      _infoProvider.dispose(source);
+      return existing.info;
+    }
+
+    FileContentInfo contentInfo;
+    try
+    {
+      contentInfo = reservation != null ? copy(source, reservation) : toDisk(source);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      cancel(reservation);
+      return source;
+    }
+
+    if (reservation != null)
+    {
+      _infoProvider.dispose(source);
+    }
+
+    Tier tier = reservation != null ? reservation.tier : Tier.DISK;
+    long heapBytes = reservation != null ? reservation.heapBytes : 0;
+
+    // the cache keeps the initial reference and the caller gets its own
+    contentInfo.retain();
+
+    List<FileContentInfo> evicted = new ArrayList<FileContentInfo>();
+
+    synchronized (this)
+    {
+      if (_entries.containsKey(path) || generation != _generation)
+      {
+        // lost a race with another load, or the file changed while it was loaded, so this copy is served
+        // uncached
+        _heapBytes -= heapBytes;
+        contentInfo.release();
+        return contentInfo;
+      }
+
+      put(new Entry(path, target, tier, contentInfo, heapBytes, source.file, frequency));
+      evictEntries(evicted);
+    }
+
+    release(evicted);
+
+    return contentInfo;
+  }
+
+  private void schedulePromotion(final Entry entry)
+  {
+    try
+    {
+      _promoter.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          promote(entry);
+        }
+      });
+    }
+    catch (RejectedExecutionException e)
+    {
+      synchronized (this)
+      {
+        entry.promoting = false;
+      }
+    }
+  }
+
+  /**
+   * Copies a disk tier entry into the memory tier it belongs to.  The content is loaded again so that
+   * encodings dropped on the disk tier are restored.  Runs on the promoter; entry.promoting keeps a
+   * second promotion of the same entry from being scheduled meanwhile.
+   */
+  private void promote(Entry entry)
+  {
+    FileContentInfo source = _infoProvider.getFileContent(entry.path);
+    Reservation reservation = null;
+
+    synchronized (this)
+    {
+      if (source != null && _entries.get(entry.path) == entry && getTargetTier(source) == entry.target)
+      {
+        reservation = reserve(entry.target, source, entry.frequency);
+      }
+      if (reservation == null)
+      {
+        entry.promoting = false;
+      }
+    }
+
+    if (reservation == null)
+    {
+      if (source != null) _infoProvider.dispose(source);
+      return;
+    }
+
+    FileContentInfo contentInfo;
+    try
+    {
+      contentInfo = copy(source, reservation);
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      synchronized (this)
+      {
+        entry.promoting = false;
+        cancel(reservation);
+      }
+      return;
+    }
+    finally
+    {
+      _infoProvider.dispose(source);
+    }
+
+    synchronized (this)
+    {
+      if (_entries.get(entry.path) != entry)
+      {
+        // invalidated while it was being copied
+        _heapBytes -= reservation.heapBytes;
+        contentInfo.release();
+        return;
+      }
+
+      _disk.remove(entry.path);
+      put(new Entry(entry.path, entry.target, reservation.tier, contentInfo, reservation.heapBytes, entry.file, entry.frequency));
+    }
+
+    entry.info.release();
+    _promotions.incrementAndGet();
+  }
+
+  private Tier getTargetTier(FileContentInfo source)
+  {
+    long length = getTotalLength(source);
+    if (length <= _heapMaxFileSize) return Tier.HEAP;
+    if (length <= _offHeapMaxFileSize) return Tier.OFF_HEAP;
+    return Tier.DISK;
+  }
+
+  private static long getTotalLength(FileContentInfo info)
+  {
+    long length = info.getLength();
+    for (FileContentInfo encoded : info.encodings.values())
+    {
+      length = Math.max(length, encoded.getLength());
+    }
+    return length;
+  }
+
+  /**
+   * @return true if content of the entry's size could be admitted to its target tier now
+   */
+  private boolean hasRoom(Entry entry)
+  {
+    if (entry.target == Tier.HEAP && _heapBytes + getResidentSize(entry.info) <= _maxHeapBytes) return true;
+    if (entry.target == Tier.OFF_HEAP && _arena.getUsedBytes() + getResidentSize(entry.info) <= _arena.getCapacity()) return true;
+
+    Entry victim = coldest(entry.target == Tier.HEAP ? _heap : _offHeap);
+    return victim == null || victim.frequency < entry.frequency;
+  }
+
+  /**
+   * Sets aside room for the content in a memory tier, demoting colder entries if necessary.  Must be
+   * called while holding the lock.
+   *
+   * @return the reservation, or null if the content is not hot enough to displace anything
+   */
+  private Reservation reserve(Tier tier, FileContentInfo source, int frequency)
+  {
+    if (tier == Tier.HEAP)
+    {
+      long size = getResidentSize(source);
+      if (size > _maxHeapBytes) return null;
+
+      while (_heapBytes + size > _maxHeapBytes)
+      {
+        if (!demoteColder(_heap, frequency)) return null;
+      }
+
+      _heapBytes += size;
+      return new Reservation(Tier.HEAP, size, null);
+    }
+
+    while (true)
+    {
+      List<SlabArena.Allocation> allocations = allocate(source);
+      if (allocations != null)
+      {
+        return new Reservation(Tier.OFF_HEAP, 0, allocations);
+      }
+
+      // demoted pages only return to the arena once in-flight responses are done with them
+      if (!demoteColder(_offHeap, frequency)) return null;
+    }
+  }
+
+  private List<SlabArena.Allocation> allocate(FileContentInfo source)
+  {
+    List<SlabArena.Allocation> allocations = new ArrayList<SlabArena.Allocation>(1 + source.encodings.size());
+
+    SlabArena.Allocation allocation = _arena.allocate((int) source.getLength());
+    if (allocation != null)
+    {
+      allocations.add(allocation);
+      for (FileContentInfo encoded : source.encodings.values())
+      {
+        allocation = _arena.allocate((int) encoded.getLength());
+        if (allocation == null) break;
+        allocations.add(allocation);
+      }
+    }
+
+    if (allocation == null)
+    {
+      for (SlabArena.Allocation taken : allocations)
+      {
+        _arena.free(taken);
+      }
+      return null;
+    }
+
+    return allocations;
+  }
+
+  private void cancel(Reservation reservation)
+  {
+    if (reservation == null) return;
+
+    if (reservation.allocations != null)
+    {
+      for (SlabArena.Allocation allocation : reservation.allocations)
+      {
+        _arena.free(allocation);
+      }
+    }
+
+    synchronized (this)
+    {
+      _heapBytes -= reservation.heapBytes;
+    }
+  }
+
+  private static long getResidentSize(FileContentInfo info)
+  {
+    long size = info.getLength();
+    for (FileContentInfo encoded : info.encodings.values())
+    {
+      size += encoded.getLength();
+    }
+    return size;
+  }
+
+  /**
+   * Copies content, with its encodings, into reserved memory.
+   */
+  private FileContentInfo copy(FileContentInfo source, Reservation reservation)
+    throws IOException
+  {
+    FileContentInfo result;
+    Map<String, FileContentInfo> encodings = new HashMap<String, FileContentInfo>();
+
+    if (reservation.tier == Tier.HEAP)
+    {
+      result = new FileContentInfo(ChannelBuffers.wrappedBuffer(read(source)), source.meta);
+      for (Map.Entry<String, FileContentInfo> encoded : source.encodings.entrySet())
+      {
+        FileContentInfo value = encoded.getValue();
+        encodings.put(encoded.getKey(), copyAttributes(value, new FileContentInfo(ChannelBuffers.wrappedBuffer(read(value)), value.meta)));
+      }
+    }
+    else
+    {
+      Iterator<SlabArena.Allocation> allocations = reservation.allocations.iterator();
+
+      ByteBuffer buffer = allocations.next().buffer.duplicate();
+      read(source, buffer.duplicate());
+      result = new SlabContentInfo(buffer, source.meta, _arena, reservation.allocations);
+
+      for (Map.Entry<String, FileContentInfo> encoded : source.encodings.entrySet())
+      {
+        FileContentInfo value = encoded.getValue();
+        buffer = allocations.next().buffer.duplicate();
+        read(value, buffer.duplicate());
+        encodings.put(encoded.getKey(), copyAttributes(value, new FileContentInfo(ChannelBuffers.wrappedBuffer(buffer), value.meta)));
+      }
+    }
+
+    if (!encodings.isEmpty())
+    {
+      result.encodings = encodings;
+    }
+
+    return copyAttributes(source, result);
+  }
+
+  /**
+   * Turns content loaded by the provider into disk tier content: file backed content keeps only its file,
+   * and content and encodings that are only in memory are spilled to temporary files.
+   */
+  private FileContentInfo toDisk(FileContentInfo source)
+    throws IOException
+  {
+    Map<String, FileContentInfo> encodings = new HashMap<String, FileContentInfo>();
+    FileContentInfo result;
+
+    try
+    {
+      result = source.file != null ? toRegion(source) : spill(source);
+
+      for (Map.Entry<String, FileContentInfo> encoded : source.encodings.entrySet())
+      {
+        FileContentInfo value = encoded.getValue();
+        encodings.put(encoded.getKey(), value.file != null ? toRegion(value) : spill(value));
+      }
+    }
+    catch (IOException e)
+    {
+      for (FileContentInfo written : encodings.values())
+      {
+        written.dispose();
+      }
+      throw e;
+    }
+
+    if (!encodings.isEmpty())
+    {
+      result.encodings = encodings;
+    }
+
+    // file channels now belong to the regions, and spilled copies to their files, so the loaded content
+    // and its encodings are disposed one by one
+    for (FileContentInfo encoded : source.encodings.values())
+    {
+      if (encoded.file == null) encoded.dispose();
+    }
+    source.encodings = Collections.emptyMap();
+    _infoProvider.dispose(source);
+
+    return result;
+  }
+
+  /**
+   * Writes in-memory content to a temporary file, keeping its entity tag and modification time.
+   */
+  private static FileContentInfo spill(FileContentInfo source)
+    throws IOException
+  {
+    File file = File.createTempFile("viper-spill-", null);
+    FileOutputStream out = null;
+    try
+    {
+      out = new FileOutputStream(file);
+      FileChannel channel = out.getChannel();
+      ByteBuffer buffer = source.content.toByteBuffer(0, (int) source.getLength());
+      while (buffer.hasRemaining())
+      {
+        channel.write(buffer);
+      }
+      out.close();
+      out = null;
+
+      if (source.lastModified > 0)
+      {
+        file.setLastModified(source.lastModified);
+      }
+    }
+    catch (IOException e)
+    {
+      if (out != null) out.close();
+      file.delete();
+      throw e;
+    }
+
+    FileContentInfo result = copyAttributes(source, new SpilledContentInfo(file, source.meta));
+    // the pool checks the file against this, and file systems may round it
+    result.lastModified = source.lastModified > 0 ? file.lastModified() : 0;
+    result.setETag(source.getETag());
+    return result;
+  }
+
+  private static FileContentInfo toRegion(FileContentInfo source)
+  {
+    FileContentInfo result = copyAttributes(source, new FileContentInfo(source.file, source.fileChannel, null, source.meta));
+    source.fileChannel = null;
+    return result;
+  }
+
+  private static FileContentInfo copyAttributes(FileContentInfo source, FileContentInfo target)
+  {
+    target.lastModified = source.lastModified;
+    target.contentEncoding = source.contentEncoding;
+    target.fingerprint = source.fingerprint;
+    return target;
+  }
+
+  private static byte[] read(FileContentInfo source)
+    throws IOException
+  {
+    byte[] bytes = new byte[(int) source.getLength()];
+    read(source, ByteBuffer.wrap(bytes));
+    return bytes;
+  }
+
+  private static void read(FileContentInfo source, ByteBuffer target)
+    throws IOException
+  {
+    if (source.content != null)
+    {
+      source.content.getBytes(0, target);
+      return;
+    }
+
+    FileChannelPool.Lease lease = source.openChannel();
+    try
+    {
+      long position = 0;
+      while (target.hasRemaining())
+      {
+        int n = lease.channel.read(target, position);
+        if (n < 0) throw new EOFException("file shrank while loading: " + source.file);
+        position += n;
+      }
+    }
+    finally
+    {
+      lease.release();
+    }
+  }
+
+  private void touch(Entry entry)
+  {
+    entry.frequency++;
+    tierOf(entry).get(entry.path);
+
+    if (++_accesses >= (long) _maxEntries * AGING_FACTOR)
+    {
+      age();
+    }
+  }
+
+  /**
+   * Halves every frequency, so content that used to be popular does not stay in memory forever.
+   */
+  private void age()
+  {
+    _accesses = 0;
+
+    for (Entry entry : _entries.values())
+    {
+      entry.frequency /= 2;
+    }
+
+    Iterator<Map.Entry<String, Integer>> ghosts = _ghosts.entrySet().iterator();
+    while (ghosts.hasNext())
+    {
+      Map.Entry<String, Integer> ghost = ghosts.next();
+      if (ghost.getValue() <= 1)
+      {
+        ghosts.remove();
+      }
+      else
+      {
+        ghost.setValue(ghost.getValue() / 2);
+      }
+    }
+  }
+
+  private void put(Entry entry)
+  {
+    _entries.put(entry.path, entry);
+    tierOf(entry).put(entry.path, entry);
+  }
+
+  private LinkedHashMap<String, Entry> tierOf(Entry entry)
+  {
+    switch (entry.tier)
+    {
+      case HEAP:
+        return _heap;
+      case OFF_HEAP:
+        return _offHeap;
+      default:
+        return _disk;
+    }
+  }
+
+  /**
+   * @return the least frequently used of the least recently used entries of a tier
+   */
+  private static Entry coldest(LinkedHashMap<String, Entry> tier)
+  {
+    Entry coldest = null;
+    int samples = 0;
+
+    for (Entry entry : tier.values())
+    {
+      if (coldest == null || entry.frequency < coldest.frequency)
+      {
+        coldest = entry;
+      }
+      if (++samples == EVICTION_SAMPLES) break;
+    }
+
+    return coldest;
+  }
+
+  /**
+   * Makes room in a memory tier by moving its coldest entry to the disk tier.  Content without a file
+   * is dropped instead, and spilled to disk when it is next loaded.
+   *
+   * @return false if the coldest entry is not colder than the given frequency
+   */
+  private boolean demoteColder(LinkedHashMap<String, Entry> tier, int frequency)
+  {
+    Entry victim = coldest(tier);
+    if (victim == null || victim.frequency >= frequency) return false;
+
+    remove(victim);
+    if (victim.file != null)
+    {
+      // the entity tag is kept, so clients holding the content still revalidate against it
+      FileContentInfo region = copyAttributes(victim.info, new FileContentInfo(victim.file, null, null, victim.info.meta));
+      region.setETag(victim.info.getETag());
+      put(new Entry(victim.path, victim.target, Tier.DISK, region, 0, victim.file, victim.frequency));
+    }
+    else
+    {
+      _ghosts.put(victim.path, victim.frequency);
+    }
+    _demotions.incrementAndGet();
+
+    // released under the lock so freed pages can be reused right away
+    victim.info.release();
+    return true;
+  }
+
+  private void evictEntries(List<FileContentInfo> evicted)
+  {
+    while (_entries.size() > _maxEntries)
+    {
+      Entry victim = coldest(!_disk.isEmpty() ? _disk : !_offHeap.isEmpty() ? _offHeap : _heap);
+      remove(victim);
+      _ghosts.put(victim.path, victim.frequency);
+      evicted.add(victim.info);
+    }
+  }
+
+  private void remove(Entry entry)
+  {
+    _entries.remove(entry.path);
+    tierOf(entry).remove(entry.path);
+    _heapBytes -= entry.heapBytes;
+  }
+
+  private static void release(List<FileContentInfo> released)
+  {
+    for (FileContentInfo contentInfo : released)
+    {
+      contentInfo.release();
+    }
+  }
+
+  @Override
+  public void invalidate(String path)
+  {
+    if (_infoProvider instanceof FileContentInfoCache)
+    {
+      ((FileContentInfoCache) _infoProvider).invalidate(path);
+    }
+
+    Entry entry;
+
+    synchronized (this)
+    {
+      _generation++;
+
+      entry = _entries.get(path);
+      if (entry != null)
+      {
+        remove(entry);
+      }
+    }
+
+    if (entry != null)
+    {
+      entry.info.release();
+    }
+    _listeners.invalidated(path);
+  }
+
+  @Override
+  public void invalidateAll()
+  {
+    if (_infoProvider instanceof FileContentInfoCache)
+    {
+      ((FileContentInfoCache) _infoProvider).invalidateAll();
+    }
+
+    List<FileContentInfo> invalidated = new ArrayList<FileContentInfo>();
+
+    synchronized (this)
+    {
+      _generation++;
+
+      for (Entry entry : new ArrayList<Entry>(_entries.values()))
+      {
+        remove(entry);
+        invalidated.add(entry.info);
+      }
+    }
+
+    release(invalidated);
+    _listeners.invalidatedAll();
+  }
+
+  @Override
+  public void addInvalidationListener(InvalidationListener listener)
+  {
+    _listeners.add(listener);
+  }
+
+  public FileContentInfoProvider getProvider()
+  {
+    return _infoProvider;
+  }
+
+  @Override
+  public long getHitCount()
+  {
+    return _hits.get();
+  }
+
+  @Override
+  public long getMissCount()
+  {
+    return _misses.get();
+  }
+
+  public long getPromotionCount()
+  {
+    return _promotions.get();
+  }
+
+  public long getDemotionCount()
+  {
+    return _demotions.get();
+  }
+
+  public synchronized long getHeapBytes()
+  {
+    return _heapBytes;
+  }
+
+  public long getOffHeapBytes()
+  {
+    return _arena.getUsedBytes();
+  }
+
+  public synchronized int size()
+  {
+    return _entries.size();
+  }
+
+  private static int roundToPage(int size)
+  {
+    return (size + SlabArena.PAGE_SIZE - 1) / SlabArena.PAGE_SIZE * SlabArena.PAGE_SIZE;
+  }
+}
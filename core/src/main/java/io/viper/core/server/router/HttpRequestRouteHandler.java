@@ -0,0 +1,14 @@
+package io.viper.core.server.router;
+
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+import java.util.Map;
+
+/**
+ * A RouteHandler that also needs the request headers.  RestRoute calls exec(request, args) instead of
+ * exec(args) for handlers implementing this interface.
+ */
+public interface HttpRequestRouteHandler extends RouteHandler
+{
+  RouteResponse exec(HttpRequest request, Map<String, String> args) throws Exception;
+}
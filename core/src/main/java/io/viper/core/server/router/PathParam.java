@@ -0,0 +1,179 @@
+package io.viper.core.server.router;
+
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+
+/**
+ * A variable segment of a route.
+ *
+ *   $name          any one segment, or the rest of the path when it is the last segment
+ *   $id:int        a decimal integer that fits in a long
+ *   $uuid:uuid     a UUID in its canonical 8-4-4-4-12 hex form
+ *   $slug:[a-z]+   a segment matching a regular expression, which cannot contain '/' or '?' as routes
+ *                  are split on them before their segments are parsed
+ *   $rest*         the rest of the path, one or more segments; only allowed last
+ *
+ * Constraints are checked while the route trie is traversed, so requests that do not satisfy them fall
+ * through to other routes without reaching the handler.
+ */
+public class PathParam
+{
+  /**
+   * Constraint kinds, from the most to the least specific.
+   */
+  public enum Type
+  {
+    INT, UUID, PATTERN, ANY, REST
+  }
+
+  public final String name;
+  public final Type type;
+  private final Pattern _pattern;
+
+  private PathParam(String name, Type type, Pattern pattern)
+  {
+    this.name = name;
+    this.type = type;
+    _pattern = pattern;
+  }
+
+  /**
+   * Compiles the segments of a route.
+   *
+   * @return the parameter of each segment, null for literal segments
+   * @throws IllegalArgumentException if a rest parameter is not last, or a pattern is not valid
+   */
+  public static PathParam[] compile(List<String> route)
+  {
+    PathParam[] params = new PathParam[route.size()];
+
+    for (int i = 0; i < params.length; i++)
+    {
+      PathParam param = parse(route.get(i));
+      boolean isLast = i == params.length - 1;
+
+      if (param != null && param.type == Type.REST && !isLast)
+      {
+        throw new IllegalArgumentException("rest parameter must be the last segment: " + route);
+      }
+      if (param != null && param.type == Type.ANY && isLast)
+      {
+        // a trailing untyped parameter has always matched the rest of the path
+        param = new PathParam(param.name, Type.REST, null);
+      }
+
+      params[i] = param;
+    }
+
+    return params;
+  }
+
+  /**
+   * @return the parameter of a route segment, or null if the segment is a literal
+   * @throws IllegalArgumentException if a pattern contains '/' or '?', or is not a valid regex
+   */
+  public static PathParam parse(String segment)
+  {
+    if (!segment.startsWith("$")) return null;
+
+    String spec = segment.substring(1);
+
+    int colon = spec.indexOf(':');
+    if (colon < 0)
+    {
+      if (spec.endsWith("*")) return new PathParam(spec.substring(0, spec.length() - 1), Type.REST, null);
+      return new PathParam(spec, Type.ANY, null);
+    }
+
+    String name = spec.substring(0, colon);
+    String constraint = spec.substring(colon + 1);
+
+    if (constraint.equals("int")) return new PathParam(name, Type.INT, null);
+    if (constraint.equals("uuid")) return new PathParam(name, Type.UUID, null);
+
+    if (constraint.indexOf('/') >= 0 || constraint.indexOf('?') >= 0)
+    {
+      throw new IllegalArgumentException("pattern cannot contain '/' or '?': " + segment);
+    }
+
+    return new PathParam(name, Type.PATTERN, Pattern.compile(constraint));
+  }
+
+  public boolean isRest()
+  {
+    return type == Type.REST;
+  }
+
+  /**
+   * @return a key that is equal for parameters with the same constraint, whatever their names
+   */
+  String getConstraintKey()
+  {
+    return _pattern != null ? type + ":" + _pattern.pattern() : type.toString();
+  }
+
+  /**
+   * @return true if a path segment satisfies the constraint of this parameter
+   */
+  public boolean matches(String segment)
+  {
+    switch (type)
+    {
+      case INT:
+        return isLong(segment);
+      case UUID:
+        return isUuid(segment);
+      case PATTERN:
+        return _pattern.matcher(segment).matches();
+      default:
+        return true;
+    }
+  }
+
+  private static boolean isLong(String s)
+  {
+    int start = s.startsWith("-") ? 1 : 0;
+    int digits = s.length() - start;
+    if (digits == 0 || digits > 19) return false;
+
+    for (int i = start; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') return false;
+    }
+
+    if (digits < 19) return true;
+
+    // 19 digits may overflow
+    try
+    {
+      Long.parseLong(s);
+      return true;
+    }
+    catch (NumberFormatException e)
+    {
+      return false;
+    }
+  }
+
+  private static boolean isUuid(String s)
+  {
+    if (s.length() != 36) return false;
+
+    for (int i = 0; i < 36; i++)
+    {
+      char c = s.charAt(i);
+      if (i == 8 || i == 13 || i == 18 || i == 23)
+      {
+        if (c != '-') return false;
+      }
+      else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -1,18 +1,10 @@
 package io.viper.core.server.router;
 
 import io.viper.core.server.security.AuthHandler;
-import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.*;
-import org.json.JSONObject;
 
 import java.lang.Boolean;
-import java.net.URI;
-import java.net.URLDecoder;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
 
 import static org.jboss.netty.buffer.ChannelBuffers.wrappedBuffer;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.isKeepAlive;
@@ -51,57 +43,25 @@ public class PostRoute extends RestRoute {
 
     // extract params
 
-    List<String> path = RouteUtil.parsePath(request.getUri());
+    RequestContext context = RequestContext.get(e.getChannel(), request);
 
-    Map<String, String> args = RouteUtil.extractPathArgs(_route, path);
-    args.putAll(RouteUtil.extractQueryParams(new URI(request.getUri())));
-
-    ChannelBuffer content = request.getContent();
-
-    if (!content.hasArray())
+    RouteArgs args = new RouteArgs();
+    RouteUtil.extractPathArgs(_params, context.getPath(), args);
+    if (context.getQueryStart() >= 0)
     {
-      sendError(ctx, BAD_REQUEST);
-      return;
-    }
-
-    byte[] body = content.array();
-    String contentLengthHeader = request.getHeader(HttpHeaders.Names.CONTENT_LENGTH);
-
-    int contentLength =
-      contentLengthHeader != null
-      ? Integer.parseInt(request.getHeader(HttpHeaders.Names.CONTENT_LENGTH))
-      : body.length;
-
-    if (contentLength != body.length) {
-      body = Arrays.copyOfRange(body, 0, contentLength);
+      args.addQuery(context.getUri(), context.getQueryStart(), context.getUri().length(), true);
     }
 
-    String rawContent = new String(body, "UTF-8");
-
-    if (rawContent.startsWith("{"))
-    {
-      JSONObject json = new JSONObject(rawContent);
-
-      Iterator keys = json.keys();
-      while(keys.hasNext())
-      {
-        String key = keys.next().toString();
-        args.put(key, json.getString(key));
-      }
-    }
-    else
-    {
-      String contentType = request.getHeader("Content-Type");
-      Boolean utf8Decode = contentType.contains("utf8");
-      args.putAll(RouteUtil.extractQueryParams(rawContent, utf8Decode));
-    }
+    String contentType = request.getHeader("Content-Type");
+    Boolean utf8Decode = contentType.contains("utf8");
+    RouteUtil.extractBodyArgs(request, utf8Decode, args);
 
     HttpResponse response;
     final RouteResponse[] routeResponse = new RouteResponse[1];
 
     try
     {
-      routeResponse[0] = _handler.exec(args);
+      routeResponse[0] = exec(request, args);
       response = routeResponse[0].HttpResponse;
     }
     catch (Exception ex)
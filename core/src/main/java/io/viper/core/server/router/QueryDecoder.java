@@ -0,0 +1,245 @@
+package io.viper.core.server.router;
+
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Decodes application/x-www-form-urlencoded pairs, as found in query strings and form bodies, in a single
+ * pass over the raw characters or bytes.
+ *
+ * Pairs are split at the first '=', so values may contain '=', and a key without a value gets an empty
+ * one.  Keys and values are only percent-decoded when they contain '%' or '+'; plain ASCII is copied as
+ * it is.  Malformed escapes are kept literally instead of failing the request.
+ */
+public class QueryDecoder
+{
+  /**
+   * Receives the offsets of each pair found by scan().
+   */
+  public interface PairHandler
+  {
+    /**
+     * @param keyStart the index of the key
+     * @param keyEnd the index after the key
+     * @param valueStart the index of the value, which equals valueEnd if there is none
+     * @param valueEnd the index after the value
+     */
+    void pair(int keyStart, int keyEnd, int valueStart, int valueEnd);
+  }
+
+  /**
+   * Finds the pairs between start and end of a query string, reporting their offsets without decoding.
+   */
+  public static void scan(String query, int start, int end, PairHandler handler)
+  {
+    int pairStart = start;
+    int equals = -1;
+
+    for (int i = start; i <= end; i++)
+    {
+      char c = i < end ? query.charAt(i) : '&';
+      if (c == '=' && equals < 0)
+      {
+        equals = i;
+      }
+      else if (c == '&')
+      {
+        report(pairStart, equals, i, handler);
+        pairStart = i + 1;
+        equals = -1;
+      }
+    }
+  }
+
+  /**
+   * Finds the pairs between start and end of a buffer, reporting their offsets without decoding.
+   */
+  public static void scan(ChannelBuffer buffer, int start, int end, PairHandler handler)
+  {
+    int pairStart = start;
+    int equals = -1;
+
+    for (int i = start; i <= end; i++)
+    {
+      byte b = i < end ? buffer.getByte(i) : (byte) '&';
+      if (b == '=' && equals < 0)
+      {
+        equals = i;
+      }
+      else if (b == '&')
+      {
+        report(pairStart, equals, i, handler);
+        pairStart = i + 1;
+        equals = -1;
+      }
+    }
+  }
+
+  private static void report(int pairStart, int equals, int pairEnd, PairHandler handler)
+  {
+    int keyEnd = equals < 0 ? pairEnd : equals;
+    if (keyEnd == pairStart) return;
+
+    int valueStart = equals < 0 ? pairEnd : equals + 1;
+    handler.pair(pairStart, keyEnd, valueStart, pairEnd);
+  }
+
+  /**
+   * Decodes the pairs of a query string into a map, later values of a repeated key replacing earlier ones.
+   */
+  public static void decode(final String query, int start, int end, final boolean urlDecode, final Map<String, String> into)
+  {
+    scan(query, start, end, new PairHandler()
+    {
+      @Override
+      public void pair(int keyStart, int keyEnd, int valueStart, int valueEnd)
+      {
+        into.put(decodeComponent(query, keyStart, keyEnd, urlDecode), decodeComponent(query, valueStart, valueEnd, urlDecode));
+      }
+    });
+  }
+
+  /**
+   * Decodes the pairs of a query string into a map holding every value of each key, in order.
+   */
+  public static void decodeAll(final String query, int start, int end, final boolean urlDecode, final Map<String, List<String>> into)
+  {
+    scan(query, start, end, new PairHandler()
+    {
+      @Override
+      public void pair(int keyStart, int keyEnd, int valueStart, int valueEnd)
+      {
+        String key = decodeComponent(query, keyStart, keyEnd, urlDecode);
+        List<String> values = into.get(key);
+        if (values == null)
+        {
+          values = new ArrayList<String>(1);
+          into.put(key, values);
+        }
+        values.add(decodeComponent(query, valueStart, valueEnd, urlDecode));
+      }
+    });
+  }
+
+  /**
+   * Decodes the pairs of a form body into a map, later values of a repeated key replacing earlier ones.
+   */
+  public static void decode(final ChannelBuffer buffer, int start, int end, final boolean urlDecode, final Map<String, String> into)
+  {
+    scan(buffer, start, end, new PairHandler()
+    {
+      @Override
+      public void pair(int keyStart, int keyEnd, int valueStart, int valueEnd)
+      {
+        into.put(decodeComponent(buffer, keyStart, keyEnd, urlDecode), decodeComponent(buffer, valueStart, valueEnd, urlDecode));
+      }
+    });
+  }
+
+  /**
+   * Decodes a key or value of a query string.  A URI holds one char per byte of the request line, so
+   * chars outside ASCII are taken as raw UTF-8 bytes, like escaped ones.
+   */
+  public static String decodeComponent(String query, int start, int end, boolean urlDecode)
+  {
+    if (!urlDecode || isPlain(query, start, end)) return query.substring(start, end);
+
+    byte[] bytes = new byte[end - start];
+    int length = 0;
+
+    for (int i = start; i < end; i++)
+    {
+      char c = query.charAt(i);
+      if (c == '+')
+      {
+        bytes[length++] = ' ';
+      }
+      else if (c == '%' && i + 2 < end && hexValue(query.charAt(i + 1)) >= 0 && hexValue(query.charAt(i + 2)) >= 0)
+      {
+        bytes[length++] = (byte) (hexValue(query.charAt(i + 1)) << 4 | hexValue(query.charAt(i + 2)));
+        i += 2;
+      }
+      else if (c < 0x100)
+      {
+        bytes[length++] = (byte) c;
+      }
+      else
+      {
+        // a char that cannot have come from the request line; keep it as UTF-8
+        byte[] encoded = String.valueOf(c).getBytes(CharsetUtil.UTF_8);
+        byte[] grown = new byte[bytes.length + encoded.length];
+        System.arraycopy(bytes, 0, grown, 0, length);
+        System.arraycopy(encoded, 0, grown, length, encoded.length);
+        bytes = grown;
+        length += encoded.length;
+      }
+    }
+
+    return new String(bytes, 0, length, CharsetUtil.UTF_8);
+  }
+
+  /**
+   * Decodes a key or value of a form body, which is UTF-8 once unescaped.
+   */
+  public static String decodeComponent(ChannelBuffer buffer, int start, int end, boolean urlDecode)
+  {
+    if (!urlDecode || !hasEscapes(buffer, start, end)) return buffer.toString(start, end - start, CharsetUtil.UTF_8);
+
+    byte[] bytes = new byte[end - start];
+    int length = 0;
+
+    for (int i = start; i < end; i++)
+    {
+      byte b = buffer.getByte(i);
+      if (b == '+')
+      {
+        bytes[length++] = ' ';
+      }
+      else if (b == '%' && i + 2 < end && hexValue((char) buffer.getByte(i + 1)) >= 0 && hexValue((char) buffer.getByte(i + 2)) >= 0)
+      {
+        bytes[length++] = (byte) (hexValue((char) buffer.getByte(i + 1)) << 4 | hexValue((char) buffer.getByte(i + 2)));
+        i += 2;
+      }
+      else
+      {
+        bytes[length++] = b;
+      }
+    }
+
+    return new String(bytes, 0, length, CharsetUtil.UTF_8);
+  }
+
+  private static boolean isPlain(String query, int start, int end)
+  {
+    for (int i = start; i < end; i++)
+    {
+      char c = query.charAt(i);
+      if (c == '%' || c == '+' || c >= 0x80) return false;
+    }
+    return true;
+  }
+
+  private static boolean hasEscapes(ChannelBuffer buffer, int start, int end)
+  {
+    for (int i = start; i < end; i++)
+    {
+      byte b = buffer.getByte(i);
+      if (b == '%' || b == '+') return true;
+    }
+    return false;
+  }
+
+  private static int hexValue(char c)
+  {
+    if (c >= '0' && c <= '9') return c - '0';
+    if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+    if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+    return -1;
+  }
+}
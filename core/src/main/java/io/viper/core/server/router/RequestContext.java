@@ -0,0 +1,97 @@
+package io.viper.core.server.router;
+
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+import java.util.List;
+
+
+/**
+ * The parts of a request URI that routing needs, parsed once per request.
+ *
+ * The matcher parses the URI and attaches the context to the channel while it dispatches the request,
+ * and the route that handles the request picks it up from there instead of parsing the URI again.  A
+ * context is only reused for the request it was parsed from, so a route that is handed a different
+ * request, that runs without a matcher in front of it, or that runs after an executor has handed the
+ * request to another thread, parses its own without attaching it.
+ *
+ * The context is detached once the request is dispatched, so an idle connection does not keep the last
+ * request, and its aggregated body, alive.
+ */
+public class RequestContext
+{
+  private static final ChannelLocal<RequestContext> _contexts = new ChannelLocal<RequestContext>();
+
+  private final HttpRequest _request;
+  private final String _uri;
+  private final int _pathEnd;
+  private final List<String> _path;
+
+  public RequestContext(HttpRequest request)
+  {
+    _request = request;
+    _uri = request.getUri();
+    _pathEnd = RouteUtil.pathEnd(_uri);
+    _path = RouteUtil.parsePath(_uri, 0, _pathEnd);
+  }
+
+  /**
+   * @return the context attached for a request on a channel, or a new one parsed from the request
+   */
+  public static RequestContext get(Channel channel, HttpRequest request)
+  {
+    RequestContext context = _contexts.get(channel);
+    return context != null && context._request == request ? context : new RequestContext(request);
+  }
+
+  /**
+   * Parses a request and attaches its context to the channel until detach() is called.
+   */
+  public static RequestContext attach(Channel channel, HttpRequest request)
+  {
+    RequestContext context = new RequestContext(request);
+    _contexts.set(channel, context);
+    return context;
+  }
+
+  public static void detach(Channel channel)
+  {
+    _contexts.remove(channel);
+  }
+
+  public HttpRequest getRequest()
+  {
+    return _request;
+  }
+
+  public String getUri()
+  {
+    return _uri;
+  }
+
+  /**
+   * @return the non-empty segments of the path, as returned by RouteUtil.parsePath
+   */
+  public List<String> getPath()
+  {
+    return _path;
+  }
+
+  /**
+   * @return the index in the URI at which the query string starts, after the '?', or -1 if there is none
+   */
+  public int getQueryStart()
+  {
+    return _pathEnd < _uri.length() ? _pathEnd + 1 : -1;
+  }
+
+  /**
+   * @return the query string as sent, without decoding, or null if there is none
+   */
+  public String getRawQuery()
+  {
+    return _pathEnd < _uri.length() ? _uri.substring(_pathEnd + 1) : null;
+  }
+}
@@ -5,13 +5,10 @@ import io.viper.core.server.security.AuthHandler;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.*;
 
-import java.net.URI;
-import java.util.List;
 import java.util.Map;
 
 import static org.jboss.netty.buffer.ChannelBuffers.wrappedBuffer;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.isKeepAlive;
-import static org.jboss.netty.handler.codec.http.HttpHeaders.setContentLength;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.OK;
 import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
@@ -33,11 +30,38 @@ public abstract class RestRoute extends Route
     _method = method;
   }
 
+  @Override
+  public HttpMethod getMethod()
+  {
+    return _method;
+  }
+
+  @Override
+  public boolean isShareable()
+  {
+    return true;
+  }
+
+  @Override
+  public boolean isDirectDispatch()
+  {
+    return isShareable();
+  }
+
   public boolean isMatch(HttpRequest request)
   {
     return (super.isMatch(request) && request.getMethod().equals(_method));
   }
 
+  protected RouteResponse exec(HttpRequest request, Map<String, String> args) throws Exception
+  {
+    if (_handler instanceof HttpRequestRouteHandler)
+    {
+      return ((HttpRequestRouteHandler) _handler).exec(request, args);
+    }
+    return _handler.exec(args);
+  }
+
   @Override
   public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
 
@@ -49,38 +73,35 @@ public abstract class RestRoute extends Route
 
     HttpRequest request = (HttpRequest) ((MessageEvent) e).getMessage();
 
-    List<String> path = RouteUtil.parsePath(request.getUri());
+    RequestContext context = RequestContext.get(e.getChannel(), request);
 
-    Map<String, String> args = RouteUtil.extractPathArgs(_route, path);
-    args.putAll(RouteUtil.extractQueryParams(new URI(request.getUri())));
+    RouteArgs args = new RouteArgs();
+    RouteUtil.extractPathArgs(_params, context.getPath(), args);
+    if (context.getQueryStart() >= 0)
+    {
+      args.addQuery(context.getUri(), context.getQueryStart(), context.getUri().length(), true);
+    }
 
     try
     {
-      final RouteResponse routeResponse = _handler.exec(args);
+      final RouteResponse routeResponse = exec(request, args);
 
       final Boolean keepalive = isKeepAlive(request);
 
-      HttpResponse response = routeResponse.HttpResponse;
+      ChannelFuture writeFuture;
 
-      if (response == null)
+      if (!routeResponse.hasResponse())
       {
-        response = new DefaultHttpResponse(HTTP_1_1, OK);
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
         response.setContent(wrappedBuffer("{\"status\": true}".getBytes()));
+        writeFuture = e.getChannel().write(response);
       }
       else
       {
-        if (keepalive)
-        {
-          response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
-          setContentLength(response, response.getContent().readableBytes());
-        }
-        else
-        {
-          response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
-        }
+        routeResponse.setKeepAlive(keepalive);
+        writeFuture = routeResponse.write(e.getChannel());
       }
 
-      ChannelFuture writeFuture = e.getChannel().write(response);
       writeFuture.addListener(new ChannelFutureListener()
       {
         @Override
@@ -6,6 +6,7 @@ import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
@@ -23,6 +24,7 @@ public abstract class Route extends SimpleChannelUpstreamHandler
 {
   protected String _rawRoute;
   protected List<String> _route;
+  protected PathParam[] _params;
   protected AuthHandler _authHandler;
 
   protected Route(String route)
@@ -30,10 +32,20 @@ public abstract class Route extends SimpleChannelUpstreamHandler
     this(route, null);
   }
 
+  /**
+   * @throws IllegalArgumentException if the route has a query string, e.g. from a '?' meant for a pattern
+   *                                  parameter, or its parameters are not valid; see PathParam
+   */
   protected Route(String route, AuthHandler authHandler)
   {
+    if (route.indexOf('?') >= 0)
+    {
+      throw new IllegalArgumentException("route cannot contain '?': " + route);
+    }
+
     _rawRoute = route;
     _route = RouteUtil.parsePath(route);
+    _params = PathParam.compile(_route);
     _authHandler = authHandler;
   }
 
@@ -42,15 +54,48 @@ public abstract class Route extends SimpleChannelUpstreamHandler
     return _rawRoute;
   }
 
+  /**
+   * @return the method this route is restricted to, or null if it accepts any method
+   */
+  public HttpMethod getMethod()
+  {
+    return null;
+  }
+
+  /**
+   * Routes are added to the pipeline of every connection they serve.  A route that keeps per-connection
+   * state must return false so that a fresh instance is created for each connection.
+   *
+   * @return true if a single instance of this route can serve all connections
+   */
+  public boolean isShareable()
+  {
+    return false;
+  }
+
   public ChannelHandler getChannelHandler()
   {
     return this;
   }
 
+  /**
+   * A route that handles requests without passing them on up the pipeline can be invoked by the matcher
+   * directly, instead of being swapped into the pipeline of the connection for each request.
+   *
+   * A directly dispatched route runs on the matcher's context: anything it passes on through the context
+   * goes to the handlers after the matcher, and exceptions it throws are handed to its exceptionCaught.
+   *
+   * @return true if the matcher may invoke this route's channel handler directly
+   */
+  public boolean isDirectDispatch()
+  {
+    return false;
+  }
+
   public boolean isMatch(HttpRequest request)
   {
     List<String> path = RouteUtil.parsePath(request.getUri());
-    boolean isMatch = RouteUtil.match(_route, path);
+    boolean isMatch = RouteUtil.match(_route, _params, path);
     return isMatch;
   }
 
@@ -0,0 +1,471 @@
+package io.viper.core.server.router;
+
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.json.JSONObject;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ * The arguments of a request, as handed to RouteHandler.exec: path arguments, query parameters and the
+ * fields of a form or JSON body, later ones replacing earlier ones of the same name.
+ *
+ * Query and form values are kept as offsets into the request URI or body and only decoded when they are
+ * read, and JSON values are only converted to strings when they are read, so parameters a handler does
+ * not look at cost no more than finding their keys.  Entries live in small arrays that are searched
+ * linearly, which beats hashing for the handful of arguments a request usually has.
+ *
+ * Like HashMap, a RouteArgs is not thread safe.
+ */
+public class RouteArgs extends AbstractMap<String, String>
+{
+  private static final int INITIAL_CAPACITY = 8;
+
+  private static final int LIVE = 0;
+  private static final int SHADOWED = 1;
+  private static final int REMOVED = 2;
+  private static final int STATE_MASK = 3;
+
+  /** the value is a URI, buffer or JSON object to decode it from */
+  private static final int PENDING = 4;
+  private static final int URL_DECODE = 8;
+
+  private String[] _keys;
+  private Object[] _values;
+  private int[] _ranges;
+  private byte[] _flags;
+  private int _count;
+  private int _size;
+
+  private Set<Map.Entry<String, String>> _entrySet;
+
+  /**
+   * Adds the parameters of a query string, keeping their values encoded until they are read.
+   *
+   * @param uri the request URI
+   * @param start the index of the query string in the URI
+   */
+  public void addQuery(final String uri, int start, int end, final boolean urlDecode)
+  {
+    QueryDecoder.scan(uri, start, end, new QueryDecoder.PairHandler()
+    {
+      @Override
+      public void pair(int keyStart, int keyEnd, int valueStart, int valueEnd)
+      {
+        add(QueryDecoder.decodeComponent(uri, keyStart, keyEnd, urlDecode), uri, valueStart, valueEnd, urlDecode);
+      }
+    });
+  }
+
+  /**
+   * Adds the fields of a form body, keeping their values encoded in the buffer until they are read.
+   */
+  public void addForm(final ChannelBuffer buffer, int start, int end, final boolean urlDecode)
+  {
+    QueryDecoder.scan(buffer, start, end, new QueryDecoder.PairHandler()
+    {
+      @Override
+      public void pair(int keyStart, int keyEnd, int valueStart, int valueEnd)
+      {
+        add(QueryDecoder.decodeComponent(buffer, keyStart, keyEnd, urlDecode), buffer, valueStart, valueEnd, urlDecode);
+      }
+    });
+  }
+
+  /**
+   * Adds the fields of a JSON object, converting their values to strings when they are read.
+   */
+  public void addJson(JSONObject json)
+  {
+    Iterator keys = json.keys();
+    while (keys.hasNext())
+    {
+      add(keys.next().toString(), json, 0, 0, false);
+    }
+  }
+
+  private void add(String key, Object source, int start, int end, boolean urlDecode)
+  {
+    int existing = indexOf(key);
+    if (existing >= 0)
+    {
+      // kept for getAll()
+      _flags[existing] = (byte) ((_flags[existing] & ~STATE_MASK) | SHADOWED);
+      _size--;
+    }
+
+    int i = append(key, source);
+    _ranges[2 * i] = start;
+    _ranges[2 * i + 1] = end;
+    _flags[i] = (byte) (LIVE | PENDING | (urlDecode ? URL_DECODE : 0));
+  }
+
+  private int append(String key, Object value)
+  {
+    if (_keys == null)
+    {
+      _keys = new String[INITIAL_CAPACITY];
+      _values = new Object[INITIAL_CAPACITY];
+      _ranges = new int[2 * INITIAL_CAPACITY];
+      _flags = new byte[INITIAL_CAPACITY];
+    }
+    else if (_count == _keys.length)
+    {
+      int capacity = _count * 2;
+      _keys = Arrays.copyOf(_keys, capacity);
+      _values = Arrays.copyOf(_values, capacity);
+      _ranges = Arrays.copyOf(_ranges, 2 * capacity);
+      _flags = Arrays.copyOf(_flags, capacity);
+    }
+
+    int i = _count++;
+    _keys[i] = key;
+    _values[i] = value;
+    _flags[i] = LIVE;
+    _size++;
+    return i;
+  }
+
+  private int indexOf(Object key)
+  {
+    for (int i = _count - 1; i >= 0; i--)
+    {
+      if ((_flags[i] & STATE_MASK) == LIVE && _keys[i].equals(key)) return i;
+    }
+    return -1;
+  }
+
+  private String valueAt(int i)
+  {
+    if ((_flags[i] & PENDING) == 0) return (String) _values[i];
+
+    Object source = _values[i];
+    int start = _ranges[2 * i];
+    int end = _ranges[2 * i + 1];
+    boolean urlDecode = (_flags[i] & URL_DECODE) != 0;
+
+    String value;
+    if (source instanceof String)
+    {
+      value = QueryDecoder.decodeComponent((String) source, start, end, urlDecode);
+    }
+    else if (source instanceof ChannelBuffer)
+    {
+      value = QueryDecoder.decodeComponent((ChannelBuffer) source, start, end, urlDecode);
+    }
+    else
+    {
+      value = ((JSONObject) source).optString(_keys[i]);
+    }
+
+    _values[i] = value;
+    _flags[i] &= ~PENDING;
+    return value;
+  }
+
+  /**
+   * @return every value given for a key, in order, e.g. for a repeated query parameter
+   */
+  public List<String> getAll(String key)
+  {
+    List<String> values = new ArrayList<String>(1);
+    for (int i = 0; i < _count; i++)
+    {
+      if ((_flags[i] & STATE_MASK) != REMOVED && _keys[i].equals(key))
+      {
+        values.add(valueAt(i));
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Reads a decimal argument, e.g. a $id:int path parameter, parsing plain query and form values in place
+   * without creating a String.
+   *
+   * @return the value, or defaultValue if there is no such argument
+   * @throws NumberFormatException if the value is not a decimal long
+   */
+  public long getLong(String key, long defaultValue)
+  {
+    int i = indexOf(key);
+    if (i < 0) return defaultValue;
+
+    if ((_flags[i] & PENDING) != 0 && !(_values[i] instanceof JSONObject))
+    {
+      int start = _ranges[2 * i];
+      int end = _ranges[2 * i + 1];
+      int length = end - start;
+
+      if (length > 0 && length < 19)
+      {
+        long value = 0;
+        boolean negative = false;
+        boolean plain = true;
+
+        for (int j = start; j < end && plain; j++)
+        {
+          int c = _values[i] instanceof String ? ((String) _values[i]).charAt(j) : ((ChannelBuffer) _values[i]).getByte(j);
+          if (c >= '0' && c <= '9')
+          {
+            value = value * 10 + (c - '0');
+          }
+          else if (c == '-' && j == start && length > 1)
+          {
+            negative = true;
+          }
+          else
+          {
+            plain = false;
+          }
+        }
+
+        if (plain) return negative ? -value : value;
+      }
+    }
+
+    return Long.parseLong(valueAt(i));
+  }
+
+  /**
+   * @throws NumberFormatException if there is no such argument or it is not a decimal long
+   */
+  public long getLong(String key)
+  {
+    if (!containsKey(key)) throw new NumberFormatException("missing argument: " + key);
+    return getLong(key, 0);
+  }
+
+  /**
+   * @return the value, or defaultValue if there is no such argument
+   * @throws NumberFormatException if the value is not a decimal int
+   */
+  public int getInt(String key, int defaultValue)
+  {
+    if (!containsKey(key)) return defaultValue;
+
+    long value = getLong(key, 0);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+    {
+      throw new NumberFormatException("out of int range: " + key + "=" + value);
+    }
+    return (int) value;
+  }
+
+  /**
+   * @throws NumberFormatException if there is no such argument or it is not a decimal int
+   */
+  public int getInt(String key)
+  {
+    if (!containsKey(key)) throw new NumberFormatException("missing argument: " + key);
+    return getInt(key, 0);
+  }
+
+  /**
+   * Reads a decimal argument from the args a RouteHandler was given, without boxing.
+   */
+  public static long getLong(Map<String, String> args, String key, long defaultValue)
+  {
+    if (args instanceof RouteArgs) return ((RouteArgs) args).getLong(key, defaultValue);
+
+    String value = args.get(key);
+    return value != null ? Long.parseLong(value) : defaultValue;
+  }
+
+  public static int getInt(Map<String, String> args, String key, int defaultValue)
+  {
+    if (args instanceof RouteArgs) return ((RouteArgs) args).getInt(key, defaultValue);
+
+    String value = args.get(key);
+    return value != null ? Integer.parseInt(value) : defaultValue;
+  }
+
+  @Override
+  public String get(Object key)
+  {
+    int i = indexOf(key);
+    return i >= 0 ? valueAt(i) : null;
+  }
+
+  @Override
+  public boolean containsKey(Object key)
+  {
+    return indexOf(key) >= 0;
+  }
+
+  @Override
+  public String put(String key, String value)
+  {
+    String previous = removeAll(key);
+    append(key, value);
+    return previous;
+  }
+
+  @Override
+  public String remove(Object key)
+  {
+    return removeAll(key);
+  }
+
+  /**
+   * Removes every value of a key, including shadowed ones.
+   *
+   * @return the current value, or null if there was none
+   */
+  private String removeAll(Object key)
+  {
+    String previous = null;
+    for (int i = 0; i < _count; i++)
+    {
+      int state = _flags[i] & STATE_MASK;
+      if (state == REMOVED || !_keys[i].equals(key)) continue;
+
+      if (state == LIVE)
+      {
+        previous = valueAt(i);
+        _size--;
+      }
+      _flags[i] = REMOVED;
+      _values[i] = null;
+    }
+    return previous;
+  }
+
+  @Override
+  public int size()
+  {
+    return _size;
+  }
+
+  @Override
+  public void clear()
+  {
+    if (_keys != null)
+    {
+      Arrays.fill(_keys, 0, _count, null);
+      Arrays.fill(_values, 0, _count, null);
+    }
+    _count = 0;
+    _size = 0;
+  }
+
+  @Override
+  public Set<Map.Entry<String, String>> entrySet()
+  {
+    if (_entrySet == null)
+    {
+      _entrySet = new AbstractSet<Map.Entry<String, String>>()
+      {
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator()
+        {
+          return new EntryIterator();
+        }
+
+        @Override
+        public int size()
+        {
+          return _size;
+        }
+      };
+    }
+    return _entrySet;
+  }
+
+  private class EntryIterator implements Iterator<Map.Entry<String, String>>
+  {
+    private int _next = advance(0);
+    private int _last = -1;
+
+    private int advance(int i)
+    {
+      while (i < _count && (_flags[i] & STATE_MASK) != LIVE)
+      {
+        i++;
+      }
+      return i;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      return _next < _count;
+    }
+
+    @Override
+    public Map.Entry<String, String> next()
+    {
+      if (_next >= _count) throw new NoSuchElementException();
+      _last = _next;
+      _next = advance(_next + 1);
+      return new Entry(_last);
+    }
+
+    @Override
+    public void remove()
+    {
+      if (_last < 0 || (_flags[_last] & STATE_MASK) != LIVE) throw new IllegalStateException();
+      removeAll(_keys[_last]);
+      _last = -1;
+    }
+  }
+
+  private class Entry implements Map.Entry<String, String>
+  {
+    private final int _index;
+
+    Entry(int index)
+    {
+      _index = index;
+    }
+
+    @Override
+    public String getKey()
+    {
+      return _keys[_index];
+    }
+
+    @Override
+    public String getValue()
+    {
+      return valueAt(_index);
+    }
+
+    @Override
+    public String setValue(String value)
+    {
+      String previous = valueAt(_index);
+      _values[_index] = value;
+      return previous;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Map.Entry)) return false;
+      Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+      return getKey().equals(other.getKey()) && (getValue() == null ? other.getValue() == null : getValue().equals(other.getValue()));
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return getKey().hashCode() ^ (getValue() == null ? 0 : getValue().hashCode());
+    }
+
+    @Override
+    public String toString()
+    {
+      return getKey() + "=" + getValue();
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package io.viper.core.server.router;
+
+
+/**
+ * Creates instances of a route that is not shareable, one for each connection it serves.
+ */
+public interface RouteFactory
+{
+  /**
+   * @return a new route, of the same class and for the same path as every other route this factory creates
+   */
+  Route create();
+}
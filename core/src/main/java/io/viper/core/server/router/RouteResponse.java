@@ -1,6 +1,9 @@
 package io.viper.core.server.router;
 
 
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 
 
@@ -29,6 +32,61 @@ public class RouteResponse
     DisposeHandler = disposeHandler;
   }
 
+  /**
+   * @return false if there is nothing to write, in which case the route sends a default response
+   */
+  public boolean hasResponse()
+  {
+    return HttpResponse != null;
+  }
+
+  /**
+   * Sets the headers that depend on whether the connection is kept open after this response.
+   *
+   * A Content-Length the handler set itself, e.g. for a HEAD request, is kept, and none is added to
+   * responses that never have a body: a 304 may only repeat the length of the full representation.
+   */
+  public void setKeepAlive(boolean keepAlive)
+  {
+    if (keepAlive)
+    {
+      HttpResponse.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+      if (mayHaveBody() && !HttpResponse.containsHeader(HttpHeaders.Names.CONTENT_LENGTH))
+      {
+        HttpHeaders.setContentLength(HttpResponse, getContentLength());
+      }
+    }
+    else
+    {
+      HttpResponse.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+    }
+  }
+
+  private boolean mayHaveBody()
+  {
+    int code = HttpResponse.getStatus().getCode();
+    return code >= 200 && code != 204 && code != 304;
+  }
+
+  /**
+   * @return the length of the body written by write()
+   */
+  public long getContentLength()
+  {
+    return HttpResponse.getContent().readableBytes();
+  }
+
+  /**
+   * Writes the response to the channel.  Responses whose body is not held in the HttpResponse content
+   * override this to write the body after the headers.
+   *
+   * @return the future of the last write
+   */
+  public ChannelFuture write(Channel channel)
+  {
+    return channel.write(HttpResponse);
+  }
+
   public void dispose()
   {
     if (DisposeHandler != null)
@@ -0,0 +1,415 @@
+package io.viper.core.server.router;
+
+
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Route list compiled into a trie keyed by literal path segments.
+ *
+ * Parameter segments become edges that check their PathParam constraint, e.g. $id:int, a trailing
+ * $var or $var* matches the rest of the path, and the HTTP method is checked at the leaves.  Matching
+ * costs O(path depth) regardless of the number of routes, and requests that fail a constraint never
+ * reach the route.
+ *
+ * Candidates are reported most specific first, comparing routes segment by segment: a literal beats an
+ * int or uuid parameter, which beats a pattern, which beats an untyped parameter, which beats the rest
+ * of the path.  Routes that are equally specific keep their registration order, so overlapping routes
+ * are ordered when the trie is built rather than by the order they were added in.
+ *
+ * Routes that override isMatch() cannot be indexed; they are checked linearly and merged into the
+ * candidates by registration order, each reported just before the first remaining candidate that was
+ * registered after it.
+ *
+ * A trie is immutable once built and may be shared by every connection of a server.  Routes that are
+ * not shareable are created afresh for each connection by their RouteFactory via forConnection(), which
+ * reuses the compiled nodes.
+ */
+public class RouteTrie
+{
+  private static final Leaf[] NO_LEAVES = new Leaf[0];
+  private static final ParamEdge[] NO_PARAMS = new ParamEdge[0];
+
+  private final List<Route> _routes;
+  private final RouteFactory[] _factories;
+  private final Node _root;
+  private final Leaf[] _customMatchers;
+  private final boolean _isShareable;
+
+  public RouteTrie(List<Route> routes)
+  {
+    this(routes, null);
+  }
+
+  /**
+   * @param routes the routes, in registration order
+   * @param factories the factory of each route that is not shareable, null for shareable routes; or null
+   *                  if this trie serves a single connection
+   * @throws IllegalArgumentException if a route that is not shareable has no factory
+   */
+  public RouteTrie(List<Route> routes, List<RouteFactory> factories)
+  {
+    _routes = new ArrayList<Route>(routes);
+    _factories = factories != null ? factories.toArray(new RouteFactory[factories.size()]) : null;
+    _root = new Node();
+
+    if (_factories != null)
+    {
+      for (int i = 0; i < _routes.size(); i++)
+      {
+        if (!_routes.get(i).isShareable() && _factories[i] == null)
+        {
+          throw new IllegalArgumentException("route is not shareable and has no factory: " + _routes.get(i).getRoute());
+        }
+      }
+    }
+
+    List<Leaf> customMatchers = new ArrayList<Leaf>();
+
+    for (int i = 0; i < _routes.size(); i++)
+    {
+      Route route = _routes.get(i);
+
+      if (hasCustomMatcher(route))
+      {
+        customMatchers.add(new Leaf(i, route, null));
+      }
+      else
+      {
+        insert(route._route, route._params, new Leaf(i, route, route._params));
+      }
+    }
+
+    _customMatchers = customMatchers.toArray(new Leaf[customMatchers.size()]);
+    _isShareable = allShareable(_routes);
+  }
+
+  private RouteTrie(RouteTrie trie, List<Route> routes)
+  {
+    _routes = routes;
+    _factories = null;
+    _root = trie._root;
+    _customMatchers = trie._customMatchers;
+    _isShareable = allShareable(routes);
+  }
+
+  /**
+   * @return true if every route is shareable, in which case this trie can be used by all connections as is
+   */
+  public boolean isShareable()
+  {
+    return _isShareable;
+  }
+
+  /**
+   * Creates a trie for a single connection, keeping the shareable routes of this trie and creating the
+   * others with their factories.  Only the routes are created; the compiled nodes are shared.
+   *
+   * @return a trie sharing this trie's nodes
+   * @throws IllegalStateException if this trie has no factories, or a factory creates a different route
+   */
+  public RouteTrie forConnection()
+  {
+    if (_isShareable) return this;
+
+    if (_factories == null)
+    {
+      throw new IllegalStateException("route trie has no factories for its routes that are not shareable");
+    }
+
+    List<Route> routes = new ArrayList<Route>(_routes.size());
+
+    for (int i = 0; i < _routes.size(); i++)
+    {
+      Route route = _routes.get(i);
+      if (_factories[i] == null)
+      {
+        routes.add(route);
+        continue;
+      }
+
+      Route fresh = _factories[i].create();
+      if (fresh.getClass() != route.getClass() || !fresh.getRoute().equals(route.getRoute()))
+      {
+        throw new IllegalStateException("route factory created " + fresh.getRoute() + " instead of " + route.getRoute());
+      }
+      routes.add(fresh);
+    }
+
+    return new RouteTrie(this, routes);
+  }
+
+  public List<Route> getRoutes()
+  {
+    return _routes;
+  }
+
+  public Route get(int index)
+  {
+    return _routes.get(index);
+  }
+
+  /**
+   * Finds the routes matching the request.
+   *
+   * @param request the request being routed
+   * @param path the request path, as returned by RouteUtil.parsePath
+   * @return the indexes of the matching routes, most specific first
+   */
+  public int[] match(HttpRequest request, List<String> path)
+  {
+    Matches matches = new Matches();
+
+    collect(_root, path, 0, request.getMethod(), matches);
+
+    for (Leaf leaf : _customMatchers)
+    {
+      if (_routes.get(leaf.index).isMatch(request))
+      {
+        matches.addCustom(leaf);
+      }
+    }
+
+    return matches.toArray();
+  }
+
+  private void insert(List<String> segments, PathParam[] params, Leaf leaf)
+  {
+    Node node = _root;
+
+    int last = segments.size() - 1;
+
+    for (int i = 0; i < last; i++)
+    {
+      node = node.child(segments.get(i), params[i]);
+    }
+
+    if (last >= 0 && params[last] != null && params[last].isRest())
+    {
+      node.rest = append(node.rest, leaf);
+    }
+    else
+    {
+      if (last >= 0)
+      {
+        node = node.child(segments.get(last), params[last]);
+      }
+      node.exact = append(node.exact, leaf);
+    }
+  }
+
+  private static void collect(Node node, List<String> path, int depth, HttpMethod method, Matches matches)
+  {
+    if (depth == path.size())
+    {
+      addLeaves(node.exact, method, matches);
+      return;
+    }
+
+    addLeaves(node.rest, method, matches);
+
+    if (node.literals != null)
+    {
+      Node literal = node.literals.get(path.get(depth));
+      if (literal != null)
+      {
+        collect(literal, path, depth + 1, method, matches);
+      }
+    }
+
+    String segment = path.get(depth);
+    for (ParamEdge edge : node.params)
+    {
+      if (edge.param.matches(segment))
+      {
+        collect(edge.node, path, depth + 1, method, matches);
+      }
+    }
+  }
+
+  private static void addLeaves(Leaf[] leaves, HttpMethod method, Matches matches)
+  {
+    for (Leaf leaf : leaves)
+    {
+      if (leaf.method == null || leaf.method.equals(method))
+      {
+        matches.add(leaf);
+      }
+    }
+  }
+
+  private static Leaf[] append(Leaf[] leaves, Leaf leaf)
+  {
+    Leaf[] result = Arrays.copyOf(leaves, leaves.length + 1);
+    result[leaves.length] = leaf;
+    return result;
+  }
+
+  private static boolean allShareable(List<Route> routes)
+  {
+    for (Route route : routes)
+    {
+      if (!route.isShareable()) return false;
+    }
+    return true;
+  }
+
+  private static boolean hasCustomMatcher(Route route)
+  {
+    try
+    {
+      Class<?> declaringClass = route.getClass().getMethod("isMatch", HttpRequest.class).getDeclaringClass();
+      return declaringClass != Route.class && declaringClass != RestRoute.class;
+    }
+    catch (NoSuchMethodException e)
+    {
+      return true;
+    }
+  }
+
+  private static class Node
+  {
+    Map<String, Node> literals;
+    ParamEdge[] params = NO_PARAMS;
+    Leaf[] exact = NO_LEAVES;
+    Leaf[] rest = NO_LEAVES;
+
+    Node child(String segment, PathParam param)
+    {
+      if (param != null)
+      {
+        // parameters with the same constraint share an edge, whatever they are named
+        String key = param.getConstraintKey();
+        for (ParamEdge edge : params)
+        {
+          if (edge.key.equals(key)) return edge.node;
+        }
+
+        ParamEdge edge = new ParamEdge(key, param);
+        params = Arrays.copyOf(params, params.length + 1);
+        params[params.length - 1] = edge;
+        return edge.node;
+      }
+
+      if (literals == null) literals = new HashMap<String, Node>();
+
+      Node node = literals.get(segment);
+      if (node == null)
+      {
+        node = new Node();
+        literals.put(segment, node);
+      }
+      return node;
+    }
+  }
+
+  private static class ParamEdge
+  {
+    final String key;
+    final PathParam param;
+    final Node node = new Node();
+
+    ParamEdge(String key, PathParam param)
+    {
+      this.key = key;
+      this.param = param;
+    }
+  }
+
+  private static class Leaf
+  {
+    final int index;
+    final HttpMethod method;
+
+    /** the specificity of each segment, lower is more specific; null for routes with a custom matcher, which are not ranked */
+    final int[] ranks;
+
+    Leaf(int index, Route route, PathParam[] params)
+    {
+      this.index = index;
+      this.method = route.getMethod();
+
+      if (params == null)
+      {
+        ranks = null;
+      }
+      else
+      {
+        ranks = new int[params.length];
+        for (int i = 0; i < params.length; i++)
+        {
+          ranks[i] = params[i] == null ? 0 : params[i].type.ordinal() + 1;
+        }
+      }
+    }
+
+    boolean precedes(Leaf other)
+    {
+      int length = Math.min(ranks.length, other.ranks.length);
+      for (int i = 0; i < length; i++)
+      {
+        if (ranks[i] != other.ranks[i]) return ranks[i] < other.ranks[i];
+      }
+      if (ranks.length != other.ranks.length) return ranks.length < other.ranks.length;
+
+      return index < other.index;
+    }
+  }
+
+  private static class Matches
+  {
+    private Leaf[] _leaves = new Leaf[4];
+    private int _size = 0;
+
+    /** leaves of routes with a custom matcher, in registration order */
+    private Leaf[] _custom = NO_LEAVES;
+
+    void add(Leaf leaf)
+    {
+      if (_size == _leaves.length)
+      {
+        _leaves = Arrays.copyOf(_leaves, _size * 2);
+      }
+
+      // keep the most specific first; the candidate list is tiny so insertion is cheap
+      int i = _size++;
+      while (i > 0 && leaf.precedes(_leaves[i - 1]))
+      {
+        _leaves[i] = _leaves[i - 1];
+        i--;
+      }
+      _leaves[i] = leaf;
+    }
+
+    void addCustom(Leaf leaf)
+    {
+      _custom = append(_custom, leaf);
+    }
+
+    int[] toArray()
+    {
+      int[] indexes = new int[_size + _custom.length];
+      int ranked = 0;
+      int custom = 0;
+      for (int i = 0; i < indexes.length; i++)
+      {
+        if (custom < _custom.length && (ranked == _size || _custom[custom].index < _leaves[ranked].index))
+        {
+          indexes[i] = _custom[custom++].index;
+        }
+        else
+        {
+          indexes[i] = _leaves[ranked++].index;
+        }
+      }
+      return indexes;
+    }
+  }
+}
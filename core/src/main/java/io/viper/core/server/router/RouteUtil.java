@@ -3,43 +3,64 @@ package io.viper.core.server.router;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.util.CharsetUtil;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLDecoder;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class RouteUtil
 {
-  public static List<String> parsePath(String path)
-  {
-    int queryParamStart = path.indexOf("?");
+  private static final int MAX_COMPILED_ROUTES = 1024;
 
-    if (queryParamStart > 0)
-    {
-      path = path.substring(0, path.indexOf("?"));
-    }
+  /** routes compiled for the overloads that take the route's segments rather than its parameters */
+  private static final ConcurrentHashMap<List<String>, PathParam[]> _compiledRoutes = new ConcurrentHashMap<List<String>, PathParam[]>();
 
-    String[] parts = path.split("\\/");
+  public static List<String> parsePath(String path)
+  {
+    return parsePath(path, 0, pathEnd(path));
+  }
 
-    List<String> parsedPath = new ArrayList<String>();
+  /**
+   * Splits the path between start and end into its non-empty segments.
+   */
+  public static List<String> parsePath(String uri, int start, int end)
+  {
+    List<String> parsedPath = new ArrayList<String>(4);
 
-    for (String part : parts)
+    int segmentStart = start;
+    for (int i = start; i <= end; i++)
     {
-      if (part.isEmpty()) continue;
-      parsedPath.add(part);
+      if (i == end || uri.charAt(i) == '/')
+      {
+        if (i > segmentStart)
+        {
+          parsedPath.add(uri.substring(segmentStart, i));
+        }
+        segmentStart = i + 1;
+      }
     }
 
     return parsedPath;
   }
 
+  /**
+   * @return the index of the '?' that starts the query string of a URI, or its length if it has none
+   */
+  public static int pathEnd(String uri)
+  {
+    int queryParamStart = uri.indexOf('?');
+    return queryParamStart >= 0 ? queryParamStart : uri.length();
+  }
+
   public static Map<String, String> extractQueryParams(URI uri)
     throws UnsupportedEncodingException
   {
-    return extractQueryParams(uri.getQuery());
+    return extractQueryParams(uri.getRawQuery());
   }
 
   public static Map<String, String> extractQueryParams(String queryString)
@@ -52,33 +73,74 @@ public class RouteUtil
     throws UnsupportedEncodingException
   {
     Map<String, String> map = new HashMap<String, String>();
-    
+
     if (queryString != null)
     {
-      String[] parts = queryString.split("&");
-      for (String part : parts)
-      {
-        String[] pair = part.split("=");
-        if (pair.length != 2) continue;
-        // TODO: we should only urldecode iff the incoming encoding calls for it
-        map.put(pair[0], utf8Decode ? URLDecoder.decode(pair[1], "UTF-8") : pair[1]);
-      }
+      QueryDecoder.decode(queryString, 0, queryString.length(), utf8Decode, map);
+    }
+
+    return map;
+  }
+
+  /**
+   * @return every value of each query parameter, in the order they were given
+   */
+  public static Map<String, List<String>> extractQueryParamValues(String queryString)
+  {
+    Map<String, List<String>> map = new HashMap<String, List<String>>();
+
+    if (queryString != null)
+    {
+      QueryDecoder.decodeAll(queryString, 0, queryString.length(), true, map);
     }
 
     return map;
   }
-  
+
   public static boolean match(List<String> route, List<String> path)
   {
-    if (path.size() < route.size()) return false;
-    if (path.size() > route.size() && route.size() == 0) return false;
-    if ((path.size() > route.size()) && (!route.get(route.size()-1).startsWith("$"))) return false;
+    return match(route, compile(route), path);
+  }
+
+  /**
+   * @return the compiled parameters of a route, compiled once per distinct route
+   */
+  private static PathParam[] compile(List<String> route)
+  {
+    PathParam[] params = _compiledRoutes.get(route);
+    if (params == null)
+    {
+      params = PathParam.compile(route);
+      if (_compiledRoutes.size() < MAX_COMPILED_ROUTES)
+      {
+        // copied, as the caller may go on to change its list
+        _compiledRoutes.putIfAbsent(new ArrayList<String>(route), params);
+      }
+    }
+    return params;
+  }
+
+  /**
+   * @param params the compiled parameters of the route, as returned by PathParam.compile
+   */
+  public static boolean match(List<String> route, PathParam[] params, List<String> path)
+  {
+    int last = route.size() - 1;
+    boolean isRest = last >= 0 && params[last] != null && params[last].isRest();
+
+    if (isRest ? path.size() < route.size() : path.size() != route.size()) return false;
 
     for (int i = 0; i < route.size(); i++)
     {
-      if (route.get(i).startsWith("$")) continue;
-      if (route.get(i).equals(path.get(i))) continue;
-      return false;
+      PathParam param = params[i];
+      if (param == null)
+      {
+        if (!route.get(i).equals(path.get(i))) return false;
+      }
+      else if (!param.isRest() && !param.matches(path.get(i)))
+      {
+        return false;
+      }
     }
 
     return true;
@@ -88,69 +150,75 @@ public class RouteUtil
   public static Map<String, String> extractArgs(HttpRequest request, List<String> route, List<String> path)
     throws URISyntaxException, UnsupportedEncodingException, JSONException
   {
-    Map<String, String> args = RouteUtil.extractPathArgs(route, path);
-    args.putAll(RouteUtil.extractQueryParams(new URI(request.getUri())));
+    RouteArgs args = new RouteArgs();
+    RouteUtil.extractPathArgs(route, path, args);
 
-    ChannelBuffer content = request.getContent();
-    if (!content.hasArray())
-    {
-      return null;
-    }
-
-    byte[] body = content.array();
-    String contentLengthHeader = request.getHeader(HttpHeaders.Names.CONTENT_LENGTH);
+    String uri = request.getUri();
+    int pathEnd = pathEnd(uri);
+    args.addQuery(uri, Math.min(pathEnd + 1, uri.length()), uri.length(), true);
 
-    int contentLength =
-      contentLengthHeader != null
-        ? Integer.parseInt(request.getHeader(HttpHeaders.Names.CONTENT_LENGTH))
-        : body.length;
+    extractBodyArgs(request, true, args);
 
-    if (contentLength != body.length) {
-      body = Arrays.copyOfRange(body, 0, contentLength);
-    }
+    return args;
+  }
 
-    String rawContent = new String(body, "UTF-8");
+  /**
+   * Adds the fields of a JSON object or form encoded request body to args.  Form values are decoded from
+   * the request buffer when they are read.
+   *
+   * @param urlDecode false if form values are to be taken as they are sent
+   */
+  public static void extractBodyArgs(HttpRequest request, boolean urlDecode, RouteArgs args)
+    throws JSONException
+  {
+    ChannelBuffer content = request.getContent();
+    int start = content.readerIndex();
+    int length = content.readableBytes();
 
-    if (rawContent.startsWith("{"))
+    String contentLengthHeader = request.getHeader(HttpHeaders.Names.CONTENT_LENGTH);
+    if (contentLengthHeader != null)
     {
-      JSONObject json = new JSONObject(rawContent);
+      length = Math.min(length, Integer.parseInt(contentLengthHeader));
+    }
 
-      Iterator keys = json.keys();
-      while(keys.hasNext())
-      {
-        String key = keys.next().toString();
-        args.put(key, json.getString(key));
-      }
+    if (length > 0 && content.getByte(start) == '{')
+    {
+      args.addJson(new JSONObject(content.toString(start, length, CharsetUtil.UTF_8)));
     }
     else
     {
-      args.putAll(RouteUtil.extractQueryParams(rawContent));
+      args.addForm(content, start, start + length, urlDecode);
     }
-
-    return args;
   }
 
   public static Map<String, String> extractPathArgs(List<String> route, List<String> path)
   {
     Map<String, String> args = new HashMap<String, String>();
+    extractPathArgs(route, path, args);
+    return args;
+  }
 
-    for (int i = 0; i < route.size(); i++)
-    {
-      if (!route.get(i).startsWith("$")) continue;
+  public static void extractPathArgs(List<String> route, List<String> path, Map<String, String> args)
+  {
+    extractPathArgs(compile(route), path, args);
+  }
 
-      String varName = route.get(i).substring(1);
+  public static void extractPathArgs(PathParam[] params, List<String> path, Map<String, String> args)
+  {
+    for (int i = 0; i < params.length; i++)
+    {
+      PathParam param = params[i];
+      if (param == null) continue;
 
-      if (i < route.size()-1)
+      if (!param.isRest())
       {
-        args.put(varName, path.get(i));
+        args.put(param.name, path.get(i));
       }
       else
       {
-        args.put(varName, join(path.subList(i, path.size()), "/"));
+        args.put(param.name, join(path.subList(i, path.size()), "/"));
       }
     }
-
-    return args;
   }
 
   private static String join(List<String> s, String delim)
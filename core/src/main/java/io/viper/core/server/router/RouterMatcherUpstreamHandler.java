@@ -12,7 +12,6 @@ import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.util.CharsetUtil;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
@@ -21,19 +20,27 @@ import static org.jboss.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SER
 import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
 
+@ChannelHandler.Sharable
 public class RouterMatcherUpstreamHandler extends SimpleChannelUpstreamHandler
 {
 
-  private static final ChannelHandler HANDLER_401 = new StatusResponseHandler("Not authorized", 401);
-  private static final ChannelHandler HANDLER_404 = new StatusResponseHandler("Not found", 404);
+  private static final ChannelUpstreamHandler HANDLER_401 = new StatusResponseHandler("Not authorized", 401);
+  private static final ChannelUpstreamHandler HANDLER_404 = new StatusResponseHandler("Not found", 404);
 
   private final String _handlerName;
 
-  List<Route> _routes = new ArrayList<Route>();
+  private final RouteTrie _routes;
 
   public RouterMatcherUpstreamHandler(
     String handlerName,
     List<Route> routes)
+  {
+    this(handlerName, new RouteTrie(routes));
+  }
+
+  public RouterMatcherUpstreamHandler(
+    String handlerName,
+    RouteTrie routes)
   {
     _handlerName = handlerName;
     _routes = routes;
@@ -51,33 +58,99 @@ public class RouterMatcherUpstreamHandler extends SimpleChannelUpstreamHandler
 
     HttpRequest request = (HttpRequest) ((MessageEvent) e).getMessage();
 
+    RequestContext context = RequestContext.attach(ctx.getChannel(), request);
+    try
+    {
+      dispatch(ctx, e, request, context);
+    }
+    finally
+    {
+      RequestContext.detach(ctx.getChannel());
+    }
+  }
+
+  private void dispatch(ChannelHandlerContext ctx, ChannelEvent e, HttpRequest request, RequestContext context)
+    throws Exception
+  {
     boolean matchFound = false;
     boolean isAuthorized = false;
 
-    for (Route route : _routes)
+    for (int index : _routes.match(request, context.getPath()))
     {
-      if (!route.isMatch(request)) continue;
-      setHandler(ctx.getPipeline(), route.getChannelHandler());
+      Route route = _routes.get(index);
       matchFound = true;
       if (!route.isAuthorized(request)) continue;
       isAuthorized = true;
+
+      if (route.isDirectDispatch())
+      {
+        dispatchDirectly(ctx, e, (ChannelUpstreamHandler) route.getChannelHandler());
+        return;
+      }
+
+      setHandler(ctx, route.getChannelHandler());
       break;
     }
 
     if (!matchFound)
     {
-      setHandler(ctx.getPipeline(), HANDLER_404);
+      HANDLER_404.handleUpstream(ctx, e);
+      return;
     }
     else if (!isAuthorized)
     {
-      setHandler(ctx.getPipeline(), HANDLER_401);
+      HANDLER_401.handleUpstream(ctx, e);
+      return;
     }
 
     super.handleUpstream(ctx, e);
   }
 
-  private void setHandler(ChannelPipeline p, ChannelHandler handler)
+  /**
+   * Invokes a route's handler on this handler's context.  Exceptions it throws are handed to its own
+   * exceptionCaught, as they would be if it were in the pipeline, rather than reaching this handler's.
+   */
+  private void dispatchDirectly(ChannelHandlerContext ctx, ChannelEvent e, ChannelUpstreamHandler handler)
+    throws Exception
+  {
+    // a handler swapped in for an earlier request would otherwise see whatever the route passes on
+    removeHandler(ctx);
+
+    try
+    {
+      handler.handleUpstream(ctx, e);
+    }
+    catch (Exception ex)
+    {
+      handler.handleUpstream(ctx, new DefaultExceptionEvent(ctx.getChannel(), ex));
+    }
+  }
+
+  private void removeHandler(ChannelHandlerContext ctx)
+  {
+    if (ctx.getAttachment() == null) return;
+
+    ChannelPipeline p = ctx.getPipeline();
+    synchronized (p)
+    {
+      if (p.get(_handlerName) != null)
+      {
+        p.remove(_handlerName);
+      }
+    }
+
+    ctx.setAttachment(null);
+  }
+
+  /**
+   * Puts a route's handler after this one in the pipeline, unless it is already there from the previous
+   * request on the connection.
+   */
+  private void setHandler(ChannelHandlerContext ctx, ChannelHandler handler)
   {
+    if (ctx.getAttachment() == handler) return;
+
+    ChannelPipeline p = ctx.getPipeline();
     synchronized (p)
     {
       if (p.get(_handlerName) == null)
@@ -89,6 +162,9 @@ public class RouterMatcherUpstreamHandler extends SimpleChannelUpstreamHandler
         p.replace(_handlerName, _handlerName, handler);
       }
     }
+
+    // the context, and so its attachment, belongs to this connection even when this handler is shared
+    ctx.setAttachment(handler);
   }
 
   @Override
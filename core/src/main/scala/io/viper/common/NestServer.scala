@@ -118,9 +118,11 @@ class NestServer(val port: Int = 80) extends DelayedInit {
   }
 }
 
-class StaticServer(resourcePath: String, port: Int = 80) extends App {
+class StaticServer(resourcePath: String, port: Int = 80, preload: Boolean = false) extends App {
   import NestServer._
-  create(getMaxContentLength, port, new ViperServer(resourcePath))
+  val viperServer = new ViperServer(resourcePath)
+  if (preload) viperServer.preload()
+  create(getMaxContentLength, port, viperServer)
   Thread.currentThread.join()
 }
 
@@ -129,6 +131,11 @@ class MultiHostServer(port: Int = 80) {
 
   val runners = new ListBuffer[VirtualServerRunner]
 
+  /** load every host's static content before the port is bound */
+  var preload = false
+
+  private val _viperServers = new ListBuffer[ViperServer]
+
   def run() {
     try {
       runners.foreach(_.start())
@@ -137,6 +144,11 @@ class MultiHostServer(port: Int = 80) {
         viperServer.resourceInstance = runner.getClass
         route(runner.hostname, viperServer)
       }
+      if (preload) {
+        val start = System.currentTimeMillis
+        _viperServers.foreach(_.preload())
+        println("preloaded %d hosts in %d ms".format(_viperServers.size, System.currentTimeMillis - start))
+      }
       create(getMaxContentLength, port, server)
       Thread.currentThread.join()
     } finally {
@@ -157,11 +169,12 @@ class MultiHostServer(port: Int = 80) {
   }
 
   def route(hostname: String, server: ViperServer) {
+    _viperServers += server
     _server.putRoute(hostname, port, server)
   }
 
   def route(hostname: String, resourcePath: String, f:(RestServer) => Unit) {
-    _server.putRoute(hostname, port, new ViperServer(resourcePath) {
+    route(hostname, new ViperServer(resourcePath) {
       override def addRoutes() { f(this) }
     })
   }
@@ -171,7 +184,7 @@ class MultiHostServer(port: Int = 80) {
   }
 
   def route(virtualServer: VirtualServer): VirtualServer = {
-    server.putRoute(virtualServer.hostname, port, virtualServer)
+    route(virtualServer.hostname, virtualServer)
     virtualServer
   }
 
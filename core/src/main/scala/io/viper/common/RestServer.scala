@@ -4,33 +4,153 @@ package io.viper.common
 import org.jboss.netty.channel.{DefaultChannelPipeline, ChannelPipeline, ChannelPipelineFactory}
 import io.viper.core.server.router._
 import org.jboss.netty.handler.codec.http.{HttpChunkAggregator, HttpResponseEncoder, HttpRequestDecoder}
+import org.jboss.netty.handler.stream.ChunkedWriteHandler
 import java.util
 import io.viper.core.server.security.AuthHandler
+import collection.mutable.ListBuffer
+import scala.collection.JavaConverters._
 
 trait RestServer extends ChannelPipelineFactory
 {
-  var routes = List[Route]()
+  /**
+   * The routes and factories of one run of addRoutes, in registration order.
+   */
+  private class Registration
+  {
+    val routes = new ListBuffer[Route]
+    val factories = new ListBuffer[RouteFactory]
+
+    /**
+     * A route that is not shareable but was added without a factory has to be created afresh for every
+     * connection, which only running addRoutes again can do.
+     */
+    def needsRebuild: Boolean = routes.zip(factories).exists { case (route, factory) => factory == null && !route.isShareable }
+  }
+
+  @volatile private var _registration: Registration = null
+  @volatile private var _routes = List[Route]()
+
+  /**
+   * The route table is compiled once, from a single run of addRoutes, and shared by every connection.
+   * Routes that are not shareable are registered with a factory and only they are created per connection.
+   * Servers that add such routes without a factory get the old behaviour instead: addRoutes runs again for
+   * every connection and its routes are compiled for that connection alone.
+   */
+  @volatile private var _routeTable: RouteTrie = null
+
+  private lazy val _sharedRouter = new RouterMatcherUpstreamHandler("uri-handlers", _routeTable)
+
+  /**
+   * @return the routes of the last successful run of addRoutes, or, while addRoutes runs, those added so far
+   */
+  def routes: List[Route] = {
+    val registration = _registration
+    if (registration != null) registration.routes.toList else _routes
+  }
+
+  /**
+   * Replaces the routes added so far by the running addRoutes, keeping the factories of those it keeps.
+   */
+  def routes_=(routes: List[Route]) {
+    val registration = current
+    val factories = routes.map(route => {
+      val i = registration.routes.indexWhere(_ eq route)
+      if (i >= 0) registration.factories(i) else null
+    })
+    registration.routes.clear()
+    registration.routes ++= routes
+    registration.factories.clear()
+    registration.factories ++= factories
+  }
 
   def getMaxContentLength: Int = 1024*1024*1024
 
   def getPipeline: ChannelPipeline = {
-    routes = List[Route]()
-    addRoutes()
     buildPipeline()
   }
 
+  /**
+   * @return the route table for a new connection
+   */
+  protected def routeTable: RouteTrie = {
+    val shared = _routeTable
+    if (shared != null) shared.forConnection() else compileRouteTable()
+  }
+
+  private def compileRouteTable(): RouteTrie = synchronized {
+    if (_routeTable != null) {
+      _routeTable.forConnection()
+    } else {
+      val registration = register()
+      if (registration.needsRebuild) {
+        val table = new RouteTrie(registration.routes.asJava)
+        _routes = registration.routes.toList
+        table
+      } else {
+        val table = new RouteTrie(registration.routes.asJava, registration.factories.asJava)
+        _routes = registration.routes.toList
+        _routeTable = table
+        table.forConnection()
+      }
+    }
+  }
+
+  /**
+   * Runs addRoutes into a fresh registration, so a run that fails leaves no routes behind.
+   */
+  private def register(): Registration = {
+    val registration = new Registration
+    _registration = registration
+    try {
+      addRoutes()
+      addDefaultRoutes()
+    } finally {
+      _registration = null
+    }
+    registration
+  }
+
+  private def current: Registration = {
+    val registration = _registration
+    if (registration == null) throw new IllegalStateException("routes can only be added from addRoutes")
+    registration
+  }
+
   protected def buildPipeline(): ChannelPipeline = {
-    import scala.collection.JavaConverters._
+    val table = routeTable
+    val router = if (table eq _routeTable) _sharedRouter else new RouterMatcherUpstreamHandler("uri-handlers", table)
     val lhPipeline = new DefaultChannelPipeline
     lhPipeline.addLast("rest-decoder", new HttpRequestDecoder)
     lhPipeline.addLast("rest-encoder", new HttpResponseEncoder)
     lhPipeline.addLast("rest-chunker", new HttpChunkAggregator(getMaxContentLength))
-    lhPipeline.addLast("rest-uri-router", new RouterMatcherUpstreamHandler("uri-handlers", routes.asJava))
+    lhPipeline.addLast("rest-chunked-writer", new ChunkedWriteHandler)
+    lhPipeline.addLast("rest-uri-router", router)
     lhPipeline
   }
 
+  /**
+   * Adds a route.  A route that is not shareable should be added with a factory instead; if it is not,
+   * addRoutes runs again for every connection.
+   */
   def addRoute(route: Route) {
-    routes = routes ++ List(route)
+    val registration = current
+    registration.routes += route
+    registration.factories += null
+  }
+
+  /**
+   * Adds a route that is not shareable.  The factory is called once now and then once for each connection.
+   */
+  def addRoute(factory: RouteFactory) {
+    val registration = current
+    registration.routes += factory.create()
+    registration.factories += factory
+  }
+
+  def addRoute(factory: () => Route) {
+    addRoute(new RouteFactory {
+      def create() = factory()
+    })
   }
 
   def get(route: String, handler: RouteHandler, authHandler: AuthHandler = null) {
@@ -72,4 +192,6 @@ trait RestServer extends ChannelPipelineFactory
   }
 
   def addRoutes()
+
+  protected def addDefaultRoutes() {}
 }
\ No newline at end of file
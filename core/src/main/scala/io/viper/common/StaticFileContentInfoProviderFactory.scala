@@ -1,19 +1,264 @@
 package io.viper.common
 
 
-import io.viper.core.server.file.{FileContentInfoProvider, InsertOnlyFileContentInfoCache, StaticFileContentInfoProvider}
+import io.viper.core.server.file.{AssetFingerprints, FileChannelPool, FileContentInfoCache, FileContentInfoProvider, LruFileContentInfoCache, NegativeLookupCache, StaticFileContentInfoProvider, StaticFilePreloader, StaticFileWatcher, TieredFileContentInfoCache}
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
 
 
+/**
+ * Creates static file providers.  Cached providers are shared process-wide, keyed by resource path and
+ * class loader, so every connection and every server serving the same content hits the same cache.
+ * Caches of filesystem roots are kept up to date by a StaticFileWatcher.
+ */
 object StaticFileContentInfoProviderFactory
 {
   var _enableCache = true
+  var _maxCacheBytes: Long = 256L * 1024 * 1024
+  var _maxCacheEntries: Int = 16 * 1024
+  var _sendFileThreshold: Long = StaticFileContentInfoProvider.DEFAULT_SENDFILE_THRESHOLD
+  var _watchFiles = true
+  var _tiered = false
+  var _maxOffHeapBytes: Long = 0
+  var _negativeCacheTtlMillis: Long = 10 * 1000
+  var _negativeCacheEntries: Int = 16 * 1024
+  var _fingerprintAssets = false
+  var _minify = false
+  var _compressText = false
+  var _directJarContent = false
+
+  private case class Bundle(root: String, path: String, parts: Seq[String])
+
+  private val _bundles = new ListBuffer[Bundle]
+
+  private case class CacheKey(classLoader: ClassLoader, packageName: String, resourcePath: String)
+
+  private val _caches = new ConcurrentHashMap[CacheKey, FileContentInfoCache]
 
   def enableCache(enabled: Boolean) {
     _enableCache = enabled
   }
 
+  /**
+   * Makes caches created afterwards keep small files on the heap, medium files in direct memory and large
+   * or cold files on disk, instead of holding all cached content in one LRU.
+   */
+  def useTieredCache(maxHeapBytes: Long, maxOffHeapBytes: Long) {
+    _tiered = true
+    _maxCacheBytes = maxHeapBytes
+    _maxOffHeapBytes = maxOffHeapBytes
+  }
+
+  /**
+   * Enables watching the roots of filesystem caches created afterwards, so changed and deleted files are
+   * reloaded instead of served stale.
+   */
+  def watchFiles(enabled: Boolean) {
+    _watchFiles = enabled
+  }
+
+  /**
+   * Makes caches created afterwards serve every asset under a fingerprinted alias as well, and rewrite
+   * HTML pages to reference the aliases, so clients can cache assets as immutable.
+   */
+  def fingerprintAssets(enabled: Boolean) {
+    _fingerprintAssets = enabled
+  }
+
+  /**
+   * Makes providers created afterwards minify CSS, JavaScript and HTML as it is loaded.
+   */
+  def minifyText(enabled: Boolean) {
+    _minify = enabled
+  }
+
+  /**
+   * Makes providers created afterwards gzip text content that has no precompressed sidecar as it is loaded.
+   */
+  def compressText(enabled: Boolean) {
+    _compressText = enabled
+  }
+
+  /**
+   * Makes providers created afterwards copy deflated jar entries into direct buffers instead of the heap.
+   */
+  def directJarContent(enabled: Boolean) {
+    _directJarContent = enabled
+  }
+
+  /**
+   * Declares a bundle for providers of a resource path created afterwards: the bundle path serves the
+   * parts concatenated in order, e.g. bundle("res:///site/", "js/all.js", "js/a.js", "js/b.js").
+   */
+  def bundle(resourcePath: String, path: String, parts: String*) {
+    _bundles.synchronized {
+      _bundles += Bundle(resourcePath.stripSuffix("/"), path, parts)
+    }
+  }
+
+  /**
+   * Sets the limits of each cache created afterwards.
+   */
+  def setCacheLimits(maxBytes: Long, maxEntries: Int) {
+    _maxCacheBytes = maxBytes
+    _maxCacheEntries = maxEntries
+  }
+
+  /**
+   * Sets how long, and for how many paths, caches created afterwards remember files that were not found.
+   * A ttl of zero disables negative caching.
+   */
+  def setNegativeCacheLimits(ttlMillis: Long, maxEntries: Int) {
+    _negativeCacheTtlMillis = ttlMillis
+    _negativeCacheEntries = maxEntries
+  }
+
+  /**
+   * Sets the size above which files created afterwards are sent with sendfile instead of from memory.
+   */
+  def setSendFileThreshold(bytes: Long) {
+    _sendFileThreshold = bytes
+  }
+
+  /**
+   * Sets the process-wide limits on the file descriptors held open, and the bytes mapped, by static content.
+   */
+  def setFileLimits(maxOpenFiles: Int, maxMappedBytes: Long) {
+    FileChannelPool.SHARED.setMaxOpenFiles(maxOpenFiles)
+    FileChannelPool.SHARED.setMaxMappedBytes(maxMappedBytes)
+  }
+
   def create(clazz: Class[_], resourcePath: String): FileContentInfoProvider = {
-    val rawFileProvider = StaticFileContentInfoProvider.create(clazz, resourcePath)
-    if (_enableCache) new InsertOnlyFileContentInfoCache(rawFileProvider) else rawFileProvider
+    if (_enableCache) getOrCreateCache(clazz, resourcePath) else createProvider(clazz, resourcePath)
+  }
+
+  /**
+   * Loads the content under a resource path into its shared cache, in parallel, up to the cache's byte
+   * budget.  Does nothing when caching is disabled.
+   */
+  def preload(clazz: Class[_], resourcePath: String): Option[StaticFilePreloader.Result] = {
+    if (!_enableCache) return None
+
+    val maxBytes = if (_tiered) _maxCacheBytes + _maxOffHeapBytes else _maxCacheBytes
+    val result = StaticFilePreloader.preload(createProvider(clazz, resourcePath), getOrCreateCache(clazz, resourcePath), maxBytes)
+    println("preloaded %s: %s".format(resourcePath, result))
+    Some(result)
+  }
+
+  private def createProvider(clazz: Class[_], resourcePath: String): StaticFileContentInfoProvider = {
+    val provider = StaticFileContentInfoProvider.create(clazz, resourcePath)
+    provider.setSendFileThreshold(_sendFileThreshold)
+    provider.setMinify(_minify)
+    provider.setCompressText(_compressText)
+    provider.setDirectJarContent(_directJarContent)
+    _bundles.synchronized {
+      for (bundle <- _bundles if bundle.root == resourcePath.stripSuffix("/")) {
+        provider.addBundle(bundle.path, bundle.parts.asJava)
+      }
+    }
+    provider
+  }
+
+  private def getOrCreateCache(clazz: Class[_], resourcePath: String): FileContentInfoCache = {
+    val key = cacheKey(clazz, resourcePath)
+    val cache = _caches.get(key)
+    if (cache != null) {
+      cache
+    } else {
+      // caches are only created once per root, so creating them under a lock costs nothing on the request
+      // path and no provider or watcher is ever created just to be thrown away
+      _caches.synchronized {
+        val existing = _caches.get(key)
+        if (existing != null) {
+          existing
+        } else {
+          val provider = createProvider(clazz, resourcePath)
+          val lookups: FileContentInfoProvider =
+            if (_negativeCacheTtlMillis > 0) {
+              new NegativeLookupCache(provider, _negativeCacheTtlMillis, _negativeCacheEntries)
+            } else {
+              provider
+            }
+          val created: FileContentInfoCache =
+            if (_tiered) {
+              new TieredFileContentInfoCache(lookups, _maxCacheBytes, _maxOffHeapBytes, _maxCacheEntries)
+            } else {
+              new LruFileContentInfoCache(lookups, _maxCacheBytes, _maxCacheEntries)
+            }
+          val outer: FileContentInfoCache = if (_fingerprintAssets) new AssetFingerprints(created) else created
+          _caches.put(key, outer)
+          if (_watchFiles && !provider.isFromClasspath && provider.getSitePack == null) watch(provider, outer)
+          outer
+        }
+      }
+    }
+  }
+
+  private def watch(provider: StaticFileContentInfoProvider, cache: FileContentInfoCache) {
+    try {
+      StaticFileWatcher.watch(provider, cache)
+    } catch {
+      case e: IOException => e.printStackTrace()
+    }
+  }
+
+  private def cacheKey(clazz: Class[_], resourcePath: String): CacheKey = {
+    if (resourcePath.startsWith("res://")) {
+      // relative resource paths resolve against the package of the class
+      val path = resourcePath.replace("res://", "")
+      val packageName = if (path.startsWith("/") || clazz.getPackage == null) "" else clazz.getPackage.getName
+      CacheKey(clazz.getClassLoader, packageName, path.stripSuffix("/"))
+    } else {
+      CacheKey(null, "", resourcePath.stripSuffix("/"))
+    }
+  }
+
+  /**
+   * @return the fingerprints of the shared cache for a resource path, for rewriting HTML rendered elsewhere
+   */
+  def fingerprints(clazz: Class[_], resourcePath: String): Option[AssetFingerprints] = {
+    _caches.get(cacheKey(clazz, resourcePath)) match {
+      case fingerprints: AssetFingerprints => Some(fingerprints)
+      case _ => None
+    }
+  }
+
+  def hitCount: Long = _caches.values.asScala.map(_.getHitCount).sum
+
+  def missCount: Long = _caches.values.asScala.map(_.getMissCount).sum
+
+  def evictionCount: Long = lruCaches.map(_.getEvictionCount).sum + tieredCaches.map(_.getDemotionCount).sum
+
+  def residentBytes: Long = {
+    lruCaches.map(_.getResidentBytes).sum + tieredCaches.map(c => c.getHeapBytes + c.getOffHeapBytes).sum
+  }
+
+  def openFiles: Int = FileChannelPool.SHARED.getOpenFiles
+
+  def mappedBytes: Long = FileChannelPool.SHARED.getMappedBytes
+
+  /**
+   * @return the number of lookups for missing files answered without touching the filesystem
+   */
+  def absorbedMissCount: Long = {
+    val providers = lruCaches.map(_.getProvider) ++ tieredCaches.map(_.getProvider)
+    providers.collect { case cache: NegativeLookupCache => cache.getHitCount }.sum
+  }
+
+  private def lruCaches: Iterable[LruFileContentInfoCache] = {
+    innerCaches.collect { case cache: LruFileContentInfoCache => cache }
+  }
+
+  private def tieredCaches: Iterable[TieredFileContentInfoCache] = {
+    innerCaches.collect { case cache: TieredFileContentInfoCache => cache }
+  }
+
+  private def innerCaches: Iterable[FileContentInfoProvider] = {
+    _caches.values.asScala.map {
+      case fingerprints: AssetFingerprints => fingerprints.getProvider
+      case cache => cache
+    }
   }
 }
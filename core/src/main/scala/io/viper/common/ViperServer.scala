@@ -20,16 +20,16 @@ class ViperServer(resourcePath: String) extends ChannelPipelineFactory with Rest
 {
   var resourceInstance: Class[_]  = this.getClass
 
-  override def getPipeline: ChannelPipeline = {
-    routes = List[Route]()
-    addRoutes()
-    addDefaultRoutes()
-    buildPipeline()
-  }
-
   override def addRoutes() {}
 
-  private def addDefaultRoutes() {
+  /**
+   * Loads this server's static content into the shared cache, so it is served from memory from the first request.
+   */
+  def preload() {
+    StaticFileContentInfoProviderFactory.preload(resourceInstance, resourcePath)
+  }
+
+  override protected def addDefaultRoutes() {
     val provider = StaticFileContentInfoProviderFactory.create(resourceInstance, resourcePath)
     val handler = new StaticFileServerHandler(provider)
     get("/$path", handler)
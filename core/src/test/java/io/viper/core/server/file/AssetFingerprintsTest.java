@@ -0,0 +1,64 @@
+package io.viper.core.server.file;
+
+
+import org.junit.Test;
+
+import static io.viper.core.server.file.CountingProvider.isDisposed;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+public class AssetFingerprintsTest
+{
+  @Test
+  public void testAliasedContentIsLoadedOnce()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a.js", 10);
+    AssetFingerprints fingerprints = new AssetFingerprints(provider);
+
+    String alias = fingerprints.getAlias("/a.js");
+    assertEquals(1, provider.loads);
+
+    FileContentInfo contentInfo = fingerprints.getAliasedContent(alias);
+    assertNotNull(contentInfo);
+    assertEquals(10, contentInfo.getLength());
+    assertEquals(2, provider.loads);
+
+    fingerprints.dispose(contentInfo);
+  }
+
+  @Test
+  public void testStaleAliasIsNotServed()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a.js", 10);
+    AssetFingerprints fingerprints = new AssetFingerprints(provider);
+
+    String alias = fingerprints.getAlias("/a.js");
+    provider.lengths.put("/a.js", 20);
+
+    assertNull(fingerprints.getAliasedContent(alias));
+    assertNull(fingerprints.resolve(alias));
+    assertEquals(3, provider.disposed.size());
+  }
+
+  @Test
+  public void testPathsThatAreNotAliases()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a.js", 10);
+    AssetFingerprints fingerprints = new AssetFingerprints(provider);
+
+    assertNull(fingerprints.getAliasedContent("/a.js"));
+    assertNull(fingerprints.getAliasedContent("/a.0123456789abcdef.js"));
+    assertNull(fingerprints.getAliasedContent(null));
+    assertEquals(0, provider.loads);
+
+    FileContentInfo contentInfo = fingerprints.getFileContent("/a.js");
+    assertFalse(isDisposed(contentInfo));
+    fingerprints.dispose(contentInfo);
+  }
+}
@@ -0,0 +1,97 @@
+package io.viper.core.server.file;
+
+
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class ByteRangeTest
+{
+  private static void assertRange(long start, long end, ByteRange range)
+  {
+    assertEquals(start, range.start);
+    assertEquals(end, range.end);
+  }
+
+  @Test
+  public void testClosedRange()
+  {
+    List<ByteRange> ranges = ByteRange.parse("bytes=0-99", 1000);
+
+    assertEquals(1, ranges.size());
+    assertRange(0, 99, ranges.get(0));
+    assertEquals(100, ranges.get(0).length());
+    assertEquals("bytes 0-99/1000", ranges.get(0).toContentRange(1000));
+  }
+
+  @Test
+  public void testOpenRangeRunsToTheEnd()
+  {
+    assertRange(900, 999, ByteRange.parse("bytes=900-", 1000).get(0));
+  }
+
+  @Test
+  public void testEndIsClamped()
+  {
+    assertRange(900, 999, ByteRange.parse("bytes=900-5000", 1000).get(0));
+  }
+
+  @Test
+  public void testSuffixRange()
+  {
+    assertRange(900, 999, ByteRange.parse("bytes=-100", 1000).get(0));
+    assertRange(0, 999, ByteRange.parse("bytes=-5000", 1000).get(0));
+  }
+
+  @Test
+  public void testMultipleRanges()
+  {
+    List<ByteRange> ranges = ByteRange.parse(" bytes=0-0, 10-19 ,-1", 1000);
+
+    assertEquals(3, ranges.size());
+    assertRange(0, 0, ranges.get(0));
+    assertRange(10, 19, ranges.get(1));
+    assertRange(999, 999, ranges.get(2));
+  }
+
+  @Test
+  public void testUnsatisfiableRangesAreSkipped()
+  {
+    List<ByteRange> ranges = ByteRange.parse("bytes=1000-1100,-0,5-9", 1000);
+
+    assertEquals(1, ranges.size());
+    assertRange(5, 9, ranges.get(0));
+
+    assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+    assertTrue(ByteRange.parse("bytes=0-10", 0).isEmpty());
+  }
+
+  @Test
+  public void testMalformedHeadersAreIgnored()
+  {
+    assertNull(ByteRange.parse(null, 1000));
+    assertNull(ByteRange.parse("items=0-10", 1000));
+    assertNull(ByteRange.parse("bytes=10", 1000));
+    assertNull(ByteRange.parse("bytes=20-10", 1000));
+    assertNull(ByteRange.parse("bytes=a-b", 1000));
+    assertNull(ByteRange.parse("bytes=-", 1000));
+    assertNull(ByteRange.parse("bytes=0-10,x", 1000));
+  }
+
+  @Test
+  public void testTooManyRangesAreIgnored()
+  {
+    StringBuilder header = new StringBuilder("bytes=");
+    for (int i = 0; i <= ByteRange.MAX_RANGES; i++)
+    {
+      if (i > 0) header.append(',');
+      header.append(i * 10).append('-').append(i * 10 + 1);
+    }
+
+    assertNull(ByteRange.parse(header.toString(), 1000));
+  }
+}
@@ -0,0 +1,73 @@
+package io.viper.core.server.file;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Serves in-memory content of the length given per path, or the file given per path, counting loads and
+ * recording what it is asked to dispose.
+ */
+class CountingProvider implements FileContentInfoProvider
+{
+  final Map<String, Integer> lengths = new HashMap<String, Integer>();
+  final Map<String, File> files = new HashMap<String, File>();
+  final List<FileContentInfo> disposed = new ArrayList<FileContentInfo>();
+  int loads = 0;
+
+  /** run once, during the next load, e.g. to race it with another load or an invalidation */
+  Runnable duringLoad;
+
+  @Override
+  public FileContentInfo getFileContent(String path)
+  {
+    File file = files.get(path);
+    Integer length = lengths.get(path);
+    if (file == null && length == null) return null;
+
+    loads++;
+    if (duringLoad != null)
+    {
+      Runnable runnable = duringLoad;
+      duringLoad = null;
+      runnable.run();
+    }
+
+    try
+    {
+      if (file != null) return FileContentInfo.create(file, new HashMap<String, String>(), 0);
+
+      byte[] bytes = new byte[length];
+      for (int i = 0; i < length; i++)
+      {
+        bytes[i] = (byte) i;
+      }
+      return FileContentInfo.create(bytes, new HashMap<String, String>());
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void dispose(FileContentInfo info)
+  {
+    disposed.add(info);
+    info.dispose();
+  }
+
+  /**
+   * @return true once the last reference to the content is gone
+   */
+  static boolean isDisposed(FileContentInfo contentInfo)
+  {
+    if (!contentInfo.retain()) return true;
+    contentInfo.release();
+    return false;
+  }
+}
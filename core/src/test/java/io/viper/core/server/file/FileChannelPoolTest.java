@@ -0,0 +1,61 @@
+package io.viper.core.server.file;
+
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+
+public class FileChannelPoolTest
+{
+  @Test
+  public void testMapReleasesItsSlot()
+    throws Exception
+  {
+    File file = File.createTempFile("pool", ".txt");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try
+    {
+      out.write(new byte[16]);
+    }
+    finally
+    {
+      out.close();
+    }
+
+    FileChannelPool pool = new FileChannelPool(4, 1024);
+    ByteBuffer buffer = pool.map(file, 1024);
+
+    assertNotNull(buffer);
+    assertEquals(16, buffer.remaining());
+    assertEquals(16, pool.getMappedBytes());
+    assertEquals(0, pool.getOpenFiles());
+  }
+
+  @Test
+  public void testFailedOpenReleasesItsSlot()
+    throws Exception
+  {
+    FileChannelPool pool = new FileChannelPool(4, 1024);
+
+    try
+    {
+      pool.map(new File("/missing/file.txt"), 1024);
+      fail();
+    }
+    catch (FileNotFoundException e)
+    {
+      // expected
+    }
+
+    assertEquals(0, pool.getOpenFiles());
+    assertEquals(0, pool.getMappedBytes());
+  }
+}
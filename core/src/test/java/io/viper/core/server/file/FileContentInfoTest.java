@@ -0,0 +1,125 @@
+package io.viper.core.server.file;
+
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+public class FileContentInfoTest
+{
+  private FileContentInfo _identity;
+  private FileContentInfo _gzip;
+  private FileContentInfo _br;
+
+  @Before
+  public void setUp()
+    throws Exception
+  {
+    _identity = FileContentInfo.create(new byte[100], new HashMap<String, String>());
+    _gzip = encoded("gzip", 40);
+    _br = encoded("br", 30);
+
+    Map<String, FileContentInfo> encodings = new HashMap<String, FileContentInfo>();
+    encodings.put("gzip", _gzip);
+    encodings.put("br", _br);
+    _identity.encodings = encodings;
+  }
+
+  private static FileContentInfo encoded(String coding, int length)
+    throws Exception
+  {
+    FileContentInfo encoded = FileContentInfo.create(new byte[length], new HashMap<String, String>());
+    encoded.contentEncoding = coding;
+    return encoded;
+  }
+
+  @Test
+  public void testNoHeaderSelectsIdentity()
+  {
+    assertSame(_identity, _identity.selectEncoding(null));
+  }
+
+  @Test
+  public void testEmptyHeaderSelectsIdentity()
+  {
+    assertSame(_identity, _identity.selectEncoding(""));
+  }
+
+  @Test
+  public void testEqualQualityPrefersSmallest()
+  {
+    assertSame(_br, _identity.selectEncoding("gzip, br"));
+  }
+
+  @Test
+  public void testHigherQualityWins()
+  {
+    assertSame(_gzip, _identity.selectEncoding("gzip;q=1.0, br;q=0.5"));
+  }
+
+  @Test
+  public void testCodingsAreCaseInsensitive()
+  {
+    assertSame(_gzip, _identity.selectEncoding("GZip"));
+  }
+
+  @Test
+  public void testRefusedCodingIsNeverSelected()
+  {
+    assertSame(_identity, _identity.selectEncoding("gzip;q=0"));
+    assertSame(_gzip, _identity.selectEncoding("gzip;q=0.1, br;q=0"));
+  }
+
+  @Test
+  public void testUnknownCodingSelectsIdentity()
+  {
+    assertSame(_identity, _identity.selectEncoding("compress"));
+  }
+
+  @Test
+  public void testWildcardCoversUnlistedCodings()
+  {
+    assertSame(_br, _identity.selectEncoding("*"));
+    assertSame(_gzip, _identity.selectEncoding("br;q=0, *;q=0.5"));
+  }
+
+  @Test
+  public void testIdentityPreferredWhenRankedHigher()
+  {
+    assertSame(_identity, _identity.selectEncoding("identity;q=1, gzip;q=0.5"));
+  }
+
+  @Test
+  public void testRefusedIdentityFallsBackToCoding()
+  {
+    assertSame(_gzip, _identity.selectEncoding("identity;q=0, gzip;q=0.1"));
+  }
+
+  @Test
+  public void testNothingAcceptable()
+  {
+    assertNull(_identity.selectEncoding("identity;q=0"));
+    assertNull(_identity.selectEncoding("*;q=0"));
+    assertNull(_identity.selectEncoding("gzip;q=0, br;q=0, identity;q=0"));
+  }
+
+  @Test
+  public void testWildcardRefusalKeepsListedIdentity()
+  {
+    assertSame(_identity, _identity.selectEncoding("*;q=0, identity"));
+  }
+
+  @Test
+  public void testRefusedIdentityWithoutEncodings()
+    throws Exception
+  {
+    FileContentInfo plain = FileContentInfo.create(new byte[10], new HashMap<String, String>());
+    assertSame(plain, plain.selectEncoding("gzip"));
+    assertNull(plain.selectEncoding("identity;q=0"));
+  }
+}
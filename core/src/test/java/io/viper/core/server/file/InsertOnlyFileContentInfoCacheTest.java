@@ -0,0 +1,178 @@
+package io.viper.core.server.file;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static io.viper.core.server.file.CountingProvider.isDisposed;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class InsertOnlyFileContentInfoCacheTest
+{
+  private static CountingProvider provider()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a", 10);
+    provider.lengths.put("/b", 10);
+    return provider;
+  }
+
+  @Test
+  public void testHitReturnsCachedContent()
+  {
+    CountingProvider provider = provider();
+    InsertOnlyFileContentInfoCache cache = new InsertOnlyFileContentInfoCache(provider);
+
+    FileContentInfo first = cache.getFileContent("/a");
+    cache.dispose(first);
+    FileContentInfo second = cache.getFileContent("/a");
+    cache.dispose(second);
+
+    assertSame(first, second);
+    assertEquals(1, provider.loads);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    // the cache still holds its own reference
+    assertFalse(isDisposed(first));
+  }
+
+  @Test
+  public void testMissingPath()
+  {
+    InsertOnlyFileContentInfoCache cache = new InsertOnlyFileContentInfoCache(new CountingProvider());
+
+    assertNull(cache.getFileContent("/missing"));
+    assertNull(cache.getFileContent(null));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testLosingInsertRaceDisposesOwnCopy()
+  {
+    final CountingProvider provider = provider();
+    final InsertOnlyFileContentInfoCache cache = new InsertOnlyFileContentInfoCache(provider);
+    final FileContentInfo[] winner = new FileContentInfo[1];
+
+    provider.duringLoad = new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        winner[0] = cache.getFileContent("/a");
+      }
+    };
+
+    FileContentInfo loser = cache.getFileContent("/a");
+
+    assertSame(winner[0], loser);
+    assertEquals(2, provider.loads);
+    assertEquals(1, provider.disposed.size());
+    assertNotSame(winner[0], provider.disposed.get(0));
+
+    cache.dispose(winner[0]);
+    cache.dispose(loser);
+    assertFalse(isDisposed(winner[0]));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testInvalidatedContentLivesUntilDisposed()
+  {
+    CountingProvider provider = provider();
+    InsertOnlyFileContentInfoCache cache = new InsertOnlyFileContentInfoCache(provider);
+
+    FileContentInfo first = cache.getFileContent("/a");
+    cache.invalidate("/a");
+    assertEquals(0, cache.size());
+    assertFalse(isDisposed(first));
+
+    cache.dispose(first);
+    assertTrue(isDisposed(first));
+
+    FileContentInfo second = cache.getFileContent("/a");
+    cache.dispose(second);
+    assertNotSame(first, second);
+    assertEquals(2, provider.loads);
+  }
+
+  @Test
+  public void testReleasedEntryIsReplaced()
+  {
+    CountingProvider provider = provider();
+    InsertOnlyFileContentInfoCache cache = new InsertOnlyFileContentInfoCache(provider);
+
+    FileContentInfo first = cache.getFileContent("/a");
+    cache.dispose(first);
+
+    // as if invalidate() had dropped the cache's reference but not yet removed the entry
+    first.release();
+    assertTrue(isDisposed(first));
+
+    FileContentInfo second = cache.getFileContent("/a");
+    assertNotSame(first, second);
+    assertEquals(1, cache.size());
+
+    cache.dispose(second);
+    FileContentInfo third = cache.getFileContent("/a");
+    cache.dispose(third);
+    assertSame(second, third);
+    assertEquals(2, provider.loads);
+  }
+
+  @Test
+  public void testInvalidateAll()
+  {
+    InsertOnlyFileContentInfoCache cache = new InsertOnlyFileContentInfoCache(provider());
+
+    FileContentInfo a = cache.getFileContent("/a");
+    cache.dispose(a);
+    FileContentInfo b = cache.getFileContent("/b");
+
+    cache.invalidateAll();
+
+    assertEquals(0, cache.size());
+    assertTrue(isDisposed(a));
+    assertFalse(isDisposed(b));
+
+    cache.dispose(b);
+    assertTrue(isDisposed(b));
+  }
+
+  @Test
+  public void testListenersSeeInvalidations()
+  {
+    InsertOnlyFileContentInfoCache cache = new InsertOnlyFileContentInfoCache(provider());
+    final List<String> invalidated = new ArrayList<String>();
+
+    cache.addInvalidationListener(new InvalidationListener()
+    {
+      @Override
+      public void invalidated(String path)
+      {
+        invalidated.add(path);
+      }
+
+      @Override
+      public void invalidatedAll()
+      {
+        invalidated.add("*");
+      }
+    });
+
+    cache.dispose(cache.getFileContent("/a"));
+    cache.invalidate("/a");
+    cache.invalidateAll();
+
+    assertEquals(2, invalidated.size());
+    assertEquals("/a", invalidated.get(0));
+    assertEquals("*", invalidated.get(1));
+  }
+}
@@ -0,0 +1,232 @@
+package io.viper.core.server.file;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static io.viper.core.server.file.CountingProvider.isDisposed;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class LruFileContentInfoCacheTest
+{
+  @Test
+  public void testHitReturnsCachedContent()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a", 10);
+    LruFileContentInfoCache cache = new LruFileContentInfoCache(provider, 100, 10);
+
+    FileContentInfo first = cache.getFileContent("/a");
+    cache.dispose(first);
+    FileContentInfo second = cache.getFileContent("/a");
+    cache.dispose(second);
+
+    assertSame(first, second);
+    assertEquals(1, provider.loads);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void testMissingPath()
+  {
+    LruFileContentInfoCache cache = new LruFileContentInfoCache(new CountingProvider(), 100, 10);
+
+    assertNull(cache.getFileContent("/missing"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testBoundedByBytesAndEntries()
+  {
+    CountingProvider provider = new CountingProvider();
+    for (int i = 0; i < 20; i++)
+    {
+      provider.lengths.put("/" + i, 10);
+    }
+    LruFileContentInfoCache cache = new LruFileContentInfoCache(provider, 55, 10);
+
+    for (int i = 0; i < 20; i++)
+    {
+      cache.dispose(cache.getFileContent("/" + i));
+      assertTrue(cache.getResidentBytes() <= 55);
+    }
+
+    assertEquals(5, cache.size());
+    assertEquals(15, cache.getEvictionCount());
+
+    cache = new LruFileContentInfoCache(provider, 1000, 3);
+    for (int i = 0; i < 20; i++)
+    {
+      cache.dispose(cache.getFileContent("/" + i));
+    }
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void testScanDoesNotFlushProtectedEntries()
+  {
+    CountingProvider provider = new CountingProvider();
+    for (int i = 0; i < 100; i++)
+    {
+      provider.lengths.put("/" + i, 1);
+    }
+    provider.lengths.put("/hot", 1);
+    LruFileContentInfoCache cache = new LruFileContentInfoCache(provider, 1000, 10);
+
+    // a second request promotes the entry out of probation
+    cache.dispose(cache.getFileContent("/hot"));
+    cache.dispose(cache.getFileContent("/hot"));
+
+    for (int i = 0; i < 100; i++)
+    {
+      cache.dispose(cache.getFileContent("/" + i));
+    }
+
+    int loads = provider.loads;
+    cache.dispose(cache.getFileContent("/hot"));
+    assertEquals(loads, provider.loads);
+  }
+
+  @Test
+  public void testTooLargeContentIsNotCached()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/big", 200);
+    LruFileContentInfoCache cache = new LruFileContentInfoCache(provider, 100, 10);
+
+    FileContentInfo contentInfo = cache.getFileContent("/big");
+    assertEquals(0, cache.size());
+
+    cache.dispose(contentInfo);
+    assertTrue(isDisposed(contentInfo));
+  }
+
+  @Test
+  public void testEvictedContentLivesUntilDisposed()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a", 10);
+    provider.lengths.put("/b", 10);
+    LruFileContentInfoCache cache = new LruFileContentInfoCache(provider, 100, 1);
+
+    FileContentInfo a = cache.getFileContent("/a");
+    cache.dispose(cache.getFileContent("/b"));
+
+    // evicted, but a response is still writing it
+    assertFalse(isDisposed(a));
+
+    cache.dispose(a);
+    assertTrue(isDisposed(a));
+  }
+
+  @Test
+  public void testInvalidateReloads()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a", 10);
+    LruFileContentInfoCache cache = new LruFileContentInfoCache(provider, 100, 10);
+
+    FileContentInfo first = cache.getFileContent("/a");
+    cache.invalidate("/a");
+    assertEquals(0, cache.size());
+    assertFalse(isDisposed(first));
+
+    cache.dispose(first);
+    assertTrue(isDisposed(first));
+
+    FileContentInfo second = cache.getFileContent("/a");
+    cache.dispose(second);
+    assertNotSame(first, second);
+    assertEquals(2, provider.loads);
+  }
+
+  @Test
+  public void testInvalidateAll()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a", 10);
+    provider.lengths.put("/b", 10);
+    LruFileContentInfoCache cache = new LruFileContentInfoCache(provider, 100, 10);
+
+    FileContentInfo a = cache.getFileContent("/a");
+    cache.dispose(a);
+    cache.dispose(cache.getFileContent("/b"));
+
+    cache.invalidateAll();
+
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getResidentBytes());
+    assertTrue(isDisposed(a));
+  }
+
+  @Test
+  public void testLoadOverlappingInvalidateIsNotCached()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a", 10);
+    final LruFileContentInfoCache cache = new LruFileContentInfoCache(provider, 100, 10);
+
+    provider.duringLoad = new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        cache.invalidate("/a");
+      }
+    };
+
+    FileContentInfo stale = cache.getFileContent("/a");
+    assertEquals(0, cache.size());
+
+    cache.dispose(stale);
+    assertTrue(isDisposed(stale));
+
+    cache.dispose(cache.getFileContent("/a"));
+    assertEquals(2, provider.loads);
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testListenersSeeInvalidations()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a", 10);
+    final LruFileContentInfoCache cache = new LruFileContentInfoCache(provider, 100, 10);
+    final List<String> invalidated = new ArrayList<String>();
+
+    cache.addInvalidationListener(new InvalidationListener()
+    {
+      @Override
+      public void invalidated(String path)
+      {
+        // the content is already gone
+        assertEquals(0, cache.size());
+        invalidated.add(path);
+      }
+
+      @Override
+      public void invalidatedAll()
+      {
+        invalidated.add("*");
+      }
+    });
+
+    cache.dispose(cache.getFileContent("/a"));
+    cache.invalidate("/a");
+    cache.invalidate("/missing");
+    cache.invalidateAll();
+
+    assertEquals(3, invalidated.size());
+    assertEquals("/a", invalidated.get(0));
+    assertEquals("/missing", invalidated.get(1));
+    assertEquals("*", invalidated.get(2));
+  }
+}
@@ -0,0 +1,171 @@
+package io.viper.core.server.file;
+
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class MetadataLogTest
+{
+  private File _directory;
+  private MetadataLog _log;
+
+  @Before
+  public void setUp()
+    throws Exception
+  {
+    _directory = File.createTempFile("metadata-log-test-", "");
+    _directory.delete();
+    _directory.mkdir();
+    _log = MetadataLog.forDirectory(_directory.getPath());
+  }
+
+  @After
+  public void tearDown()
+  {
+    _log.close();
+    File[] files = _directory.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        file.delete();
+      }
+    }
+    _directory.delete();
+  }
+
+  private static Map<String, String> meta(String value)
+  {
+    Map<String, String> meta = new HashMap<String, String>();
+    meta.put("value", value);
+    return meta;
+  }
+
+  private MetadataLog reopen()
+    throws Exception
+  {
+    _log.close();
+    _log = MetadataLog.forDirectory(_directory.getPath());
+    return _log;
+  }
+
+  @Test
+  public void testPutGetRemove()
+    throws Exception
+  {
+    _log.put("a", meta("1"));
+    _log.put("b", meta("2"));
+    _log.put("a", meta("3"));
+    _log.remove("b");
+
+    assertEquals("3", _log.get("a").get("value"));
+    assertNull(_log.get("b"));
+    assertEquals(1, _log.size());
+  }
+
+  @Test
+  public void testReopenReplaysLog()
+    throws Exception
+  {
+    _log.put("a", meta("1"));
+    _log.put("b", meta("2"));
+    _log.remove("a");
+
+    MetadataLog log = reopen();
+    assertNull(log.get("a"));
+    assertEquals("2", log.get("b").get("value"));
+  }
+
+  @Test
+  public void testTornTailIsDiscarded()
+    throws Exception
+  {
+    _log.put("a", meta("1"));
+    _log.put("b", meta("2"));
+    File file = _log.getFile();
+    _log.close();
+
+    // flip the last byte of the last record, as if the write had been torn
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    long last = raf.length() - 1;
+    while (last > 0)
+    {
+      raf.seek(last);
+      if (raf.read() != 0) break;
+      last--;
+    }
+    raf.seek(last);
+    raf.write(0x55);
+    raf.close();
+
+    MetadataLog log = reopen();
+    assertEquals("1", log.get("a").get("value"));
+    assertNull(log.get("b"));
+
+    // records appended after recovery are not shadowed by the torn one
+    log.put("c", meta("3"));
+    log = reopen();
+    assertEquals("1", log.get("a").get("value"));
+    assertNull(log.get("b"));
+    assertEquals("3", log.get("c").get("value"));
+  }
+
+  @Test
+  public void testCompactKeepsLiveRecords()
+    throws Exception
+  {
+    for (int i = 0; i < 100; i++)
+    {
+      _log.put("a", meta(Integer.toString(i)));
+      _log.put("b" + i, meta(Integer.toString(i)));
+    }
+    for (int i = 0; i < 50; i++)
+    {
+      _log.remove("b" + i);
+    }
+
+    _log.compact();
+
+    assertEquals(51, _log.size());
+    assertEquals("99", _log.get("a").get("value"));
+    assertNull(_log.get("b0"));
+    assertEquals("50", _log.get("b50").get("value"));
+    assertFalse(new File(_log.getFile().getPath() + ".compact").exists());
+
+    _log.put("c", meta("c"));
+
+    MetadataLog log = reopen();
+    assertEquals(52, log.size());
+    assertEquals("99", log.get("a").get("value"));
+    assertNull(log.get("b49"));
+    assertEquals("99", log.get("b99").get("value"));
+    assertEquals("c", log.get("c").get("value"));
+  }
+
+  @Test
+  public void testCompactAfterClose()
+    throws Exception
+  {
+    _log.put("a", meta("1"));
+    File file = _log.getFile();
+    _log.close();
+
+    _log.compact();
+    assertFalse(new File(file.getPath() + ".compact").exists());
+    assertTrue(file.exists());
+
+    _log = MetadataLog.forDirectory(_directory.getPath());
+    assertEquals("1", _log.get("a").get("value"));
+  }
+}
@@ -0,0 +1,172 @@
+package io.viper.core.server.file;
+
+
+import io.viper.core.server.Util;
+import io.viper.core.server.router.RouteResponse;
+import java.util.HashMap;
+import java.util.Map;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class StaticFileServerHandlerTest
+{
+  private static final long LAST_MODIFIED = 1300000000000L;
+
+  private FileContentInfo _contentInfo;
+  private StaticFileServerHandler _handler;
+
+  @Before
+  public void setUp()
+    throws Exception
+  {
+    Map<String, String> meta = new HashMap<String, String>();
+    meta.put(HttpHeaders.Names.CONTENT_TYPE, "text/plain");
+    _contentInfo = FileContentInfo.create("0123456789".getBytes(CharsetUtil.US_ASCII), meta);
+    _contentInfo.lastModified = LAST_MODIFIED;
+
+    _handler = new StaticFileServerHandler(new FileContentInfoProvider()
+    {
+      @Override
+      public FileContentInfo getFileContent(String path)
+      {
+        return path.equals("/a.txt") && _contentInfo.retain() ? _contentInfo : null;
+      }
+
+      @Override
+      public void dispose(FileContentInfo info)
+      {
+        info.release();
+      }
+    });
+  }
+
+  private RouteResponse get(String... headers)
+  {
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/a.txt");
+    for (int i = 0; i < headers.length; i += 2)
+    {
+      request.setHeader(headers[i], headers[i + 1]);
+    }
+
+    Map<String, String> args = new HashMap<String, String>();
+    args.put("path", "/a.txt");
+    return _handler.exec(request, args);
+  }
+
+  private static HttpResponse assertStatus(HttpResponseStatus status, RouteResponse response)
+  {
+    assertEquals(status, response.HttpResponse.getStatus());
+    return response.HttpResponse;
+  }
+
+  @Test
+  public void testFullResponse()
+  {
+    RouteResponse response = get();
+    assertTrue(response instanceof PreencodedResponse);
+    response.dispose();
+  }
+
+  @Test
+  public void testNotModifiedByETag()
+  {
+    String etag = _contentInfo.getETag();
+
+    RouteResponse response = get(HttpHeaders.Names.IF_NONE_MATCH, "\"other\", W/" + etag);
+    HttpResponse http = assertStatus(HttpResponseStatus.NOT_MODIFIED, response);
+    assertEquals(etag, http.getHeader(HttpHeaders.Names.ETAG));
+    assertEquals(0, http.getContent().readableBytes());
+    response.dispose();
+
+    // a mismatched ETag wins over a matching date
+    response = get(
+      HttpHeaders.Names.IF_NONE_MATCH, "\"other\"",
+      HttpHeaders.Names.IF_MODIFIED_SINCE, Util.formatHttpDate(LAST_MODIFIED));
+    assertTrue(response instanceof PreencodedResponse);
+    response.dispose();
+  }
+
+  @Test
+  public void testNotModifiedByDate()
+  {
+    RouteResponse response = get(HttpHeaders.Names.IF_MODIFIED_SINCE, Util.formatHttpDate(LAST_MODIFIED + 500));
+    assertStatus(HttpResponseStatus.NOT_MODIFIED, response);
+    response.dispose();
+
+    response = get(HttpHeaders.Names.IF_MODIFIED_SINCE, Util.formatHttpDate(LAST_MODIFIED - 1000));
+    assertTrue(response instanceof PreencodedResponse);
+    response.dispose();
+  }
+
+  @Test
+  public void testPartialContent()
+  {
+    RouteResponse response = get(HttpHeaders.Names.RANGE, "bytes=2-4");
+    HttpResponse http = assertStatus(HttpResponseStatus.PARTIAL_CONTENT, response);
+
+    assertEquals("bytes 2-4/10", http.getHeader(HttpHeaders.Names.CONTENT_RANGE));
+    assertEquals("text/plain", http.getHeader(HttpHeaders.Names.CONTENT_TYPE));
+    assertEquals("234", http.getContent().toString(CharsetUtil.US_ASCII));
+    response.dispose();
+  }
+
+  @Test
+  public void testMultipleRanges()
+  {
+    RouteResponse response = get(HttpHeaders.Names.RANGE, "bytes=0-1,-2");
+    HttpResponse http = assertStatus(HttpResponseStatus.PARTIAL_CONTENT, response);
+
+    assertTrue(http.getHeader(HttpHeaders.Names.CONTENT_TYPE).startsWith("multipart/byteranges; boundary="));
+    String body = http.getContent().toString(CharsetUtil.US_ASCII);
+    assertTrue(body.contains("Content-Range: bytes 0-1/10\r\n\r\n01"));
+    assertTrue(body.contains("Content-Range: bytes 8-9/10\r\n\r\n89"));
+    response.dispose();
+  }
+
+  @Test
+  public void testRangeNotSatisfiable()
+  {
+    RouteResponse response = get(HttpHeaders.Names.RANGE, "bytes=10-");
+    HttpResponse http = assertStatus(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response);
+
+    assertEquals("bytes */10", http.getHeader(HttpHeaders.Names.CONTENT_RANGE));
+    response.dispose();
+  }
+
+  @Test
+  public void testStaleIfRangeServesFullContent()
+  {
+    RouteResponse response = get(HttpHeaders.Names.RANGE, "bytes=2-4", HttpHeaders.Names.IF_RANGE, "\"stale\"");
+    assertTrue(response instanceof PreencodedResponse);
+    response.dispose();
+
+    response = get(HttpHeaders.Names.RANGE, "bytes=2-4", HttpHeaders.Names.IF_RANGE, _contentInfo.getETag());
+    assertStatus(HttpResponseStatus.PARTIAL_CONTENT, response);
+    response.dispose();
+  }
+
+  @Test
+  public void testResponsesReleaseContent()
+  {
+    get(HttpHeaders.Names.RANGE, "bytes=2-4").dispose();
+    get(HttpHeaders.Names.RANGE, "bytes=10-").dispose();
+    get(HttpHeaders.Names.IF_NONE_MATCH, "*").dispose();
+    get().dispose();
+
+    // only the reference taken by create() is left
+    _contentInfo.release();
+    assertTrue(!_contentInfo.retain());
+  }
+}
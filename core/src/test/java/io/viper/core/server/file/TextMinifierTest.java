@@ -0,0 +1,93 @@
+package io.viper.core.server.file;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class TextMinifierTest
+{
+  @Test
+  public void testWhitespaceAndCommentsAreRemoved()
+  {
+    assertEquals("var a=1;function f(x){return x+a;}",
+                 TextMinifier.minifyJs("var a = 1; // one\nfunction f( x ) {\n  /* add */ return x + a;\n}"));
+  }
+
+  @Test
+  public void testPreservedCommentsAreKept()
+  {
+    assertEquals("/*! license */\nvar a=1;", TextMinifier.minifyJs("/*! license */\nvar a = 1;"));
+  }
+
+  @Test
+  public void testLineBreaksThatEndStatementsAreKept()
+  {
+    // without semicolons, each line break ends a statement
+    assertEquals("var a=1\nvar b=2", TextMinifier.minifyJs("var a = 1\n\n  var b = 2"));
+    assertEquals("a=b\n++c", TextMinifier.minifyJs("a = b\n++c"));
+    assertEquals("return\nx", TextMinifier.minifyJs("return\nx"));
+    assertEquals("a\nb", TextMinifier.minifyJs("a /* one\n two */ b"));
+    assertEquals("a=1\nb=2", TextMinifier.minifyJs("a = 1 // one\nb = 2"));
+  }
+
+  @Test
+  public void testLineBreaksThatCannotEndStatementsAreDropped()
+  {
+    assertEquals("f(a,b);", TextMinifier.minifyJs("f(\n  a,\n  b\n);"));
+    assertEquals("if(x){y()}", TextMinifier.minifyJs("if (x) {\n  y()\n}"));
+  }
+
+  @Test
+  public void testOperatorsAreKeptApart()
+  {
+    assertEquals("a+ +b", TextMinifier.minifyJs("a + +b"));
+    assertEquals("a- -b", TextMinifier.minifyJs("a - -b"));
+    assertEquals("a++ +b", TextMinifier.minifyJs("a++ + b"));
+    assertEquals("1 .toString()", TextMinifier.minifyJs("1 .toString()"));
+    assertEquals("typeof x", TextMinifier.minifyJs("typeof  x"));
+  }
+
+  @Test
+  public void testStringsAreCopied()
+  {
+    assertEquals("var s=\"a  // b /* c */\";", TextMinifier.minifyJs("var s = \"a  // b /* c */\";"));
+    assertEquals("var s='it\\'s  //';", TextMinifier.minifyJs("var s = 'it\\'s  //';"));
+    assertEquals("var t=`a\n  b`;", TextMinifier.minifyJs("var t = `a\n  b`;"));
+  }
+
+  @Test
+  public void testRegexLiteralsAreCopied()
+  {
+    assertEquals("var r=/a  b/g;", TextMinifier.minifyJs("var r = /a  b/g;"));
+    assertEquals("var r=/\\/\\/ x/;", TextMinifier.minifyJs("var r = /\\/\\/ x/;"));
+    assertEquals("var r=/[/ ]+/;", TextMinifier.minifyJs("var r = /[/ ]+/;"));
+    assertEquals("var r=/a*/;", TextMinifier.minifyJs("var r = /a*/;"));
+    assertEquals("f(/ '/,x)", TextMinifier.minifyJs("f(/ '/, x)"));
+  }
+
+  @Test
+  public void testRegexAfterKeyword()
+  {
+    assertEquals("return/ x /.test(s)", TextMinifier.minifyJs("return / x /.test(s)"));
+    assertEquals("typeof/ x /", TextMinifier.minifyJs("typeof / x /"));
+  }
+
+  @Test
+  public void testDivisionIsNotARegex()
+  {
+    assertEquals("a=b/c/d;", TextMinifier.minifyJs("a = b / c / d;"));
+    assertEquals("x=a[0]/2/(y)/'z'.length;", TextMinifier.minifyJs("x = a[0] / 2 / (y) / 'z'.length;"));
+  }
+
+  @Test
+  public void testMinifyByContentType()
+  {
+    assertEquals("a{color:red}", TextMinifier.minify("text/css; charset=UTF-8", "a {\n  color: red;\n}"));
+    assertEquals("var a=1;", TextMinifier.minify("application/javascript", "var a = 1;"));
+    assertNull(TextMinifier.minify("image/png", "var a = 1;"));
+    assertNull(TextMinifier.minify(null, "var a = 1;"));
+  }
+}
@@ -0,0 +1,236 @@
+package io.viper.core.server.file;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static io.viper.core.server.file.CountingProvider.isDisposed;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class TieredFileContentInfoCacheTest
+{
+  /**
+   * Holds promotions until they are run.
+   */
+  private static class QueueExecutor implements Executor
+  {
+    final List<Runnable> queued = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable runnable)
+    {
+      queued.add(runnable);
+    }
+
+    void runAll()
+    {
+      List<Runnable> runnables = new ArrayList<Runnable>(queued);
+      queued.clear();
+      for (Runnable runnable : runnables)
+      {
+        runnable.run();
+      }
+    }
+  }
+
+  private final List<File> _files = new ArrayList<File>();
+
+  @Before
+  public void setUp()
+  {
+    _files.clear();
+  }
+
+  @After
+  public void tearDown()
+  {
+    for (File file : _files)
+    {
+      file.delete();
+    }
+  }
+
+  private File createFile(int length)
+    throws Exception
+  {
+    File file = File.createTempFile("tiered-test-", null);
+    _files.add(file);
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[length]);
+    out.close();
+    return file;
+  }
+
+  @Test
+  public void testContentWithoutFileIsSpilled()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/big", 1000);
+    TieredFileContentInfoCache cache = new TieredFileContentInfoCache(provider, 100, 0, 10, 100, 100);
+
+    FileContentInfo contentInfo = cache.getFileContent("/big");
+    assertNotNull(contentInfo.file);
+    assertNull(contentInfo.content);
+    assertEquals(1000, contentInfo.getLength());
+    assertEquals(1000, contentInfo.file.length());
+    assertEquals(0, cache.getHeapBytes());
+
+    File spilled = contentInfo.file;
+    cache.invalidate("/big");
+    assertTrue(spilled.exists());
+
+    cache.dispose(contentInfo);
+    assertFalse(spilled.exists());
+  }
+
+  @Test
+  public void testSpilledContentKeepsEntityTag()
+    throws Exception
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/big", 1000);
+    TieredFileContentInfoCache cache = new TieredFileContentInfoCache(provider, 100, 0, 10, 100, 100);
+
+    String etag = provider.getFileContent("/big").getETag();
+
+    FileContentInfo contentInfo = cache.getFileContent("/big");
+    assertEquals(etag, contentInfo.getETag());
+    cache.dispose(contentInfo);
+  }
+
+  @Test
+  public void testPromotionRunsOffTheRequestPath()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a", 10);
+    provider.lengths.put("/b", 10);
+    TieredFileContentInfoCache cache = new TieredFileContentInfoCache(provider, 10, 0, 10, 10, 10);
+    QueueExecutor promoter = new QueueExecutor();
+    cache.setPromoter(promoter);
+
+    cache.dispose(cache.getFileContent("/a"));
+    cache.dispose(cache.getFileContent("/a"));
+
+    // not hot enough to displace /a
+    FileContentInfo disk = cache.getFileContent("/b");
+    cache.dispose(disk);
+    assertNotNull(disk.file);
+
+    cache.invalidate("/a");
+    int loads = provider.loads;
+
+    // the first hit schedules the promotion, the second does not schedule another
+    assertSame(disk, cache.getFileContent("/b"));
+    assertSame(disk, cache.getFileContent("/b"));
+    cache.dispose(disk);
+    cache.dispose(disk);
+    assertEquals(loads, provider.loads);
+    assertEquals(1, promoter.queued.size());
+
+    promoter.runAll();
+    assertEquals(1, cache.getPromotionCount());
+    assertTrue(isDisposed(disk));
+
+    FileContentInfo heap = cache.getFileContent("/b");
+    cache.dispose(heap);
+    assertNull(heap.file);
+    assertEquals(10, cache.getHeapBytes());
+  }
+
+  @Test
+  public void testColderFileIsDemotedToDisk()
+    throws Exception
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.files.put("/a", createFile(10));
+    provider.files.put("/b", createFile(10));
+    TieredFileContentInfoCache cache = new TieredFileContentInfoCache(provider, 10, 0, 10, 10, 10);
+    QueueExecutor promoter = new QueueExecutor();
+    cache.setPromoter(promoter);
+
+    FileContentInfo heap = cache.getFileContent("/a");
+    cache.dispose(heap);
+    assertNull(heap.file);
+    String etag = heap.getETag();
+
+    cache.dispose(cache.getFileContent("/b"));
+    cache.dispose(cache.getFileContent("/b"));
+    promoter.runAll();
+
+    assertEquals(1, cache.getDemotionCount());
+    assertEquals(2, cache.size());
+
+    int loads = provider.loads;
+    FileContentInfo demoted = cache.getFileContent("/a");
+    cache.dispose(demoted);
+    assertEquals(loads, provider.loads);
+    assertEquals(provider.files.get("/a"), demoted.file);
+    assertNull(demoted.content);
+    assertEquals(etag, demoted.getETag());
+  }
+
+  @Test
+  public void testColderContentWithoutFileIsDropped()
+  {
+    CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a", 10);
+    provider.lengths.put("/b", 10);
+    TieredFileContentInfoCache cache = new TieredFileContentInfoCache(provider, 10, 0, 10, 10, 10);
+    QueueExecutor promoter = new QueueExecutor();
+    cache.setPromoter(promoter);
+
+    cache.dispose(cache.getFileContent("/a"));
+    cache.dispose(cache.getFileContent("/b"));
+    cache.dispose(cache.getFileContent("/b"));
+    promoter.runAll();
+
+    assertEquals(1, cache.getDemotionCount());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testLoadOverlappingInvalidateIsNotCached()
+  {
+    final CountingProvider provider = new CountingProvider();
+    provider.lengths.put("/a", 10);
+    final TieredFileContentInfoCache[] cache = new TieredFileContentInfoCache[1];
+    cache[0] = new TieredFileContentInfoCache(new FileContentInfoProvider()
+    {
+      @Override
+      public FileContentInfo getFileContent(String path)
+      {
+        FileContentInfo contentInfo = provider.getFileContent(path);
+        if (provider.loads == 1) cache[0].invalidate(path);
+        return contentInfo;
+      }
+
+      @Override
+      public void dispose(FileContentInfo info)
+      {
+        provider.dispose(info);
+      }
+    }, 100, 0, 10, 100, 100);
+
+    FileContentInfo stale = cache[0].getFileContent("/a");
+    assertEquals(0, cache[0].size());
+    assertEquals(0, cache[0].getHeapBytes());
+
+    cache[0].dispose(stale);
+    assertTrue(isDisposed(stale));
+
+    cache[0].dispose(cache[0].getFileContent("/a"));
+    assertEquals(1, cache[0].size());
+  }
+}
@@ -0,0 +1,134 @@
+package io.viper.core.server.router;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+public class QueryDecoderTest
+{
+  private static Map<String, String> decode(String query)
+  {
+    Map<String, String> into = new LinkedHashMap<String, String>();
+    QueryDecoder.decode(query, 0, query.length(), true, into);
+    return into;
+  }
+
+  @Test
+  public void testPairsSplitAtFirstEquals()
+  {
+    Map<String, String> args = decode("a=1&b=x=y");
+
+    assertEquals(2, args.size());
+    assertEquals("1", args.get("a"));
+    assertEquals("x=y", args.get("b"));
+  }
+
+  @Test
+  public void testKeyWithoutValue()
+  {
+    Map<String, String> args = decode("flag&empty=&a=1");
+
+    assertEquals("", args.get("flag"));
+    assertEquals("", args.get("empty"));
+    assertEquals("1", args.get("a"));
+  }
+
+  @Test
+  public void testEmptyPairsAndKeysAreSkipped()
+  {
+    Map<String, String> args = decode("&&=orphan&a=1&");
+
+    assertEquals(1, args.size());
+    assertEquals("1", args.get("a"));
+  }
+
+  @Test
+  public void testRepeatedKeyKeepsLastValue()
+  {
+    assertEquals("2", decode("a=1&a=2").get("a"));
+  }
+
+  @Test
+  public void testPlusAndEscapesAreDecoded()
+  {
+    Map<String, String> args = decode("q=hello+world&na%6De=%E2%82%AC");
+
+    assertEquals("hello world", args.get("q"));
+    assertEquals("\u20ac", args.get("name"));
+  }
+
+  @Test
+  public void testMalformedEscapesAreKeptLiterally()
+  {
+    Map<String, String> args = decode("a=100%&b=%zz&c=%4");
+
+    assertEquals("100%", args.get("a"));
+    assertEquals("%zz", args.get("b"));
+    assertEquals("%4", args.get("c"));
+  }
+
+  @Test
+  public void testWithoutUrlDecode()
+  {
+    Map<String, String> args = new HashMap<String, String>();
+    QueryDecoder.decode("q=a+b%20c", 0, 9, false, args);
+
+    assertEquals("a+b%20c", args.get("q"));
+  }
+
+  @Test
+  public void testRawCharsAreUtf8Bytes()
+  {
+    // the request line is read one char per byte, so a raw euro sign arrives as three chars
+    String raw = new String("q=\u20ac".getBytes(CharsetUtil.UTF_8), CharsetUtil.ISO_8859_1);
+
+    assertEquals("\u20ac", decode(raw).get("q"));
+  }
+
+  @Test
+  public void testRangeWithinUri()
+  {
+    String uri = "/search?q=viper&page=2";
+    Map<String, String> args = new HashMap<String, String>();
+    QueryDecoder.decode(uri, uri.indexOf('?') + 1, uri.length(), true, args);
+
+    assertEquals(2, args.size());
+    assertEquals("viper", args.get("q"));
+    assertEquals("2", args.get("page"));
+    assertFalse(args.containsKey("/search?q"));
+  }
+
+  @Test
+  public void testDecodeAllKeepsEveryValueInOrder()
+  {
+    String query = "tag=a&x=1&tag=b&tag";
+    Map<String, List<String>> args = new HashMap<String, List<String>>();
+    QueryDecoder.decodeAll(query, 0, query.length(), true, args);
+
+    assertEquals(Arrays.asList("a", "b", ""), args.get("tag"));
+    assertEquals(Arrays.asList("1"), args.get("x"));
+  }
+
+  @Test
+  public void testDecodeBuffer()
+  {
+    byte[] body = "name=J%C3%BCrgen+M&city=\u00fcberlingen".getBytes(CharsetUtil.UTF_8);
+    ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(body);
+    Map<String, String> args = new HashMap<String, String>();
+    QueryDecoder.decode(buffer, 0, body.length, true, args);
+
+    assertEquals("J\u00fcrgen M", args.get("name"));
+    assertEquals("\u00fcberlingen", args.get("city"));
+  }
+}
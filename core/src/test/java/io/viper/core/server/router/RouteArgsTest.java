@@ -0,0 +1,186 @@
+package io.viper.core.server.router;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class RouteArgsTest
+{
+  private static RouteArgs query(String query)
+  {
+    RouteArgs args = new RouteArgs();
+    args.addQuery(query, 0, query.length(), true);
+    return args;
+  }
+
+  @Test
+  public void testQueryValuesAreDecodedWhenRead()
+  {
+    RouteArgs args = query("q=hello+world&empty&x=%41");
+
+    assertEquals(3, args.size());
+    assertEquals("hello world", args.get("q"));
+    assertEquals("", args.get("empty"));
+    assertEquals("A", args.get("x"));
+    assertNull(args.get("missing"));
+  }
+
+  @Test
+  public void testLaterValuesShadowEarlierOnes()
+  {
+    RouteArgs args = new RouteArgs();
+    args.put("id", "path");
+    String query = "id=query&id=last";
+    args.addQuery(query, 0, query.length(), true);
+
+    assertEquals(1, args.size());
+    assertEquals("last", args.get("id"));
+    assertEquals(Arrays.asList("path", "query", "last"), args.getAll("id"));
+  }
+
+  @Test
+  public void testPutAndRemoveDropEveryValue()
+  {
+    RouteArgs args = query("a=1&a=2&b=3");
+
+    assertEquals("2", args.put("a", "x"));
+    assertEquals(Arrays.asList("x"), args.getAll("a"));
+    assertEquals(2, args.size());
+
+    assertEquals("x", args.remove("a"));
+    assertFalse(args.containsKey("a"));
+    assertTrue(args.getAll("a").isEmpty());
+    assertEquals(1, args.size());
+
+    assertNull(args.remove("a"));
+  }
+
+  @Test
+  public void testFormValues()
+  {
+    byte[] body = "name=J%C3%BCrgen&n=42".getBytes(CharsetUtil.UTF_8);
+    RouteArgs args = new RouteArgs();
+    args.addForm(ChannelBuffers.wrappedBuffer(body), 0, body.length, true);
+
+    assertEquals("J\u00fcrgen", args.get("name"));
+    assertEquals(42, args.getInt("n"));
+  }
+
+  @Test
+  public void testJsonValues()
+    throws Exception
+  {
+    JSONObject json = new JSONObject();
+    json.put("name", "viper");
+    json.put("count", 3);
+
+    RouteArgs args = new RouteArgs();
+    args.put("name", "path");
+    args.addJson(json);
+
+    assertEquals(2, args.size());
+    assertEquals("viper", args.get("name"));
+    assertEquals(3, args.getLong("count"));
+  }
+
+  @Test
+  public void testNumbers()
+  {
+    RouteArgs args = query("a=12&b=-7&c=%31%32&d=abc&e=9223372036854775807&f=99999999999");
+
+    assertEquals(12, args.getLong("a"));
+    assertEquals(-7, args.getInt("b"));
+    assertEquals(12, args.getInt("c"));
+    assertEquals(Long.MAX_VALUE, args.getLong("e"));
+    assertEquals(5, args.getInt("missing", 5));
+    assertEquals(5, RouteArgs.getInt(args, "missing", 5));
+
+    Map<String, String> plain = new HashMap<String, String>();
+    plain.put("a", "12");
+    assertEquals(12, RouteArgs.getLong(plain, "a", 0));
+
+    try
+    {
+      args.getLong("d");
+      fail();
+    }
+    catch (NumberFormatException e)
+    {
+    }
+
+    try
+    {
+      args.getInt("f");
+      fail();
+    }
+    catch (NumberFormatException e)
+    {
+    }
+
+    try
+    {
+      args.getInt("missing");
+      fail();
+    }
+    catch (NumberFormatException e)
+    {
+    }
+  }
+
+  @Test
+  public void testEntriesSkipShadowedValues()
+  {
+    RouteArgs args = query("a=1&b=2&a=3");
+
+    Map<String, String> copy = new HashMap<String, String>(args);
+    assertEquals(2, copy.size());
+    assertEquals("3", copy.get("a"));
+    assertEquals("2", copy.get("b"));
+
+    Iterator<Map.Entry<String, String>> it = args.entrySet().iterator();
+    while (it.hasNext())
+    {
+      if (it.next().getKey().equals("a")) it.remove();
+    }
+    assertEquals(1, args.size());
+    assertTrue(args.getAll("a").isEmpty());
+  }
+
+  @Test
+  public void testSetValueReplacesEncodedValue()
+  {
+    RouteArgs args = query("q=a+b");
+
+    Map.Entry<String, String> entry = args.entrySet().iterator().next();
+    assertEquals("a b", entry.setValue("plain"));
+    assertEquals("plain", args.get("q"));
+    assertEquals("plain", entry.getValue());
+  }
+
+  @Test
+  public void testClear()
+  {
+    RouteArgs args = query("a=1&b=2");
+    args.clear();
+
+    assertEquals(0, args.size());
+    assertNull(args.get("a"));
+
+    args.put("c", "3");
+    assertEquals(1, args.size());
+    assertEquals("3", args.get("c"));
+  }
+}
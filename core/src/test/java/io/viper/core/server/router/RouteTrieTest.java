@@ -0,0 +1,224 @@
+package io.viper.core.server.router;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+
+public class RouteTrieTest
+{
+  private static class TestRoute extends Route
+  {
+    private final HttpMethod _method;
+
+    TestRoute(String route, HttpMethod method)
+    {
+      super(route);
+      _method = method;
+    }
+
+    @Override
+    public HttpMethod getMethod()
+    {
+      return _method;
+    }
+
+    @Override
+    public boolean isShareable()
+    {
+      return true;
+    }
+  }
+
+  /**
+   * Matches requests whose URI contains a marker, whatever its path.
+   */
+  private static class MarkerRoute extends TestRoute
+  {
+    MarkerRoute()
+    {
+      super("/custom", null);
+    }
+
+    @Override
+    public boolean isMatch(HttpRequest request)
+    {
+      return request.getUri().contains("marker");
+    }
+  }
+
+  private static RouteTrie trie(Route... routes)
+  {
+    return new RouteTrie(Arrays.asList(routes));
+  }
+
+  private static Route route(String route)
+  {
+    return new TestRoute(route, null);
+  }
+
+  private static int[] match(RouteTrie trie, String uri)
+  {
+    return match(trie, HttpMethod.GET, uri);
+  }
+
+  private static int[] match(RouteTrie trie, HttpMethod method, String uri)
+  {
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, uri);
+    return trie.match(request, RouteUtil.parsePath(uri));
+  }
+
+  @Test
+  public void testLiteralBeatsParameters()
+  {
+    RouteTrie trie = trie(route("/users/$name"), route("/users/$id:int"), route("/users/me"));
+
+    assertArrayEquals(new int[]{2, 0}, match(trie, "/users/me"));
+    assertArrayEquals(new int[]{1, 0}, match(trie, "/users/42"));
+    assertArrayEquals(new int[]{0}, match(trie, "/users/bob"));
+  }
+
+  @Test
+  public void testSpecificityOrder()
+  {
+    RouteTrie trie = trie(
+      route("/a/$rest*"),
+      route("/a/$any/x"),
+      route("/a/$slug:[0-9a-f]+/x"),
+      route("/a/$id:int/x"));
+
+    assertArrayEquals(new int[]{3, 2, 1, 0}, match(trie, "/a/12/x"));
+    assertArrayEquals(new int[]{2, 1, 0}, match(trie, "/a/ff/x"));
+    assertArrayEquals(new int[]{1, 0}, match(trie, "/a/zz/x"));
+  }
+
+  @Test
+  public void testEquallySpecificKeepRegistrationOrder()
+  {
+    RouteTrie trie = trie(route("/a/$y"), route("/a/$x"));
+    assertArrayEquals(new int[]{0, 1}, match(trie, "/a/b"));
+  }
+
+  @Test
+  public void testTypedParameters()
+  {
+    RouteTrie trie = trie(route("/item/$id:int"), route("/thing/$uuid:uuid"));
+
+    assertArrayEquals(new int[]{0}, match(trie, "/item/-17"));
+    assertArrayEquals(new int[0], match(trie, "/item/12a"));
+    assertArrayEquals(new int[0], match(trie, "/item/99999999999999999999"));
+
+    assertArrayEquals(new int[]{1}, match(trie, "/thing/123e4567-e89b-12d3-a456-426614174000"));
+    assertArrayEquals(new int[0], match(trie, "/thing/123e4567-e89b-12d3-a456-42661417400g"));
+  }
+
+  @Test
+  public void testTrailingParameterMatchesRest()
+  {
+    RouteTrie trie = trie(route("/files/$path"));
+
+    assertArrayEquals(new int[]{0}, match(trie, "/files/a/b/c"));
+    assertArrayEquals(new int[0], match(trie, "/files"));
+
+    Map<String, String> args = new HashMap<String, String>();
+    RouteUtil.extractPathArgs(trie.get(0)._params, RouteUtil.parsePath("/files/a/b/c"), args);
+    assertEquals("a/b/c", args.get("path"));
+  }
+
+  @Test
+  public void testMethodIsCheckedAtLeaves()
+  {
+    RouteTrie trie = trie(new TestRoute("/a", HttpMethod.POST), new TestRoute("/a", HttpMethod.GET));
+
+    assertArrayEquals(new int[]{1}, match(trie, HttpMethod.GET, "/a"));
+    assertArrayEquals(new int[]{0}, match(trie, HttpMethod.POST, "/a"));
+  }
+
+  @Test
+  public void testCustomMatchersKeepRegistrationOrder()
+  {
+    // the custom matcher goes before the first candidate registered after it, not before everything
+    RouteTrie trie = trie(route("/a/$x"), new MarkerRoute(), route("/a/marker"));
+    assertArrayEquals(new int[]{1, 2, 0}, match(trie, "/a/marker"));
+
+    trie = trie(route("/a/marker"), route("/a/$x"), new MarkerRoute());
+    assertArrayEquals(new int[]{0, 1, 2}, match(trie, "/a/marker"));
+
+    trie = trie(new MarkerRoute(), route("/a/$x"));
+    assertArrayEquals(new int[]{0, 1}, match(trie, "/a/marker"));
+
+    trie = trie(route("/a/$x"), new MarkerRoute());
+    assertArrayEquals(new int[]{0, 1}, match(trie, "/a/marker"));
+    assertArrayEquals(new int[]{1}, match(trie, "/b/marker"));
+  }
+
+  @Test
+  public void testPatternsCannotContainDelimiters()
+  {
+    assertNull(PathParam.parse("literal"));
+
+    for (String segment : new String[]{"$x:a/b", "$x:ab?"})
+    {
+      try
+      {
+        PathParam.parse(segment);
+        fail(segment);
+      }
+      catch (IllegalArgumentException e)
+      {
+        // expected
+      }
+    }
+
+    try
+    {
+      route("/a/$x:[a-z]?");
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  public void testRestMustBeLast()
+  {
+    try
+    {
+      route("/a/$rest*/b");
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  public void testUncompiledOverloadsMatch()
+  {
+    List<String> route = new ArrayList<String>(Arrays.asList("a", "$id:int"));
+
+    assertEquals(true, RouteUtil.match(route, RouteUtil.parsePath("/a/1")));
+    assertEquals(false, RouteUtil.match(route, RouteUtil.parsePath("/a/b")));
+
+    // the cached compilation does not outlive a change to the caller's list
+    route.set(1, "$name");
+    assertEquals(true, RouteUtil.match(route, RouteUtil.parsePath("/a/b")));
+    assertEquals("b", RouteUtil.extractPathArgs(route, RouteUtil.parsePath("/a/b")).get("name"));
+  }
+}
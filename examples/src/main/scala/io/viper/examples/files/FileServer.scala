@@ -13,9 +13,11 @@ object FileServer {
 
 class FileServer(uploadFileRoot: String, downloadHostname: String) extends ViperServer("res:///fileserver") {
   override def addRoutes() {
-    val proxy = new FileChunkProxy(uploadFileRoot)
-    val relayListener = new FileUploadChunkRelayEventListener(downloadHostname)
-    addRoute(new HttpChunkProxyHandler("/u/", proxy, relayListener))
+    addRoute(() => {
+      val proxy = new FileChunkProxy(uploadFileRoot)
+      val relayListener = new FileUploadChunkRelayEventListener(downloadHostname)
+      new HttpChunkProxyHandler("/u/", proxy, relayListener)
+    })
 
     val provider = StaticFileContentInfoProviderFactory.create(this.getClass, uploadFileRoot)
     get("/d/$path", new StaticFileServerHandler(provider))
@@ -19,9 +19,11 @@ object S3FileServer {
 
 class S3FileServer(awsId: String, awsKey: String, awsBucket: String, downloadHostname: String) extends ViperServer("res:///s3server") {
   override def addRoutes() {
-    val proxy = new S3StandardChunkProxy(awsId, awsKey, awsBucket)
-    val relayListener = new FileUploadChunkRelayEventListener(downloadHostname)
-    addRoute(new HttpChunkProxyHandler("/u/", proxy, relayListener))
-    addRoute(new S3StaticFileServerHandler("/d/$path", awsId, awsKey, awsBucket))
+    addRoute(() => {
+      val proxy = new S3StandardChunkProxy(awsId, awsKey, awsBucket)
+      val relayListener = new FileUploadChunkRelayEventListener(downloadHostname)
+      new HttpChunkProxyHandler("/u/", proxy, relayListener)
+    })
+    addRoute(() => new S3StaticFileServerHandler("/d/$path", awsId, awsKey, awsBucket))
   }
 }